@@ -0,0 +1,170 @@
+(ns graphql-clj.bench
+  "Load harness: executes generated queries against a generated schema
+  from several threads and reports the throughput and the latency
+  percentiles of the parse, validate and execute phases.
+
+  Run with lein bench, followed by options as key value pairs, e.g.
+
+    lein bench :threads 8 :duration 30 :types 200 :depth 4 :latency-us 50"
+  (:require [graphql-clj.bench.generator :as generator]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.parser :as parser]
+            [graphql-clj.query-validator :as qv]
+            [graphql-clj.schema-validator :as sv])
+  (:import [java.util.concurrent CountDownLatch Executors]
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong AtomicLongArray]))
+
+;; Log-linear histogram of nanosecond values, in the manner of
+;; HdrHistogram: values below 128 have their own bucket, and every
+;; power of two above is split in 64 buckets, so a recorded value is
+;; within 1.6% of the value it is reported as.
+
+(def ^:private sub-bucket-bits 7)
+(def ^:private half-sub-bucket-count (bit-shift-left 1 (dec sub-bucket-bits)))
+(def ^:private bucket-count (* (+ 64 2) half-sub-bucket-count))
+
+(defn- bucket-index ^long [^long value]
+  (let [magnitude (max 0 (- 64 (Long/numberOfLeadingZeros value) sub-bucket-bits))]
+    (+ (* magnitude half-sub-bucket-count) (unsigned-bit-shift-right value magnitude))))
+
+(defn- bucket-value
+  "Returns the highest value of a bucket."
+  ^long [^long index]
+  (if (< index (* 2 half-sub-bucket-count))
+    index
+    (let [magnitude (dec (quot index half-sub-bucket-count))]
+      (dec (bit-shift-left (inc (- index (* magnitude half-sub-bucket-count))) magnitude)))))
+
+(defn histogram []
+  {:counts (AtomicLongArray. (int bucket-count))
+   :max (AtomicLong.)})
+
+(defn record!
+  "Records a value in nanoseconds.  Safe to call from several threads."
+  [{:keys [^AtomicLongArray counts ^AtomicLong max]} ^long value]
+  (let [value (Math/max 0 value)]
+    (.incrementAndGet counts (int (bucket-index value)))
+    (loop []
+      (let [m (.get max)]
+        (when (and (> value m) (not (.compareAndSet max m value)))
+          (recur))))))
+
+(defn total-count [{:keys [^AtomicLongArray counts]}]
+  (loop [i 0 total 0]
+    (if (< i (.length counts))
+      (recur (inc i) (+ total (.get counts i)))
+      total)))
+
+(defn percentile
+  "Returns the value at a percentile between 0 and 100, in
+  nanoseconds."
+  [{:keys [^AtomicLongArray counts ^AtomicLong max] :as histogram} p]
+  (let [total (total-count histogram)
+        target (Math/max 1 (long (Math/ceil (* total (/ p 100.0)))))]
+    (if (zero? total)
+      0
+      (loop [i 0 seen 0]
+        (let [seen (+ seen (.get counts i))]
+          (if (>= seen target)
+            (Math/min (bucket-value i) (.get max))
+            (recur (inc i) seen)))))))
+
+(def ^:private percentiles [50 90 99 99.9])
+
+(defn- summary [histogram]
+  (-> (into {} (for [p percentiles] [p (percentile histogram p)]))
+      (assoc :max (.get ^AtomicLong (:max histogram))
+             :count (total-count histogram))))
+
+;; Workload
+
+(defn workload
+  "Returns the schema, queries and resolver-fn of a generated workload.
+  options are those of generator/generate-schema,
+  generator/generate-query and generator/resolver-fn, plus :queries,
+  the number of distinct queries (default 20)."
+  [options]
+  (let [model (generator/generate-schema options)
+        queries (vec (for [i (range (:queries options 20))]
+                       (generator/generate-query model (assoc options :seed (+ i (:seed options 1))))))]
+    {:schema-str (generator/schema-sdl model)
+     :schema (sv/validate-schema (generator/schema-sdl model))
+     :queries queries
+     :resolver-fn (generator/resolver-fn model options)}))
+
+(defn- execute-once
+  "Parses, validates and executes a query, recording the time of each
+  phase.  Returns true when the result has no errors."
+  [{:keys [schema resolver-fn]} query-str {:keys [parse validate execute]}]
+  (let [t0 (System/nanoTime)
+        document (parser/parse-query-document query-str)
+        t1 (System/nanoTime)
+        validated (qv/validate-query schema document)
+        t2 (System/nanoTime)
+        result (executor/execute-validated-document nil schema resolver-fn validated)
+        t3 (System/nanoTime)]
+    (record! parse (- t1 t0))
+    (record! validate (- t2 t1))
+    (record! execute (- t3 t2))
+    (empty? (:errors result))))
+
+(defn run
+  "Runs a workload from :threads threads (default 4) for :duration
+  seconds (default 10), after :warmup seconds (default 5) whose
+  measures are discarded.  Returns {:throughput requests-per-second
+  :errors n :phases {phase summary}}, where a summary maps the
+  percentiles, :max and :count to nanoseconds."
+  [workload {:keys [threads duration warmup] :or {threads 4 duration 10 warmup 5}}]
+  (let [queries (:queries workload)
+        measure (fn [seconds]
+                  (let [histograms {:parse (histogram) :validate (histogram) :execute (histogram) :total (histogram)}
+                        errors (AtomicLong.)
+                        running (AtomicBoolean. true)
+                        done (CountDownLatch. threads)
+                        pool (Executors/newFixedThreadPool threads)
+                        start (System/nanoTime)]
+                    (dotimes [t threads]
+                      (.execute pool (fn []
+                                       (try
+                                         (loop [i t]
+                                           (when (.get running)
+                                             (let [t0 (System/nanoTime)]
+                                               (when-not (execute-once workload (nth queries (mod i (count queries))) histograms)
+                                                 (.incrementAndGet errors))
+                                               (record! (:total histograms) (- (System/nanoTime) t0)))
+                                             (recur (+ i threads))))
+                                         (finally
+                                           (.countDown done))))))
+                    (Thread/sleep (* 1000 seconds))
+                    (.set running false)
+                    (.await done)
+                    (.shutdown pool)
+                    (let [elapsed (/ (- (System/nanoTime) start) 1e9)]
+                      {:throughput (/ (total-count (:total histograms)) elapsed)
+                       :errors (.get errors)
+                       :phases (into {} (for [[phase h] histograms] [phase (summary h)]))})))]
+    (when (pos? warmup)
+      (measure warmup))
+    (measure duration)))
+
+(defn- micros [nanos]
+  (format "%10.1f" (/ nanos 1000.0)))
+
+(defn report
+  "Prints the result of run."
+  [{:keys [throughput errors phases]}]
+  (printf "throughput: %.1f requests/s, %d with errors%n" (double throughput) errors)
+  (println (apply str (format "%-10s" "phase (us)") (map #(format "%10s" %) (concat (map #(str "p" %) percentiles) ["max"]))))
+  (doseq [phase [:parse :validate :execute :total]
+          :let [s (get phases phase)]]
+    (println (apply str (format "%-10s" (name phase)) (map #(micros (get s %)) (concat percentiles [:max])))))
+  (flush))
+
+(defn -main [& args]
+  (let [options (into {} (map (fn [[k v]] [(read-string k) (read-string v)]) (partition 2 args)))
+        workload (workload options)]
+    (printf "schema: %d types, %d characters; %d queries, e.g.%n%s%n"
+            (count (:type-map (:schema workload))) (count (:schema-str workload))
+            (count (:queries workload)) (first (:queries workload)))
+    (report (run workload options))
+    (shutdown-agents)))
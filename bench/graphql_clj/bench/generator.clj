@@ -0,0 +1,178 @@
+(ns graphql-clj.bench.generator
+  "Generates synthetic schemas, queries and resolvers for load tests.
+  Generation is deterministic for a given :seed."
+  (:require [clojure.string :as str])
+  (:import [java.util Random]
+           [java.util.concurrent.locks LockSupport]))
+
+(def ^:private scalar-types ['String 'Int 'Float 'Boolean])
+
+(defn- pick [^Random rnd coll]
+  (nth coll (.nextInt rnd (count coll))))
+
+(defn- type-name [prefix i]
+  (symbol (str prefix i)))
+
+(defn- object-fields
+  "Returns the fields of an object type: scalar fields, and fields of
+  other object types, interfaces and unions, some of them lists with a
+  first argument."
+  [^Random rnd {:keys [types fields interfaces unions list-ratio]}]
+  (vec (for [f (range fields)
+             :let [kind (if (or (< f 2) (< (.nextDouble rnd) 0.5))
+                          :scalar
+                          (pick rnd (cond-> [:object :object :object]
+                                      (pos? interfaces) (conj :interface)
+                                      (pos? unions) (conj :union))))
+                   list? (and (not= :scalar kind) (< (.nextDouble rnd) list-ratio))]]
+         {:name (symbol (str "f" f))
+          :kind kind
+          :type (case kind
+                  :scalar (pick rnd scalar-types)
+                  :object (type-name "T" (.nextInt rnd types))
+                  :interface (type-name "I" (.nextInt rnd interfaces))
+                  :union (type-name "U" (.nextInt rnd unions)))
+          :list? list?})))
+
+(defn generate-schema
+  "Returns a model of a synthetic schema.  Options:
+
+    :types       number of object types (default 50)
+    :fields      fields per object type (default 10)
+    :interfaces  number of interfaces (default 5)
+    :unions      number of unions (default 3)
+    :list-ratio  fraction of the non-scalar fields that are lists
+                 (default 0.3)
+    :seed        random seed (default 1)
+
+  Every type has the scalar fields id and name; interfaces declare
+  them and some object types implement an interface."
+  [options]
+  (let [{:keys [types interfaces unions seed] :as options}
+        (merge {:types 50 :fields 10 :interfaces 5 :unions 3 :list-ratio 0.3 :seed 1} options)
+        rnd (Random. seed)]
+    {:options options
+     :interfaces (vec (for [i (range interfaces)] (type-name "I" i)))
+     :unions (vec (for [i (range unions)]
+                    {:name (type-name "U" i)
+                     :members (vec (distinct (repeatedly 3 #(type-name "T" (.nextInt rnd types)))))}))
+     :types (vec (for [i (range types)]
+                   {:name (type-name "T" i)
+                    :implements (when (and (pos? interfaces) (< (.nextDouble rnd) 0.5))
+                                  (type-name "I" (.nextInt rnd interfaces)))
+                    :fields (into [{:name 'id :kind :scalar :type 'Int}
+                                   {:name 'name :kind :scalar :type 'String}]
+                                  (drop 2 (object-fields rnd options)))}))
+     :roots (vec (for [i (range (min types 10))]
+                   {:name (symbol (str "root" i))
+                    :kind :object
+                    :type (type-name "T" i)
+                    :list? (odd? i)}))}))
+
+(defn- field-sdl [{:keys [name type list?]}]
+  (if list?
+    (format "%s(first: Int): [%s]" name type)
+    (format "%s: %s" name type)))
+
+(defn schema-sdl
+  "Returns the SDL of a schema model."
+  [{:keys [interfaces unions types roots]}]
+  (str/join
+   "\n"
+   (concat
+    (for [i interfaces]
+      (format "interface %s {\n  id: Int\n  name: String\n}" i))
+    (for [{:keys [name members]} unions]
+      (format "union %s = %s" name (str/join " | " members)))
+    (for [{:keys [name implements fields]} types]
+      (format "type %s%s {\n%s\n}" name (if implements (str " implements " implements) "")
+              (str/join "\n" (map #(str "  " (field-sdl %)) fields))))
+    [(format "type QueryRoot {\n%s\n}" (str/join "\n" (map #(str "  " (field-sdl %)) roots)))
+     "schema {\n  query: QueryRoot\n}"])))
+
+(def ^:private interface-fields
+  [{:name 'id :kind :scalar :type 'Int} {:name 'name :kind :scalar :type 'String}])
+
+(defn- type-fields [model type-name]
+  (if (str/starts-with? (str type-name) "I")
+    interface-fields
+    (:fields (nth (:types model) (Long/parseLong (subs (str type-name) 1))))))
+
+(defn- shuffle-with [^Random rnd coll]
+  (let [a (java.util.ArrayList. ^java.util.Collection coll)]
+    (java.util.Collections/shuffle a rnd)
+    (vec a)))
+
+(defn- selection
+  "Returns the selection set of a type.  Union fields are not selected,
+  since the executor completes object and interface types only."
+  [^Random rnd model type-name depth {:keys [breadth fragments] :as options} fragment-defs]
+  (let [fields (->> (type-fields model type-name)
+                    (remove #(= :union (:kind %)))
+                    (remove #(and (not= :scalar (:kind %)) (<= depth 1))))
+        chosen (->> (shuffle-with rnd fields) (take breadth) (sort-by (comp str :name)))
+        sub (fn [{:keys [name type kind]}]
+              (str name
+                   (when (not= :scalar kind)
+                     (str " " (selection rnd model type (dec depth) options fragment-defs)))))
+        body (str/join " " (map sub chosen))]
+    (cond
+      (and fragments (= :named fragments) (not (str/starts-with? (str type-name) "I")))
+      (let [fragment-name (str "F" (count @fragment-defs))]
+        (swap! fragment-defs conj (format "fragment %s on %s { %s }" fragment-name type-name body))
+        (str "{ id ..." fragment-name " }"))
+      (and fragments (not (str/starts-with? (str type-name) "I")))
+      (str "{ id ... on " type-name " { " body " } }")
+      :else
+      (str "{ " body " }"))))
+
+(defn generate-query
+  "Returns a query string for a schema model.  Options:
+
+    :depth      levels of nested selections (default 3)
+    :breadth    fields selected per selection set (default 4)
+    :fragments  nil, :inline or :named (default nil)
+    :seed       random seed (default 1)"
+  [model options]
+  (let [{:keys [seed] :as options} (merge {:depth 3 :breadth 4 :fragments nil :seed 1} options)
+        rnd (Random. seed)
+        fragment-defs (atom [])
+        roots (take (max 1 (quot (:breadth options) 2)) (shuffle-with rnd (:roots model)))
+        body (str/join " " (for [{:keys [name type]} roots]
+                             (str name " "
+                                  (selection rnd model type (:depth options) options fragment-defs))))]
+    (str/join "\n" (cons (str "query Q" seed " { " body " }") @fragment-defs))))
+
+(defn- scalar-value [type]
+  (case (str type)
+    "String" "value"
+    "Int" 42
+    "Float" 4.2
+    "Boolean" true))
+
+(defn resolver-fn
+  "Returns an in-memory resolver-fn for a schema model.  Options:
+
+    :fan-out     items returned by list fields (default 3)
+    :latency-us  microseconds every non-scalar field waits, simulating
+                 a backend call (default 0)"
+  [model options]
+  (let [{:keys [fan-out latency-us]} (merge {:fan-out 3 :latency-us 0} options)
+        latency-ns (* 1000 latency-us)
+        fields (into {}
+                     (for [{:keys [name fields]} (concat (:types model)
+                                                         (for [i (:interfaces model)] {:name i :fields interface-fields})
+                                                         [{:name 'QueryRoot :fields (:roots model)}])
+                           field fields]
+                       [[(str name) (str (:name field))] field]))]
+    (fn [type-name field-name]
+      (when-let [{:keys [kind type list?]} (get fields [type-name field-name])]
+        (if (= :scalar kind)
+          (let [value (scalar-value type)]
+            (fn [context parent args] value))
+          (fn [context parent args]
+            (when (pos? latency-ns)
+              (LockSupport/parkNanos latency-ns))
+            (if list?
+              (vec (repeat (or (get args "first") fan-out) {}))
+              {})))))))
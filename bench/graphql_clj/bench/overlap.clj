@@ -0,0 +1,46 @@
+(ns graphql-clj.bench.overlap
+  "Times the validation of pathological inputs for the rule that
+  overlapping fields can be merged: fields repeated thousands of times,
+  with and without aliases, repeated fragment spreads and many
+  fragments spread in one selection set.
+
+  Run with lein run -m graphql-clj.bench.overlap, optionally followed
+  by the number of iterations of each query (default 5)."
+  (:require [clojure.string :as str]
+            [graphql-clj.query-validator :as qv]
+            [graphql-clj.schema-validator :as sv]))
+
+(def ^:private schema-str
+  "type Human { name: String! }
+type Dog { name: String! nickname: String barkVolume: Int owner: Human }
+type QueryRoot { dog: Dog }")
+
+(def queries
+  [["repeated fields"
+    (str "{ dog { " (str/join " " (repeat 20000 "name")) " } }")]
+   ["repeated nested fields"
+    (str "{ dog { " (str/join " " (repeat 5000 "owner { name }")) " } }")]
+   ["aliased fields"
+    (str "{ dog { " (str/join " " (map #(str "a" % ": name") (range 20000))) " } }")]
+   ["repeated fragment spreads"
+    (str "{ dog { " (str/join " " (repeat 5000 "...A ...B")) " } } "
+         "fragment A on Dog { name owner { name } } "
+         "fragment B on Dog { name owner { name } }")]
+   ["many fragments"
+    (str "{ dog { " (str/join " " (map #(str "...F" %) (range 200))) " } } "
+         (str/join " " (map #(str "fragment F" % " on Dog { name owner { name } }") (range 200))))]])
+
+(defn- elapsed-msecs [f]
+  (let [start (System/nanoTime)]
+    (f)
+    (/ (- (System/nanoTime) start) 1e6)))
+
+(defn -main [& args]
+  (let [iterations (if args (Long/parseLong (first args)) 5)
+        schema (sv/validate-schema schema-str)]
+    (doseq [[title query] queries]
+      ;; warm up
+      (qv/validate-query schema query)
+      (let [times (sort (repeatedly iterations #(elapsed-msecs (fn [] (qv/validate-query schema query)))))]
+        (printf "%-26s min %8.1f ms, median %8.1f ms%n" title (first times) (nth times (quot iterations 2)))))
+    (flush)))
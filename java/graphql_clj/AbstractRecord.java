@@ -13,7 +13,6 @@ import clojure.lang.APersistentMap;
 import clojure.lang.IPersistentMap;
 import clojure.lang.ISeq;
 import clojure.lang.ITransientCollection;
-import clojure.lang.Keyword;
 import clojure.lang.PersistentArrayMap;
 import java.util.Iterator;
 import java.util.Set;
@@ -49,9 +48,10 @@ public abstract class AbstractRecord extends APersistentMap
     }
 
     /**
-     * Subclasses override to return an unmodifiable set of Keywords.
+     * Subclasses override to return an unmodifiable set of their
+     * keys, usually Keywords.
      */
-    public abstract Set<Keyword> keySet();
+    public abstract Set<?> keySet();
 
     /**
      * Subclasses override to return an extensible persistent map that
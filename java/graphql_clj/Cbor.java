@@ -0,0 +1,392 @@
+package graphql_clj;
+
+import clojure.lang.BigInt;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+import clojure.lang.Symbol;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 7049) encoding of execution results.  Results are made of
+ * maps with string keys, sequential collections, strings, numbers,
+ * booleans and nil, which map directly onto CBOR data items and are
+ * written without an intermediate JSON text.
+ *
+ * Response keys repeat in every object of a list.  The objects of a
+ * list share the Layout of their ResultObjects, so the encoding of
+ * their keys is computed once per layout.  Integers use the shortest
+ * head that holds them, and doubles that are exactly representable as
+ * floats are written as 4 byte floats.  Keywords and symbols are
+ * written as their names, and other values as their toString, the
+ * same as a JSON encoder would.
+ *
+ * The encoder is given the finished result of an execution, so the
+ * result tree is built in memory before anything is written.
+ *
+ * Decoding returns maps with string keys, vectors, Longs, Doubles,
+ * BigIntegers, strings, booleans and nil.
+ */
+public final class Cbor {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+
+    private static final int TAG_POSITIVE_BIGNUM = 2;
+    private static final int TAG_NEGATIVE_BIGNUM = 3;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int HALF_FLOAT = 0xf9;
+    private static final int FLOAT = 0xfa;
+    private static final int DOUBLE = 0xfb;
+    private static final int BREAK = 0xff;
+    private static final int INDEFINITE = 31;
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private byte[] _buf;
+    private int _len;
+    private int _pos;
+
+    private Cbor(byte[] buf, int len) {
+        _buf = buf;
+        _len = len;
+    }
+
+    /**
+     * Encodes a result as CBOR.
+     */
+    public static byte[] encode(Object value) {
+        Cbor encoder = new Cbor(new byte[256], 0);
+        encoder.write(value);
+        return Arrays.copyOf(encoder._buf, encoder._len);
+    }
+
+    /**
+     * Encodes a result as CBOR to out.  The stream is not closed.
+     */
+    public static void encode(Object value, OutputStream out) throws IOException {
+        Cbor encoder = new Cbor(new byte[256], 0);
+        encoder.write(value);
+        out.write(encoder._buf, 0, encoder._len);
+    }
+
+    /**
+     * Decodes a single CBOR data item.
+     */
+    public static Object decode(byte[] bytes) {
+        Cbor decoder = new Cbor(bytes, bytes.length);
+        Object value = decoder.read();
+        if (decoder._pos != decoder._len)
+            throw new IllegalArgumentException("Unexpected data after CBOR item at " + decoder._pos);
+        return value;
+    }
+
+    // Encoding
+
+    private void ensure(int n) {
+        if (_len + n > _buf.length)
+            _buf = Arrays.copyOf(_buf, Math.max(_buf.length * 2, _len + n));
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        _buf[_len++] = (byte)b;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, _buf, _len, bytes.length);
+        _len += bytes.length;
+    }
+
+    private void writeHead(int major, long value) {
+        major <<= 5;
+        ensure(9);
+        if (value >= 0 && value < 24) {
+            _buf[_len++] = (byte)(major | value);
+        } else if (value >= 0 && value <= 0xffL) {
+            _buf[_len++] = (byte)(major | 24);
+            _buf[_len++] = (byte)value;
+        } else if (value >= 0 && value <= 0xffffL) {
+            _buf[_len++] = (byte)(major | 25);
+            writeRaw(value, 2);
+        } else if (value >= 0 && value <= 0xffffffffL) {
+            _buf[_len++] = (byte)(major | 26);
+            writeRaw(value, 4);
+        } else {
+            // unsigned 64 bit value
+            _buf[_len++] = (byte)(major | 27);
+            writeRaw(value, 8);
+        }
+    }
+
+    private void writeRaw(long value, int n) {
+        for (int shift = (n - 1) * 8 ; shift >= 0 ; shift -= 8)
+            _buf[_len++] = (byte)(value >>> shift);
+    }
+
+    private void writeLong(long value) {
+        if (value >= 0)
+            writeHead(MAJOR_UNSIGNED, value);
+        else
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+    }
+
+    private void writeDouble(double value) {
+        float f = (float)value;
+        ensure(9);
+        if (f == value || Double.isNaN(value)) {
+            _buf[_len++] = (byte)FLOAT;
+            writeRaw(Float.floatToIntBits(f) & 0xffffffffL, 4);
+        } else {
+            _buf[_len++] = (byte)DOUBLE;
+            writeRaw(Double.doubleToLongBits(value), 8);
+        }
+    }
+
+    private void writeBigInteger(BigInteger value) {
+        if (value.compareTo(LONG_MIN) >= 0 && value.compareTo(LONG_MAX) <= 0) {
+            writeLong(value.longValue());
+            return;
+        }
+        boolean negative = value.signum() < 0;
+        byte[] bytes = (negative ? value.not() : value).toByteArray();
+        int offset = (bytes[0] == 0) ? 1 : 0;
+        writeHead(MAJOR_TAG, negative ? TAG_NEGATIVE_BIGNUM : TAG_POSITIVE_BIGNUM);
+        writeHead(MAJOR_BYTES, bytes.length - offset);
+        ensure(bytes.length);
+        System.arraycopy(bytes, offset, _buf, _len, bytes.length - offset);
+        _len += bytes.length - offset;
+    }
+
+    private void writeText(String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeHead(MAJOR_TEXT, bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * Returns the encoding of the keys of a layout as text items.
+     */
+    static byte[][] encodeKeys(String[] keys) {
+        byte[][] encoded = new byte[keys.length][];
+        for (int i = 0 ; i < keys.length ; ++i) {
+            Cbor key = new Cbor(new byte[9 + keys[i].length() * 3], 0);
+            key.writeText(keys[i]);
+            encoded[i] = Arrays.copyOf(key._buf, key._len);
+        }
+        return encoded;
+    }
+
+    private static String name(Object obj) {
+        if (obj instanceof String)
+            return (String)obj;
+        if (obj instanceof Keyword)
+            return ((Keyword)obj).sym.toString();
+        return String.valueOf(obj);
+    }
+
+    private void write(Object value) {
+        if (value == null) {
+            writeByte(NULL);
+        } else if (value instanceof String) {
+            writeText((String)value);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer
+                   || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number)value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number)value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            writeBigInteger((BigInteger)value);
+        } else if (value instanceof BigInt) {
+            writeBigInteger(((BigInt)value).toBigInteger());
+        } else if (value instanceof ResultObject) {
+            ResultObject object = (ResultObject)value;
+            byte[][] keys = object.layout().cborKeys();
+            writeHead(MAJOR_MAP, keys.length);
+            for (int i = 0 ; i < keys.length ; ++i) {
+                writeBytes(keys[i]);
+                write(object.value(i));
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)value;
+            writeHead(MAJOR_MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeText(name(entry.getKey()));
+                write(entry.getValue());
+            }
+        } else if (value instanceof Scalars.IntList) {
+            Scalars.IntList list = (Scalars.IntList)value;
+            writeHead(MAJOR_ARRAY, list.size());
+            for (int i = 0; i < list.size(); i++)
+                writeLong(list.getInt(i));
+        } else if (value instanceof Scalars.DoubleList) {
+            Scalars.DoubleList list = (Scalars.DoubleList)value;
+            writeHead(MAJOR_ARRAY, list.size());
+            for (int i = 0; i < list.size(); i++)
+                writeDouble(list.getDouble(i));
+        } else if (value instanceof java.util.Collection) {
+            java.util.Collection<?> coll = (java.util.Collection<?>)value;
+            writeHead(MAJOR_ARRAY, coll.size());
+            for (Object item : coll)
+                write(item);
+        } else if (value instanceof Iterable) {
+            writeByte((MAJOR_ARRAY << 5) | INDEFINITE);
+            for (Object item : (Iterable<?>)value)
+                write(item);
+            writeByte(BREAK);
+        } else if (value instanceof Keyword || value instanceof Symbol) {
+            writeText(name(value));
+        } else {
+            writeText(value.toString());
+        }
+    }
+
+    // Decoding
+
+    private int readByte() {
+        if (_pos >= _len)
+            throw new IllegalArgumentException("Unexpected end of CBOR data");
+        return _buf[_pos++] & 0xff;
+    }
+
+    private long readRaw(int n) {
+        long value = 0;
+        for (int i = 0 ; i < n ; ++i)
+            value = (value << 8) | readByte();
+        return value;
+    }
+
+    private long readArgument(int info) {
+        if (info < 24)
+            return info;
+        switch (info) {
+        case 24: return readRaw(1);
+        case 25: return readRaw(2);
+        case 26: return readRaw(4);
+        case 27: return readRaw(8);
+        default:
+            throw new IllegalArgumentException("Unsupported CBOR additional information: " + info);
+        }
+    }
+
+    private int readLength(int info) {
+        long length = readArgument(info);
+        if (length < 0 || length > _len - _pos)
+            throw new IllegalArgumentException("Invalid CBOR length: " + length);
+        return (int)length;
+    }
+
+    private byte[] readByteString(int info) {
+        int length = readLength(info);
+        byte[] bytes = Arrays.copyOfRange(_buf, _pos, _pos + length);
+        _pos += length;
+        return bytes;
+    }
+
+    private boolean atBreak() {
+        if (_pos < _len && (_buf[_pos] & 0xff) == BREAK) {
+            _pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private Object read() {
+        int initial = readByte();
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+        case MAJOR_UNSIGNED: {
+            long value = readArgument(info);
+            return value >= 0 ? (Object)value : new BigInteger(Long.toUnsignedString(value));
+        }
+        case MAJOR_NEGATIVE: {
+            long value = readArgument(info);
+            return value >= 0 ? (Object)(-1 - value)
+                : BigInteger.ONE.negate().subtract(new BigInteger(Long.toUnsignedString(value)));
+        }
+        case MAJOR_BYTES:
+            return readByteString(info);
+        case MAJOR_TEXT: {
+            int length = readLength(info);
+            String str = new String(_buf, _pos, length, StandardCharsets.UTF_8);
+            _pos += length;
+            return str;
+        }
+        case MAJOR_ARRAY: {
+            ITransientCollection vec = PersistentVector.EMPTY.asTransient();
+            if (info == INDEFINITE) {
+                while (!atBreak())
+                    vec = vec.conj(read());
+            } else {
+                for (long n = readArgument(info) ; n > 0 ; --n)
+                    vec = vec.conj(read());
+            }
+            return vec.persistent();
+        }
+        case MAJOR_MAP: {
+            ITransientMap map = PersistentArrayMap.EMPTY.asTransient();
+            if (info == INDEFINITE) {
+                while (!atBreak())
+                    map = map.assoc(read(), read());
+            } else {
+                for (long n = readArgument(info) ; n > 0 ; --n)
+                    map = map.assoc(read(), read());
+            }
+            return map.persistent();
+        }
+        case MAJOR_TAG: {
+            long tag = readArgument(info);
+            Object item = read();
+            if ((tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM) && item instanceof byte[]) {
+                BigInteger value = new BigInteger(1, (byte[])item);
+                return tag == TAG_POSITIVE_BIGNUM ? value : value.not();
+            }
+            return item;
+        }
+        default:
+            switch (initial) {
+            case FALSE: return Boolean.FALSE;
+            case TRUE: return Boolean.TRUE;
+            case NULL: return null;
+            case 0xf7: return null; // undefined
+            case HALF_FLOAT: return halfToDouble((int)readRaw(2));
+            case FLOAT: return (double)Float.intBitsToFloat((int)readRaw(4));
+            case DOUBLE: return Double.longBitsToDouble(readRaw(8));
+            default:
+                throw new IllegalArgumentException("Unsupported CBOR simple value: " + initial);
+            }
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exp = (half >> 10) & 0x1f;
+        int mant = half & 0x3ff;
+        double value;
+        if (exp == 0)
+            value = Math.scalb((double)mant, -24);
+        else if (exp != 31)
+            value = Math.scalb((double)(mant + 1024), exp - 25);
+        else
+            value = (mant == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+}
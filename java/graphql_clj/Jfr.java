@@ -0,0 +1,81 @@
+package graphql_clj;
+
+/**
+ * Jfr emits Java Flight Recorder events for the phases of a request:
+ * parsing, schema and query validation, operation execution, and
+ * resolver calls taking longer than a threshold.  Events are
+ * graphql_clj.Parse, graphql_clj.ValidateSchema,
+ * graphql_clj.ValidateQuery, graphql_clj.Execute and
+ * graphql_clj.Resolve, the last one disabled by default.
+ *
+ * A phase calls begin, which returns null when the event type is not
+ * being recorded, or when the JVM has no jdk.jfr module, so nothing is
+ * allocated outside of a recording.  At the end of the phase, end
+ * returns true when the event should be committed, and only then are
+ * its values computed and passed to the matching commit method.
+ */
+public final class Jfr {
+    public static final int PARSE = 0;
+    public static final int VALIDATE_SCHEMA = 1;
+    public static final int VALIDATE_QUERY = 2;
+    public static final int EXECUTE = 3;
+    public static final int RESOLVE = 4;
+
+    private static final boolean AVAILABLE = available();
+
+    private Jfr() {
+    }
+
+    private static boolean available() {
+        try {
+            // Defines the event types, failing without jdk.jfr.
+            Class.forName("graphql_clj.JfrEvents");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true when events of a kind are being recorded.
+     */
+    public static boolean isEnabled(int kind) {
+        return AVAILABLE && JfrEvents.isEnabled(kind);
+    }
+
+    /**
+     * Returns a started event of a kind, or null when it is not being
+     * recorded.
+     */
+    public static Object begin(int kind) {
+        return isEnabled(kind) ? JfrEvents.begin(kind) : null;
+    }
+
+    /**
+     * Ends an event returned by begin.  Returns true when the event
+     * should be committed.
+     */
+    public static boolean end(Object event) {
+        return event != null && JfrEvents.end(event);
+    }
+
+    public static void commitParse(Object event, String kind, int length, int tokens) {
+        JfrEvents.commitParse(event, kind, length, tokens);
+    }
+
+    public static void commitValidateSchema(Object event, int types, int errors) {
+        JfrEvents.commitValidateSchema(event, types, errors);
+    }
+
+    public static void commitValidateQuery(Object event, int documentHash, int errors) {
+        JfrEvents.commitValidateQuery(event, documentHash, errors);
+    }
+
+    public static void commitExecute(Object event, String operationName, String operationType, int documentHash, int errors) {
+        JfrEvents.commitExecute(event, operationName, operationType, documentHash, errors);
+    }
+
+    public static void commitResolve(Object event, String typeName, String fieldName, String path) {
+        JfrEvents.commitResolve(event, typeName, fieldName, path);
+    }
+}
@@ -0,0 +1,201 @@
+package graphql_clj;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Flight Recorder event types.  They are defined at runtime with
+ * jdk.jfr.EventFactory, looked up reflectively, so the library builds
+ * with -source 1.8 on JDKs without jdk.jfr.  This class is only loaded
+ * through Jfr, once jdk.jfr is known to be available.
+ *
+ * Events are used through method handles, which do not allocate once
+ * compiled, so only the field values of committed events are boxed.
+ */
+final class JfrEvents {
+    private static final Class<?> ANNOTATION_ELEMENT = type("jdk.jfr.AnnotationElement");
+    private static final Class<?> VALUE_DESCRIPTOR = type("jdk.jfr.ValueDescriptor");
+    private static final Class<?> EVENT = type("jdk.jfr.Event");
+    private static final Class<?> EVENT_TYPE = type("jdk.jfr.EventType");
+    private static final Class<?> EVENT_FACTORY = type("jdk.jfr.EventFactory");
+
+    private static final MethodHandle NEW_EVENT = handle(EVENT_FACTORY, "newEvent", EVENT);
+    private static final MethodHandle IS_ENABLED = handle(EVENT_TYPE, "isEnabled", boolean.class);
+    private static final MethodHandle BEGIN = handle(EVENT, "begin", void.class);
+    private static final MethodHandle END = handle(EVENT, "end", void.class);
+    private static final MethodHandle SHOULD_COMMIT = handle(EVENT, "shouldCommit", boolean.class);
+    private static final MethodHandle COMMIT = handle(EVENT, "commit", void.class);
+    private static final MethodHandle SET = handle(EVENT, "set", void.class, int.class, Object.class);
+
+    // Indexed by the kinds of Jfr.
+    private static final Object[] FACTORIES = {
+        factory(event("graphql_clj.Parse", "GraphQL Parse"),
+                field(String.class, "kind", "Document Kind"),
+                field(int.class, "length", "Document Length"),
+                field(int.class, "tokens", "Tokens")),
+        factory(event("graphql_clj.ValidateSchema", "GraphQL Validate Schema"),
+                field(int.class, "types", "Types"),
+                field(int.class, "errors", "Errors")),
+        factory(event("graphql_clj.ValidateQuery", "GraphQL Validate Query"),
+                field(int.class, "documentHash", "Document Hash"),
+                field(int.class, "errors", "Errors")),
+        factory(event("graphql_clj.Execute", "GraphQL Execute Operation"),
+                field(String.class, "operationName", "Operation Name"),
+                field(String.class, "operationType", "Operation Type"),
+                field(int.class, "documentHash", "Document Hash"),
+                field(int.class, "errors", "Errors")),
+        factory(Arrays.asList(annotation("jdk.jfr.Name", "graphql_clj.Resolve"),
+                              annotation("jdk.jfr.Label", "GraphQL Resolve Field"),
+                              annotation("jdk.jfr.Description", "A resolver call taking longer than the threshold"),
+                              annotation("jdk.jfr.Category", new String[] {"GraphQL"}),
+                              annotation("jdk.jfr.Enabled", false),
+                              annotation("jdk.jfr.Threshold", "10 ms")),
+                field(String.class, "typeName", "Type Name"),
+                field(String.class, "fieldName", "Field Name"),
+                field(String.class, "path", "Path"))
+    };
+
+    private static final Object[] TYPES = eventTypes();
+
+    private JfrEvents() {
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a handle to a public method, taking the receiver and
+     * returning references as Object.
+     */
+    private static MethodHandle handle(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                .findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+            return handle.asType(handle.type()
+                                 .changeParameterType(0, Object.class)
+                                 .changeReturnType(returnType.isPrimitive() ? returnType : Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object annotation(String annotationType, Object value) {
+        try {
+            return ANNOTATION_ELEMENT.getConstructor(Class.class, Object.class)
+                .newInstance((Class<? extends java.lang.annotation.Annotation>)type(annotationType), value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Object> event(String name, String label) {
+        return Arrays.asList(annotation("jdk.jfr.Name", name),
+                             annotation("jdk.jfr.Label", label),
+                             annotation("jdk.jfr.Category", new String[] {"GraphQL"}),
+                             annotation("jdk.jfr.StackTrace", false));
+    }
+
+    private static Object field(Class<?> fieldType, String name, String label) {
+        try {
+            return VALUE_DESCRIPTOR.getConstructor(Class.class, String.class, List.class)
+                .newInstance(fieldType, name, Arrays.asList(annotation("jdk.jfr.Label", label)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object factory(List<Object> annotations, Object... fields) {
+        try {
+            return EVENT_FACTORY.getMethod("create", List.class, List.class)
+                .invoke(null, annotations, new ArrayList<>(Arrays.asList(fields)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object[] eventTypes() {
+        try {
+            Object[] types = new Object[FACTORIES.length];
+            for (int i = 0 ; i < types.length ; ++i)
+                types[i] = EVENT_FACTORY.getMethod("getEventType").invoke(FACTORIES[i]);
+            return types;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        return new IllegalStateException(t);
+    }
+
+    static boolean isEnabled(int kind) {
+        try {
+            return (boolean)IS_ENABLED.invokeExact(TYPES[kind]);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object begin(int kind) {
+        try {
+            Object event = (Object)NEW_EVENT.invokeExact(FACTORIES[kind]);
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean end(Object event) {
+        try {
+            END.invokeExact(event);
+            return (boolean)SHOULD_COMMIT.invokeExact(event);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static void commit(Object event, Object... values) {
+        try {
+            for (int i = 0 ; i < values.length ; ++i)
+                SET.invokeExact(event, i, values[i]);
+            COMMIT.invokeExact(event);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void commitParse(Object event, String kind, int length, int tokens) {
+        commit(event, kind, length, tokens);
+    }
+
+    static void commitValidateSchema(Object event, int types, int errors) {
+        commit(event, types, errors);
+    }
+
+    static void commitValidateQuery(Object event, int documentHash, int errors) {
+        commit(event, documentHash, errors);
+    }
+
+    static void commitExecute(Object event, String operationName, String operationType, int documentHash, int errors) {
+        commit(event, operationName, operationType, documentHash, errors);
+    }
+
+    static void commitResolve(Object event, String typeName, String fieldName, String path) {
+        commit(event, typeName, fieldName, path);
+    }
+}
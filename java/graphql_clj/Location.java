@@ -34,6 +34,14 @@ public class Location extends AbstractRecord {
         _index = index;
     }
 
+    public int getLine() {
+        return _line;
+    }
+
+    public int getColumn() {
+        return _column;
+    }
+
     public int getIndex() {
         return _index;
     }
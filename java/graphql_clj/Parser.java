@@ -12,6 +12,41 @@ import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class Parser {
+    /**
+     * Resource limits of a parse.  A document exceeding a limit is
+     * rejected with a ParseException as soon as the lexer reaches the
+     * limit, before the rest of the document is read.
+     */
+    public static final class Limits {
+        /**
+         * No limit on the size and number of tokens, and a nesting
+         * depth of brackets well below what would overflow the stack
+         * of the recursive descent.
+         */
+        public static final Limits DEFAULT = new Limits(Integer.MAX_VALUE, Integer.MAX_VALUE, 500, Integer.MAX_VALUE);
+
+        final int _maxDocumentSize;
+        final int _maxTokens;
+        final int _maxDepth;
+        final int _maxStringLength;
+
+        /**
+         * @param maxDocumentSize maximum number of characters of the
+         * document
+         * @param maxTokens maximum number of tokens, excluding ignored
+         * tokens
+         * @param maxDepth maximum nesting depth of '{', '[' and '('
+         * @param maxStringLength maximum number of characters of a
+         * string literal, including its quotes and escapes
+         */
+        public Limits(int maxDocumentSize, int maxTokens, int maxDepth, int maxStringLength) {
+            _maxDocumentSize = maxDocumentSize;
+            _maxTokens = maxTokens;
+            _maxDepth = maxDepth;
+            _maxStringLength = maxStringLength;
+        }
+    }
+
     private static final int TOKEN_EOF = -1;
     private static final int TOKEN_INTEGER = 1;
     private static final int TOKEN_FLOAT = 2;
@@ -104,11 +139,23 @@ public class Parser {
     private Object[] _stack = new Object[64];
     private int _stackTop;
 
+    private final Limits _limits;
+    private int _tokenCount;
+    private int _depth;
+
     public Parser(String input) {
+        this(input, Limits.DEFAULT);
+    }
+
+    public Parser(String input, Limits limits) {
         _line = 1;
         _lineStart = -1;
         _input = input;
         _limit = input.length();
+        _limits = limits;
+        if (_limit > limits._maxDocumentSize)
+            throw new ParseException(
+                location(0), "document exceeds the maximum size of " + limits._maxDocumentSize + " characters");
         // populate the first token
         next();
     }
@@ -179,6 +226,19 @@ public class Parser {
 
     private void next() {
         _token = nextImpl();
+        if (_token == TOKEN_EOF)
+            return;
+        if (++_tokenCount > _limits._maxTokens)
+            throw tokenError(_tokenStart, "document exceeds the maximum of " + _limits._maxTokens + " tokens");
+        switch (_token) {
+        case '{': case '[': case '(':
+            if (++_depth > _limits._maxDepth)
+                throw tokenError(_tokenStart, "document exceeds the maximum nesting depth of " + _limits._maxDepth);
+            break;
+        case '}': case ']': case ')':
+            --_depth;
+            break;
+        }
     }
 
     void tabAdjust(int tabIndex) {
@@ -311,6 +371,8 @@ public class Parser {
                 _startLocation = location(_tokenStart);
                 _stringValue.setLength(0);
                 for (i=_tokenStart+1 ; i<_limit ; ) {
+                    if (i - _tokenStart >= _limits._maxStringLength)
+                        throw tokenError(_tokenStart, "string exceeds the maximum length of " + _limits._maxStringLength + " characters");
                     if ('"' == (ch = _input.charAt(i++))) {
                         _image = _input.substring(_tokenStart, _index = i);
                         return TOKEN_STRING;
@@ -614,9 +676,16 @@ public class Parser {
         IObj type = parseTypeRef();
         push(TYPE, type);
 
+        Object end = type.meta().valAt(END);
+        IObj directives = parseDirectives();
+        if (directives != null) {
+            end = directives.meta().valAt(END);
+            push(DIRECTIVES, directives.withMeta(null));
+        }
+
         return nodeWithLoc(
             name.meta().valAt(START),
-            type.meta().valAt(END),
+            end,
             pop(topIndex));
     }
 
@@ -847,9 +916,10 @@ public class Parser {
     }
 
     public IObj parseSchema() {
+        Object event = Jfr.begin(Jfr.PARSE);
         PersistentVector tsd = parseTypeSystemDefinitions();
-        Object start;
-        Object end;
+        if (Jfr.end(event))
+            Jfr.commitParse(event, "schema", _limit, _tokenCount);
         return map(
             TAG, SCHEMA,
             TYPE_SYSTEM_DEFINITIONS, tsd);
@@ -1120,7 +1190,7 @@ public class Parser {
         push(TAG, tag);
 
         Location start = startLocation();
-        next(); // "query" or "mutation"
+        next(); // "query", "mutation" or "subscription"
         Symbol name = null;
         if (TOKEN_IDENT == _token) {
             name = parseName();
@@ -1175,17 +1245,133 @@ public class Parser {
                 return parseOperationDefinition(QUERY_DEFINITION);
             case "mutation":
                 return parseOperationDefinition(MUTATION);
+            case "subscription":
+                return parseOperationDefinition(SUBSCRIPTION);
             case "fragment":
                 return parseFragmentDefinition();
             }
         }
-        throw expectedError("'{', 'query', 'mutation', or 'fragment'");
+        throw expectedError("'{', 'query', 'mutation', 'subscription', or 'fragment'");
+    }
+
+    private static boolean isWordToken(int kind) {
+        return kind == TOKEN_IDENT || kind == TOKEN_INTEGER || kind == TOKEN_FLOAT;
+    }
+
+    /**
+     * Skips the rest of a list or object value whose opening bracket
+     * is the current token.
+     */
+    private void skipCompositeValue() {
+        int depth = 0;
+        do {
+            switch (_token) {
+            case '[': case '{':
+                depth++;
+                break;
+            case ']': case '}':
+                depth--;
+                break;
+            case TOKEN_EOF:
+                throw expectedError("']' or '}'");
+            }
+            next();
+        } while (depth > 0);
+    }
+
+    /**
+     * Returns the canonical text of a query document from its tokens
+     * alone, without building the document.  Ignored tokens
+     * (whitespace, commas and comments) are dropped and the remaining
+     * tokens are separated by a single space only where two names or
+     * numbers would otherwise run together, so documents that differ
+     * only in formatting have the same canonical text.
+     *
+     * When hoistLiterals is true, every literal argument value and
+     * variable default value, including lists and objects, is
+     * replaced by "$_", so operations that only differ in their
+     * inline values share the canonical text.  The text is then no
+     * longer a valid document.
+     *
+     * Only lexical errors are reported; the document is not checked
+     * against the grammar.
+     */
+    public String canonicalQuery(boolean hoistLiterals) {
+        final StringBuilder buf = new StringBuilder(_limit);
+        // 0 outside of parentheses, '(' in arguments, '$' in
+        // variable definitions
+        int parens = 0;
+        int prev = TOKEN_EOF;
+        boolean valueNext = false;
+
+        while (_token != TOKEN_EOF) {
+            int kind = _token;
+            if (valueNext && hoistLiterals && kind != '$') {
+                if ('[' == kind || '{' == kind)
+                    skipCompositeValue();
+                else
+                    next();
+                if (isWordToken(prev))
+                    buf.append(' ');
+                buf.append("$_");
+                prev = TOKEN_IDENT;
+                valueNext = false;
+                continue;
+            }
+            valueNext = false;
+
+            if (isWordToken(prev) && isWordToken(kind))
+                buf.append(' ');
+            switch (kind) {
+            case TOKEN_IDENT:
+            case TOKEN_INTEGER:
+            case TOKEN_FLOAT:
+            case TOKEN_STRING:
+                buf.append(_image);
+                break;
+            case TOKEN_ELLIPSIS:
+                buf.append("...");
+                break;
+            default:
+                buf.append((char)kind);
+                break;
+            }
+            next();
+
+            switch (kind) {
+            case '(':
+                parens = ('$' == _token) ? '$' : '(';
+                break;
+            case ')':
+                parens = 0;
+                break;
+            case ':':
+                valueNext = ('(' == parens);
+                break;
+            case '=':
+                valueNext = ('$' == parens);
+                break;
+            case '$':
+                // a variable name follows, never a literal
+                if (TOKEN_IDENT == _token) {
+                    buf.append(_image);
+                    next();
+                    kind = TOKEN_IDENT;
+                }
+                break;
+            }
+            prev = kind;
+        }
+        return buf.toString();
     }
 
     public IObj parseQueryDocument() {
+        Object event = Jfr.begin(Jfr.PARSE);
         while (_token != TOKEN_EOF)
             push(parseQueryElement());
 
+        if (Jfr.end(event))
+            Jfr.commitParse(event, "query", _limit, _tokenCount);
         return popVec(0).withMeta(
             map(START, new Location(1, 1, 0),
                 END, location(_index)));
@@ -0,0 +1,403 @@
+package graphql_clj;
+
+import clojure.lang.Keyword;
+import clojure.lang.Named;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Printer writes query documents, as returned by
+ * Parser.parseQueryDocument or by the query validator, back to
+ * GraphQL text.  The text is minimal: ignored tokens are dropped and
+ * a single space is written only where two names or numbers would
+ * otherwise run together, the same as Parser.canonicalQuery.  Strings
+ * are written from their values, so block strings become regular
+ * strings.
+ *
+ * Tokens are appended directly to the output, without building
+ * intermediate strings.  Printing can be limited to one operation, and
+ * can drop the fragments and variable definitions the printed
+ * operations do not use.
+ */
+public final class Printer {
+    private static final Keyword ALIAS = Keyword.intern("alias");
+    private static final Keyword ARGUMENTS = Keyword.intern("arguments");
+    private static final Keyword BOOLEAN_VALUE = Keyword.intern("boolean-value");
+    private static final Keyword DEFAULT_VALUE = Keyword.intern("default-value");
+    private static final Keyword DIRECTIVES = Keyword.intern("directives");
+    private static final Keyword ENUM_VALUE = Keyword.intern("enum-value");
+    private static final Keyword FIELDS = Keyword.intern("fields");
+    private static final Keyword FLOAT_VALUE = Keyword.intern("float-value");
+    private static final Keyword FRAGMENT_DEFINITION = Keyword.intern("fragment-definition");
+    private static final Keyword FRAGMENT_SPREAD = Keyword.intern("fragment-spread");
+    private static final Keyword IMAGE = Keyword.intern("image");
+    private static final Keyword INLINE_FRAGMENT = Keyword.intern("inline-fragment");
+    private static final Keyword INNER_TYPE = Keyword.intern("inner-type");
+    private static final Keyword INT_VALUE = Keyword.intern("int-value");
+    private static final Keyword LIST_TYPE = Keyword.intern("list-type");
+    private static final Keyword LIST_VALUE = Keyword.intern("list-value");
+    private static final Keyword MUTATION = Keyword.intern("mutation");
+    private static final Keyword NAME = Keyword.intern("name");
+    private static final Keyword NULL_VALUE = Keyword.intern("null-value");
+    private static final Keyword OBJECT_VALUE = Keyword.intern("object-value");
+    private static final Keyword ON = Keyword.intern("on");
+    private static final Keyword QUERY_DEFINITION = Keyword.intern("query-definition");
+    private static final Keyword REQUIRED = Keyword.intern("required");
+    private static final Keyword SELECTION_FIELD = Keyword.intern("selection-field");
+    private static final Keyword SELECTION_SET = Keyword.intern("selection-set");
+    private static final Keyword STRING_VALUE = Keyword.intern("string-value");
+    private static final Keyword SUBSCRIPTION = Keyword.intern("subscription");
+    private static final Keyword TAG = Keyword.intern("tag");
+    private static final Keyword TYPE = Keyword.intern("type");
+    private static final Keyword VALUE = Keyword.intern("value");
+    private static final Keyword VALUES = Keyword.intern("values");
+    private static final Keyword VARIABLE_DEFINITIONS = Keyword.intern("variable-definitions");
+    private static final Keyword VARIABLE_REFERENCE = Keyword.intern("variable-reference");
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Appendable _out;
+    private boolean _word;
+
+    private Printer(Appendable out) {
+        _out = out;
+    }
+
+    /**
+     * Prints a query document to out.
+     *
+     * @param operationName the name of the only operation to print, or
+     * null to print every operation
+     * @param dropUnusedFragments when true, only the fragments spread
+     * by the printed operations are printed
+     * @param dropUnusedVariables when true, the variable definitions
+     * an operation does not reference are left out
+     */
+    public static void print(Iterable<?> document, String operationName, boolean dropUnusedFragments,
+                             boolean dropUnusedVariables, Appendable out) throws IOException {
+        Map<String, Map<?, ?>> fragments = new HashMap<>();
+        boolean operations = false;
+        for (Object definition : document) {
+            Map<?, ?> node = (Map<?, ?>)definition;
+            if (FRAGMENT_DEFINITION == node.get(TAG))
+                fragments.put(name(node.get(NAME)), node);
+            else
+                operations = true;
+        }
+
+        Set<String> usedFragments = new HashSet<>();
+        Map<Object, Set<String>> usedVariables = new IdentityHashMap<>();
+        if (dropUnusedFragments || dropUnusedVariables) {
+            for (Object definition : document) {
+                Map<?, ?> node = (Map<?, ?>)definition;
+                if (FRAGMENT_DEFINITION == node.get(TAG) || !printed(node, operationName))
+                    continue;
+                Set<String> spreads = new HashSet<>();
+                Set<String> variables = new HashSet<>();
+                collectUses(node.get(DIRECTIVES), fragments, spreads, variables);
+                collectUses(node.get(SELECTION_SET), fragments, spreads, variables);
+                usedFragments.addAll(spreads);
+                usedVariables.put(node, variables);
+            }
+        }
+
+        Printer printer = new Printer(out);
+        for (Object definition : document) {
+            Map<?, ?> node = (Map<?, ?>)definition;
+            if (FRAGMENT_DEFINITION == node.get(TAG)) {
+                if (!(dropUnusedFragments && operations) || usedFragments.contains(name(node.get(NAME))))
+                    printer.fragmentDefinition(node);
+            } else if (printed(node, operationName)) {
+                printer.operation(node, dropUnusedVariables ? usedVariables.get(node) : null);
+            }
+        }
+    }
+
+    public static String print(Iterable<?> document, String operationName, boolean dropUnusedFragments,
+                               boolean dropUnusedVariables) {
+        StringBuilder buf = new StringBuilder(256);
+        try {
+            print(document, operationName, dropUnusedFragments, dropUnusedVariables, buf);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Collects the fragments spread by a node, including through the
+     * fragments it spreads, and the variables referenced by the node
+     * and those fragments.
+     */
+    private static void collectUses(Object node, Map<String, Map<?, ?>> fragments,
+                                    Set<String> spreads, Set<String> variables) {
+        if (node instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)node;
+            Object tag = map.get(TAG);
+            if (VARIABLE_REFERENCE == tag) {
+                variables.add(name(map.get(NAME)));
+            } else if (FRAGMENT_SPREAD == tag) {
+                String fragmentName = name(map.get(NAME));
+                collectUses(map.get(DIRECTIVES), fragments, spreads, variables);
+                if (spreads.add(fragmentName) && fragments.containsKey(fragmentName)) {
+                    Map<?, ?> fragment = fragments.get(fragmentName);
+                    collectUses(fragment.get(DIRECTIVES), fragments, spreads, variables);
+                    collectUses(fragment.get(SELECTION_SET), fragments, spreads, variables);
+                }
+            } else {
+                for (Object value : map.values())
+                    if (!(value instanceof Keyword))
+                        collectUses(value, fragments, spreads, variables);
+            }
+        } else if (node instanceof Iterable) {
+            for (Object item : (Iterable<?>)node)
+                collectUses(item, fragments, spreads, variables);
+        }
+    }
+
+    private static boolean printed(Map<?, ?> operation, String operationName) {
+        return operationName == null || operationName.equals(name(operation.get(NAME)));
+    }
+
+    private static String name(Object name) {
+        if (name instanceof Named)
+            return ((Named)name).getName();
+        return name == null ? null : name.toString();
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    private static boolean isEmpty(Object nodes) {
+        return nodes == null || !((Iterable<?>)nodes).iterator().hasNext();
+    }
+
+    // Tokens
+
+    private void word(String token) throws IOException {
+        if (_word && isWordChar(token.charAt(0)))
+            _out.append(' ');
+        _out.append(token);
+        _word = isWordChar(token.charAt(token.length() - 1));
+    }
+
+    private void punct(char c) throws IOException {
+        _out.append(c);
+        _word = false;
+    }
+
+    private void ellipsis() throws IOException {
+        _out.append("...");
+        _word = false;
+    }
+
+    private void string(String s) throws IOException {
+        _out.append('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"': _out.append("\\\""); break;
+            case '\\': _out.append("\\\\"); break;
+            case '\n': _out.append("\\n"); break;
+            case '\r': _out.append("\\r"); break;
+            case '\t': _out.append("\\t"); break;
+            case '\b': _out.append("\\b"); break;
+            case '\f': _out.append("\\f"); break;
+            default:
+                if (c < 0x20) {
+                    _out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    _out.append(c);
+                }
+            }
+        }
+        _out.append('"');
+        _word = false;
+    }
+
+    // Definitions
+
+    private void operation(Map<?, ?> node, Set<String> usedVariables) throws IOException {
+        Object tag = node.get(TAG);
+        Object name = node.get(NAME);
+        Object variableDefinitions = node.get(VARIABLE_DEFINITIONS);
+        if (usedVariables != null && !isEmpty(variableDefinitions)) {
+            boolean used = false;
+            for (Object def : (Iterable<?>)variableDefinitions)
+                used |= usedVariables.contains(name(((Map<?, ?>)def).get(NAME)));
+            if (!used)
+                variableDefinitions = null;
+        }
+
+        if (SELECTION_SET == tag
+            || (QUERY_DEFINITION == tag && name == null && isEmpty(variableDefinitions) && isEmpty(node.get(DIRECTIVES)))) {
+            selectionSet(node.get(SELECTION_SET));
+            return;
+        }
+        if (QUERY_DEFINITION == tag)
+            word("query");
+        else if (MUTATION == tag)
+            word("mutation");
+        else if (SUBSCRIPTION == tag)
+            word("subscription");
+        else
+            throw new IllegalArgumentException("Not an executable definition: " + tag);
+        if (name != null)
+            word(name(name));
+        if (!isEmpty(variableDefinitions)) {
+            punct('(');
+            for (Object def : (Iterable<?>)variableDefinitions) {
+                Map<?, ?> variable = (Map<?, ?>)def;
+                if (usedVariables != null && !usedVariables.contains(name(variable.get(NAME))))
+                    continue;
+                punct('$');
+                word(name(variable.get(NAME)));
+                punct(':');
+                type(variable.get(TYPE));
+                if (variable.get(DEFAULT_VALUE) != null) {
+                    punct('=');
+                    value(variable.get(DEFAULT_VALUE));
+                }
+            }
+            punct(')');
+        }
+        directives(node.get(DIRECTIVES));
+        selectionSet(node.get(SELECTION_SET));
+    }
+
+    private void fragmentDefinition(Map<?, ?> node) throws IOException {
+        word("fragment");
+        word(name(node.get(NAME)));
+        if (node.get(ON) != null) {
+            word("on");
+            type(node.get(ON));
+        }
+        directives(node.get(DIRECTIVES));
+        selectionSet(node.get(SELECTION_SET));
+    }
+
+    private void type(Object node) throws IOException {
+        Map<?, ?> type = (Map<?, ?>)node;
+        if (LIST_TYPE == type.get(TAG)) {
+            punct('[');
+            type(type.get(INNER_TYPE));
+            punct(']');
+        } else {
+            word(name(type.get(NAME)));
+        }
+        if (Boolean.TRUE.equals(type.get(REQUIRED)))
+            punct('!');
+    }
+
+    // Selections
+
+    private void selectionSet(Object selections) throws IOException {
+        punct('{');
+        for (Object selection : (Iterable<?>)selections) {
+            Map<?, ?> node = (Map<?, ?>)selection;
+            Object tag = node.get(TAG);
+            if (SELECTION_FIELD == tag) {
+                if (node.get(ALIAS) != null) {
+                    word(name(node.get(ALIAS)));
+                    punct(':');
+                }
+                word(name(node.get(NAME)));
+                arguments(node.get(ARGUMENTS));
+                directives(node.get(DIRECTIVES));
+                if (!isEmpty(node.get(SELECTION_SET)))
+                    selectionSet(node.get(SELECTION_SET));
+            } else if (FRAGMENT_SPREAD == tag) {
+                ellipsis();
+                word(name(node.get(NAME)));
+                directives(node.get(DIRECTIVES));
+            } else if (INLINE_FRAGMENT == tag) {
+                ellipsis();
+                if (node.get(ON) != null) {
+                    word("on");
+                    type(node.get(ON));
+                }
+                directives(node.get(DIRECTIVES));
+                selectionSet(node.get(SELECTION_SET));
+            } else {
+                throw new IllegalArgumentException("Not a selection: " + tag);
+            }
+        }
+        punct('}');
+    }
+
+    private void arguments(Object arguments) throws IOException {
+        if (isEmpty(arguments))
+            return;
+        punct('(');
+        for (Object argument : (Iterable<?>)arguments) {
+            Map<?, ?> node = (Map<?, ?>)argument;
+            word(name(node.get(NAME)));
+            punct(':');
+            value(node.get(VALUE));
+        }
+        punct(')');
+    }
+
+    private void directives(Object directives) throws IOException {
+        if (isEmpty(directives))
+            return;
+        for (Object directive : (Iterable<?>)directives) {
+            Map<?, ?> node = (Map<?, ?>)directive;
+            punct('@');
+            word(name(node.get(NAME)));
+            arguments(node.get(ARGUMENTS));
+        }
+    }
+
+    // Values
+
+    private void value(Object node) throws IOException {
+        Map<?, ?> map = (Map<?, ?>)node;
+        Object tag = map.get(TAG);
+        Object value = map.get(VALUE);
+        if (VARIABLE_REFERENCE == tag) {
+            punct('$');
+            word(name(map.get(NAME)));
+        } else if (INT_VALUE == tag || FLOAT_VALUE == tag) {
+            Object image = map.get(IMAGE);
+            word(image != null ? image.toString() : String.valueOf(value));
+        } else if (STRING_VALUE == tag) {
+            if (value instanceof String)
+                string((String)value);
+            else
+                word(map.get(IMAGE).toString());
+        } else if (BOOLEAN_VALUE == tag) {
+            word(Boolean.TRUE.equals(value) ? "true" : "false");
+        } else if (NULL_VALUE == tag) {
+            word("null");
+        } else if (ENUM_VALUE == tag) {
+            word(name(value));
+        } else if (LIST_VALUE == tag) {
+            punct('[');
+            Object values = map.get(VALUES);
+            if (values != null)
+                for (Object item : (Iterable<?>)values)
+                    value(item);
+            punct(']');
+        } else if (OBJECT_VALUE == tag) {
+            punct('{');
+            Object fields = map.get(FIELDS);
+            if (fields != null) {
+                for (Object field : (Iterable<?>)fields) {
+                    Map<?, ?> f = (Map<?, ?>)field;
+                    word(name(f.get(NAME)));
+                    punct(':');
+                    value(f.get(VALUE));
+                }
+            }
+            punct('}');
+        } else {
+            throw new IllegalArgumentException("Not a value: " + tag);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package graphql_clj;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * ResultObject is the completed value of an object selection.  All
+ * objects completed for the same selection set share one Layout of
+ * their response keys, so a row only holds an array of values in the
+ * order of the layout.  Reads and iteration work directly on the
+ * array; the persistent map is only created when the object is
+ * modified.
+ */
+public final class ResultObject extends AbstractRecord {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Ordered response keys of an object selection.
+     */
+    public static final class Layout {
+        // Up to this many keys are found by a linear scan.
+        private static final int SCAN_LIMIT = 8;
+
+        private final String[] _keys;
+        private final Set<String> _keySet;
+        private final Map<Object, Integer> _index;
+        // The keys encoded by Cbor, computed on first use.  Racing
+        // threads compute the same encoding.
+        private volatile byte[][] _cborKeys;
+
+        public Layout(String[] keys) {
+            _keys = keys.clone();
+            _keySet = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(_keys)));
+            if (_keys.length > SCAN_LIMIT) {
+                _index = new HashMap<>();
+                for (int i = 0 ; i < _keys.length ; ++i)
+                    _index.put(_keys[i], i);
+            } else {
+                _index = null;
+            }
+        }
+
+        public int size() {
+            return _keys.length;
+        }
+
+        public String key(int i) {
+            return _keys[i];
+        }
+
+        byte[][] cborKeys() {
+            byte[][] keys = _cborKeys;
+            if (keys == null)
+                _cborKeys = keys = Cbor.encodeKeys(_keys);
+            return keys;
+        }
+
+        int indexOf(Object key) {
+            if (_index != null) {
+                Integer i = _index.get(key);
+                return (i == null) ? -1 : i;
+            }
+            for (int i = 0 ; i < _keys.length ; ++i) {
+                if (_keys[i].equals(key))
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    private final Layout _layout;
+    private final Object[] _values;
+
+    /**
+     * Creates an object from values in the order of the layout.  The
+     * array is owned by the object and must not be modified
+     * afterwards.
+     */
+    public ResultObject(Layout layout, Object[] values) {
+        if (values.length != layout.size())
+            throw new IllegalArgumentException(
+                "Expected " + layout.size() + " values, got " + values.length);
+        _layout = layout;
+        _values = values;
+    }
+
+    public Layout layout() {
+        return _layout;
+    }
+
+    Object value(int i) {
+        return _values[i];
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return _layout._keySet;
+    }
+
+    @Override
+    protected PersistentArrayMap toMap(IPersistentMap meta) {
+        Object[] kvs = new Object[_values.length * 2];
+        for (int i = 0 ; i < _values.length ; ++i) {
+            kvs[2*i] = _layout._keys[i];
+            kvs[2*i + 1] = _values[i];
+        }
+        return new PersistentArrayMap(meta, kvs);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        int i = _layout.indexOf(key);
+        return (i < 0) ? notFound : _values[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return _layout.indexOf(key) >= 0;
+    }
+
+    @Override
+    public int count() {
+        return _values.length;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int _i;
+
+            @Override
+            public boolean hasNext() {
+                return _i < _values.length;
+            }
+
+            @Override
+            public Object next() {
+                if (_i >= _values.length)
+                    throw new NoSuchElementException();
+                int i = _i++;
+                return MapEntry.create(_layout._keys[i], _values[i]);
+            }
+        };
+    }
+
+    @Override
+    public Object kvreduce(IFn f, Object init) {
+        for (int i = 0 ; i < _values.length ; ++i) {
+            init = f.invoke(init, _layout._keys[i], _values[i]);
+            if (RT.isReduced(init))
+                return ((IDeref)init).deref();
+        }
+        return init;
+    }
+}
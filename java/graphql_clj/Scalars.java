@@ -0,0 +1,194 @@
+package graphql_clj;
+
+import clojure.lang.BigInt;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Scalars coerces values of the built-in Int, Float and Boolean
+ * scalars.  Lists of Int and Float values are serialized into lists
+ * backed by an int[] or a double[], read directly from primitive
+ * arrays when the resolver returns one, so a large numeric list is
+ * checked in one loop instead of being completed item by item.
+ *
+ * Coercion failures throw IllegalArgumentException, which the
+ * executor reports as a field error.
+ */
+public final class Scalars {
+    private static final BigInteger INT_MIN = BigInteger.valueOf(Integer.MIN_VALUE);
+    private static final BigInteger INT_MAX = BigInteger.valueOf(Integer.MAX_VALUE);
+
+    private Scalars() {
+    }
+
+    private static IllegalArgumentException cannotRepresent(String type, Object value) {
+        return new IllegalArgumentException(String.format("%s cannot represent value: %s", type, value));
+    }
+
+    /**
+     * Returns the int value of an integral number within the range of
+     * a signed 32 bit integer.
+     */
+    public static int toInt(Object value) {
+        if (value instanceof Integer)
+            return (Integer)value;
+        if (value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long n = ((Number)value).longValue();
+            if (n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE)
+                return (int)n;
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number)value).doubleValue();
+            if (d == Math.rint(d) && d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE)
+                return (int)d;
+        } else if (value instanceof BigInt || value instanceof BigInteger) {
+            BigInteger n = value instanceof BigInt ? ((BigInt)value).toBigInteger() : (BigInteger)value;
+            if (n.compareTo(INT_MIN) >= 0 && n.compareTo(INT_MAX) <= 0)
+                return n.intValue();
+        } else if (value instanceof BigDecimal) {
+            try {
+                return ((BigDecimal)value).intValueExact();
+            } catch (ArithmeticException e) {
+                // falls through to the error
+            }
+        }
+        throw cannotRepresent("Int", value);
+    }
+
+    /**
+     * Returns the double value of a finite number.
+     */
+    public static double toDouble(Object value) {
+        if (value instanceof Number) {
+            double d = ((Number)value).doubleValue();
+            if (!Double.isNaN(d) && !Double.isInfinite(d))
+                return d;
+        }
+        throw cannotRepresent("Float", value);
+    }
+
+    public static Object serializeInt(Object value) {
+        return value instanceof Integer ? value : Integer.valueOf(toInt(value));
+    }
+
+    public static Object serializeFloat(Object value) {
+        return value instanceof Double ? value : Double.valueOf(toDouble(value));
+    }
+
+    public static Object serializeBoolean(Object value) {
+        if (value instanceof Boolean)
+            return value;
+        throw cannotRepresent("Boolean", value);
+    }
+
+    /**
+     * Serializes a list of Int values.  Returns null when the value is
+     * not a collection or primitive array, or has null items, which
+     * are completed item by item.  A primitive array of ints is used
+     * without being copied.
+     */
+    public static IntList serializeIntList(Object value) {
+        if (value instanceof int[])
+            return new IntList((int[])value);
+        if (value instanceof long[]) {
+            long[] longs = (long[])value;
+            int[] ints = new int[longs.length];
+            for (int i = 0; i < longs.length; i++) {
+                if (longs[i] < Integer.MIN_VALUE || longs[i] > Integer.MAX_VALUE)
+                    throw cannotRepresent("Int", longs[i]);
+                ints[i] = (int)longs[i];
+            }
+            return new IntList(ints);
+        }
+        if (value instanceof Collection) {
+            int[] ints = new int[((Collection<?>)value).size()];
+            int i = 0;
+            for (Object item : (Collection<?>)value) {
+                if (item == null)
+                    return null;
+                ints[i++] = toInt(item);
+            }
+            return new IntList(ints);
+        }
+        return null;
+    }
+
+    /**
+     * Serializes a list of Float values, like serializeIntList.  A
+     * primitive array of doubles is used without being copied.
+     */
+    public static DoubleList serializeFloatList(Object value) {
+        if (value instanceof double[])
+            return new DoubleList((double[])value);
+        if (value instanceof float[]) {
+            float[] floats = (float[])value;
+            double[] doubles = new double[floats.length];
+            for (int i = 0; i < floats.length; i++)
+                doubles[i] = toDouble(floats[i]);
+            return new DoubleList(doubles);
+        }
+        if (value instanceof Collection) {
+            double[] doubles = new double[((Collection<?>)value).size()];
+            int i = 0;
+            for (Object item : (Collection<?>)value) {
+                if (item == null)
+                    return null;
+                doubles[i++] = toDouble(item);
+            }
+            return new DoubleList(doubles);
+        }
+        return null;
+    }
+
+    /**
+     * An immutable list of Int values backed by an int[].
+     */
+    public static final class IntList extends AbstractList<Object> implements RandomAccess {
+        private final int[] _values;
+
+        IntList(int[] values) {
+            _values = values;
+        }
+
+        public int getInt(int index) {
+            return _values[index];
+        }
+
+        @Override
+        public Object get(int index) {
+            return _values[index];
+        }
+
+        @Override
+        public int size() {
+            return _values.length;
+        }
+    }
+
+    /**
+     * An immutable list of Float values backed by a double[].
+     */
+    public static final class DoubleList extends AbstractList<Object> implements RandomAccess {
+        private final double[] _values;
+
+        DoubleList(double[] values) {
+            _values = values;
+        }
+
+        public double getDouble(int index) {
+            return _values[index];
+        }
+
+        @Override
+        public Object get(int index) {
+            return _values[index];
+        }
+
+        @Override
+        public int size() {
+            return _values.length;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package graphql_clj;
+
+import clojure.lang.IObj;
+import clojure.lang.IPersistentList;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.Keyword;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentList;
+import clojure.lang.Symbol;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Binary encoding of a validated schema.  The encoding covers the
+ * values found in parsed and validated schemas: nil, booleans, longs,
+ * doubles, strings, keywords, symbols, vectors, maps, sets, lists and
+ * Locations, along with their metadata.
+ *
+ * Objects are numbered in the order they are completed.  A repeated
+ * string, keyword or symbol, and a composite value that is identical
+ * to one already written, are written as a reference to that number.
+ * Validated schemas share every type definition between
+ * :type-system-definitions and :type-map, so references keep the
+ * snapshot compact and restore the sharing when it is read back.
+ *
+ * A snapshot starts with a header holding the checksum of the source
+ * the schema was validated from, so that stale snapshots can be
+ * detected before decoding the body.
+ */
+public final class SchemaSnapshot {
+    private static final int MAGIC = 0x47514c53; // "GQLS"
+    private static final int VERSION = 1;
+
+    private static final int TAG_NIL = 0;
+    private static final int TAG_TRUE = 1;
+    private static final int TAG_FALSE = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_BIG_INTEGER = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_KEYWORD = 7;
+    private static final int TAG_SYMBOL = 8;
+    private static final int TAG_VECTOR = 9;
+    private static final int TAG_ARRAY_MAP = 10;
+    private static final int TAG_HASH_MAP = 11;
+    private static final int TAG_SET = 12;
+    private static final int TAG_LIST = 13;
+    private static final int TAG_LOCATION = 14;
+    private static final int TAG_META = 15;
+    private static final int TAG_REF = 16;
+
+    private static final int MAX_LENGTH = 1 << 24;
+
+    private SchemaSnapshot() {
+    }
+
+    /**
+     * Writes the schema to out, preceded by the checksum of its
+     * source.  The stream is flushed but not closed.
+     */
+    public static void write(OutputStream out, byte[] checksum, Object schema) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        writeVarInt(data, checksum.length);
+        data.write(checksum);
+        new Writer(data).writeObject(schema);
+        data.flush();
+    }
+
+    /**
+     * Reads the checksum from the header of a snapshot.
+     */
+    public static byte[] readChecksum(InputStream in) throws IOException {
+        return readHeader(new DataInputStream(in));
+    }
+
+    /**
+     * Reads a schema from a snapshot.  When expectedChecksum is not
+     * null and differs from the checksum of the snapshot, the body is
+     * not decoded and null is returned.  A snapshot that cannot be
+     * decoded throws a SnapshotException, whatever the failure.
+     */
+    public static Object read(InputStream in, byte[] expectedChecksum) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] checksum = readHeader(data);
+        if (expectedChecksum != null && !Arrays.equals(checksum, expectedChecksum))
+            return null;
+        Object schema;
+        try {
+            schema = new Reader(data).readObject();
+        } catch (EOFException e) {
+            throw new SnapshotException("Truncated schema snapshot", e);
+        } catch (RuntimeException e) {
+            throw new SnapshotException("Corrupt schema snapshot", e);
+        }
+        if (!(schema instanceof IPersistentMap))
+            throw new SnapshotException("Corrupt schema snapshot: not a schema");
+        return schema;
+    }
+
+    private static byte[] readHeader(DataInputStream data) throws IOException {
+        try {
+            if (data.readInt() != MAGIC)
+                throw new SnapshotException("Not a schema snapshot");
+            int version = data.readUnsignedByte();
+            if (version != VERSION)
+                throw new SnapshotException("Unsupported schema snapshot version: " + version);
+            byte[] checksum = new byte[readLength(data)];
+            data.readFully(checksum);
+            return checksum;
+        } catch (EOFException e) {
+            throw new SnapshotException("Truncated schema snapshot", e);
+        } catch (RuntimeException e) {
+            throw new SnapshotException("Corrupt schema snapshot", e);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int)readVarLong(in);
+    }
+
+    /**
+     * Reads the length of a string or composite value.  A corrupt
+     * length fails before anything is allocated for it.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > MAX_LENGTH)
+            throw new SnapshotException("Malformed length in schema snapshot: " + length);
+        return (int)length;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            if (shift > 56)
+                throw new SnapshotException("Malformed varint in schema snapshot");
+        }
+    }
+
+    private static final class Writer {
+        private final DataOutputStream _out;
+        private final Map<Object, Integer> _composites = new IdentityHashMap<>();
+        private final Map<Object, Integer> _atoms = new HashMap<>();
+        private int _count;
+
+        Writer(DataOutputStream out) {
+            _out = out;
+        }
+
+        private boolean writeRef(Map<Object, Integer> table, Object obj) throws IOException {
+            Integer ref = table.get(obj);
+            if (ref == null)
+                return false;
+            _out.writeByte(TAG_REF);
+            writeVarInt(_out, ref);
+            return true;
+        }
+
+        private void register(Map<Object, Integer> table, Object obj) {
+            table.put(obj, _count++);
+        }
+
+        void writeObject(Object obj) throws IOException {
+            if (obj == null) {
+                _out.writeByte(TAG_NIL);
+            } else if (obj instanceof Boolean) {
+                _out.writeByte((Boolean)obj ? TAG_TRUE : TAG_FALSE);
+            } else if (obj instanceof Long) {
+                long value = (Long)obj;
+                _out.writeByte(TAG_LONG);
+                writeVarLong(_out, (value << 1) ^ (value >> 63));
+            } else if (obj instanceof Double) {
+                _out.writeByte(TAG_DOUBLE);
+                _out.writeDouble((Double)obj);
+            } else if (obj instanceof BigInteger) {
+                byte[] bytes = ((BigInteger)obj).toByteArray();
+                _out.writeByte(TAG_BIG_INTEGER);
+                writeVarInt(_out, bytes.length);
+                _out.write(bytes);
+            } else if (obj instanceof String) {
+                writeString((String)obj);
+            } else if (obj instanceof Keyword) {
+                writeKeyword((Keyword)obj);
+            } else if (obj instanceof Symbol) {
+                writeSymbol((Symbol)obj);
+            } else if (obj instanceof Location) {
+                writeLocation((Location)obj);
+            } else if (!writeRef(_composites, obj)) {
+                writeComposite(obj);
+                register(_composites, obj);
+            }
+        }
+
+        private void writeString(String str) throws IOException {
+            if (writeRef(_atoms, str))
+                return;
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            _out.writeByte(TAG_STRING);
+            writeVarInt(_out, bytes.length);
+            _out.write(bytes);
+            register(_atoms, str);
+        }
+
+        private void writeKeyword(Keyword keyword) throws IOException {
+            if (writeRef(_atoms, keyword))
+                return;
+            _out.writeByte(TAG_KEYWORD);
+            writeObject(keyword.getNamespace());
+            writeObject(keyword.getName());
+            register(_atoms, keyword);
+        }
+
+        private void writeSymbol(Symbol symbol) throws IOException {
+            // Symbols compare equal regardless of their metadata, so
+            // only symbols without metadata are shared by value.
+            if (symbol.meta() != null) {
+                if (writeRef(_composites, symbol))
+                    return;
+                _out.writeByte(TAG_META);
+                writeObject(symbol.meta());
+                writeSymbol((Symbol)symbol.withMeta(null));
+                register(_composites, symbol);
+                return;
+            }
+            if (writeRef(_atoms, symbol))
+                return;
+            _out.writeByte(TAG_SYMBOL);
+            writeObject(symbol.getNamespace());
+            writeObject(symbol.getName());
+            register(_atoms, symbol);
+        }
+
+        private void writeLocation(Location location) throws IOException {
+            if (writeRef(_composites, location))
+                return;
+            _out.writeByte(TAG_LOCATION);
+            writeVarInt(_out, location.getLine());
+            writeVarInt(_out, location.getColumn());
+            writeVarInt(_out, location.getIndex());
+            register(_composites, location);
+        }
+
+        private void writeComposite(Object obj) throws IOException {
+            IPersistentMap meta = (obj instanceof IObj) ? ((IObj)obj).meta() : null;
+            if (meta != null) {
+                _out.writeByte(TAG_META);
+                writeObject(meta);
+            }
+
+            if (obj instanceof IPersistentVector) {
+                IPersistentVector vec = (IPersistentVector)obj;
+                _out.writeByte(TAG_VECTOR);
+                writeVarInt(_out, vec.count());
+                for (int i = 0, n = vec.count() ; i < n ; ++i)
+                    writeObject(vec.nth(i));
+            } else if (obj instanceof IPersistentMap) {
+                IPersistentMap map = (IPersistentMap)obj;
+                _out.writeByte(obj instanceof PersistentArrayMap ? TAG_ARRAY_MAP : TAG_HASH_MAP);
+                writeVarInt(_out, map.count());
+                for (Object o : map) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+                    writeObject(entry.getKey());
+                    writeObject(entry.getValue());
+                }
+            } else if (obj instanceof IPersistentSet) {
+                IPersistentSet set = (IPersistentSet)obj;
+                _out.writeByte(TAG_SET);
+                writeVarInt(_out, set.count());
+                for (ISeq s = set.seq() ; s != null ; s = s.next())
+                    writeObject(s.first());
+            } else if (obj instanceof ISeq || obj instanceof IPersistentList) {
+                ArrayList<Object> items = new ArrayList<>();
+                for (Iterator<?> it = ((Iterable<?>)obj).iterator() ; it.hasNext() ; )
+                    items.add(it.next());
+                _out.writeByte(TAG_LIST);
+                writeVarInt(_out, items.size());
+                for (Object item : items)
+                    writeObject(item);
+            } else {
+                throw new IllegalArgumentException(
+                    "Cannot write " + obj.getClass().getName() + " to a schema snapshot");
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream _in;
+        private final ArrayList<Object> _objects = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            _in = in;
+        }
+
+        private <T> T register(T obj) {
+            _objects.add(obj);
+            return obj;
+        }
+
+        Object readObject() throws IOException {
+            return readObject(_in.readUnsignedByte());
+        }
+
+        private Object readObject(int tag) throws IOException {
+            switch (tag) {
+            case TAG_NIL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_LONG: {
+                long value = readVarLong(_in);
+                return (value >>> 1) ^ -(value & 1);
+            }
+            case TAG_DOUBLE:
+                return _in.readDouble();
+            case TAG_BIG_INTEGER:
+                return new BigInteger(readBytes());
+            case TAG_STRING:
+                return register(new String(readBytes(), StandardCharsets.UTF_8));
+            case TAG_KEYWORD: {
+                String ns = (String)readObject();
+                String name = (String)readObject();
+                return register(Keyword.intern(ns, name));
+            }
+            case TAG_SYMBOL: {
+                String ns = (String)readObject();
+                String name = (String)readObject();
+                return register(Symbol.intern(ns, name));
+            }
+            case TAG_LOCATION:
+                return register(new Location(readVarInt(_in), readVarInt(_in), readVarInt(_in)));
+            case TAG_META: {
+                IPersistentMap meta = (IPersistentMap)readObject();
+                return register(((IObj)readUnregistered()).withMeta(meta));
+            }
+            case TAG_REF: {
+                int ref = readVarInt(_in);
+                if (ref >= _objects.size())
+                    throw new SnapshotException("Malformed reference in schema snapshot");
+                return _objects.get(ref);
+            }
+            default:
+                return register(readComposite(tag));
+            }
+        }
+
+        /**
+         * Reads the value following a metadata prefix.  A composite
+         * value is only numbered once its metadata is attached, while
+         * a symbol is numbered both without and with its metadata,
+         * matching the order of the writer.
+         */
+        private Object readUnregistered() throws IOException {
+            int tag = _in.readUnsignedByte();
+            if (tag >= TAG_VECTOR && tag <= TAG_LIST)
+                return readComposite(tag);
+            return readObject(tag);
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readLength(_in)];
+            _in.readFully(bytes);
+            return bytes;
+        }
+
+        private Object[] readItems(int n) throws IOException {
+            Object[] items = new Object[n];
+            for (int i = 0 ; i < n ; ++i)
+                items[i] = readObject();
+            return items;
+        }
+
+        private Object readComposite(int tag) throws IOException {
+            switch (tag) {
+            case TAG_VECTOR:
+                return LazilyPersistentVector.createOwning(readItems(readLength(_in)));
+            case TAG_ARRAY_MAP:
+                return new PersistentArrayMap(readItems(2 * readLength(_in)));
+            case TAG_HASH_MAP:
+                return PersistentHashMap.create(readItems(2 * readLength(_in)));
+            case TAG_SET:
+                return PersistentHashSet.create(readItems(readLength(_in)));
+            case TAG_LIST:
+                return PersistentList.create(Arrays.asList(readItems(readLength(_in))));
+            default:
+                throw new SnapshotException("Unknown tag in schema snapshot: " + tag);
+            }
+        }
+    }
+}
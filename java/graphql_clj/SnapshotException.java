@@ -0,0 +1,20 @@
+package graphql_clj;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a schema snapshot cannot be decoded, because it is not a
+ * snapshot, was written by another version, or is truncated or
+ * corrupt.
+ */
+public class SnapshotException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SnapshotException(String msg) {
+        super(msg);
+    }
+
+    public SnapshotException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
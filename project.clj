@@ -9,4 +9,6 @@
                  [instaparse "1.4.10"]
                  [org.clojure/core.match "1.0.0"]
                  [camel-snake-kebab "0.4.0"]]
-  :profiles {:dev {:dependencies [[io.forward/yaml "1.0.10"]]}})
+  :aliases {"bench" ["run" "-m" "graphql-clj.bench"]}
+  :profiles {:dev {:dependencies [[io.forward/yaml "1.0.10"]]
+                   :source-paths ["bench"]}})
@@ -0,0 +1,71 @@
+(ns graphql-clj.bulkhead
+  "Concurrency limits for resolvers.
+
+  A bulkhead bounds the number of concurrent calls to the resolvers of
+  a group of fields, across all the requests using it.  A call waits
+  at most the timeout of the bulkhead for a permit, and is rejected
+  with a field error when none frees up, so a slow backend only fails
+  the fields depending on it while the rest of the query resolves."
+  (:import [java.util.concurrent Semaphore TimeUnit]
+           [java.util.concurrent.atomic AtomicLong]))
+
+(defn create-bulkheads
+  "Creates bulkheads from a sequence of specs, each a map of:
+
+    :name            name of the bulkhead, used in errors and stats
+    :fields          the fields it applies to, as \"Type.field\"
+                     strings, or \"Type\" for all the fields of a type
+    :max-concurrent  maximum number of concurrent resolver calls
+    :timeout-ms      how long a call waits for a permit (default 0,
+                     rejecting calls at once when the limit is reached)
+
+  A field belongs to the bulkhead naming it, or else to the one naming
+  its type.  Pass the result as the :bulkheads option of
+  graphql-clj.executor/execute, and share it between requests."
+  [specs]
+  (into {}
+        (for [{:keys [name fields max-concurrent timeout-ms]} specs
+              :let [bulkhead {:name name
+                              :max-concurrent max-concurrent
+                              :timeout-ms (or timeout-ms 0)
+                              :semaphore (Semaphore. max-concurrent true)
+                              :rejected (AtomicLong.)}]
+              field fields]
+          [field bulkhead])))
+
+(defn bulkhead
+  "Returns the bulkhead of a field, or nil."
+  [bulkheads type-name field-name]
+  (or (get bulkheads (str type-name "." field-name))
+      (get bulkheads (str type-name))))
+
+(defn call
+  "Calls f with a permit of the bulkhead.  A lazy sequence returned by
+  f is realized before the permit is released, so the backend work it
+  defers counts against the limit.  When no permit is available within
+  the timeout, returns the result of calling reject-fn with the error
+  message instead."
+  [{:keys [name max-concurrent timeout-ms ^Semaphore semaphore ^AtomicLong rejected]} f reject-fn]
+  (if (try
+        (.tryAcquire semaphore timeout-ms TimeUnit/MILLISECONDS)
+        (catch InterruptedException e
+          (.interrupt (Thread/currentThread))
+          false))
+    (try
+      (let [result (f)]
+        (if (seq? result)
+          (doall result)
+          result))
+      (finally
+        (.release semaphore)))
+    (do (.incrementAndGet rejected)
+        (reject-fn (format "Bulkhead '%s' rejected the call: %d concurrent calls are in flight." name max-concurrent)))))
+
+(defn stats
+  "Returns a map of bulkhead name to its number of calls :in-flight and
+  calls :rejected since it was created."
+  [bulkheads]
+  (into {}
+        (for [{:keys [name max-concurrent ^Semaphore semaphore ^AtomicLong rejected]} (distinct (vals bulkheads))]
+          [name {:in-flight (- max-concurrent (.availablePermits semaphore))
+                 :rejected (.get rejected)}])))
@@ -0,0 +1,149 @@
+(ns graphql-clj.cache
+  "Cross-request cache of resolved field values.
+
+  Fields are cacheable when they have a hint, either from a
+  @cacheControl(maxAge: Int, scope: PUBLIC | PRIVATE) directive on the
+  field definition or from the :hints option of create-cache.  A
+  cached value is keyed by the field, its coerced arguments and the
+  key of the parent value, and for PRIVATE fields also by the scope
+  key of the request context.  The key of a parent is its :id when
+  its type declares an id field, or the result of the :key-fn of the
+  hint.  Fields of parents without a key are not cached, nor are the
+  results of resolvers that read the lookahead of their selections.")
+
+(defn- directive-hint
+  [{:keys [directives]}]
+  (when-let [directive (some #(when (= "cacheControl" (str (:name %))) %) directives)]
+    (let [args (->> (:arguments directive)
+                    (map (fn [argument] [(str (:name argument)) (get-in argument [:value :value])]))
+                    (into {}))]
+      (cond-> {:max-age (or (get args "maxAge") 0)}
+        (get args "scope") (assoc :scope (keyword (.toLowerCase (str (get args "scope")))))))))
+
+(defn schema-hints
+  "Returns the hints declared with @cacheControl in a validated schema,
+  as a map of [type-name field-name] to {:max-age seconds :scope scope}."
+  [schema]
+  (->> (for [[type-name type] (:type-map schema)
+             [field-name field] (:field-map type)
+             :let [hint (directive-hint field)]
+             :when hint]
+         [[(str type-name) (str field-name)] hint])
+       (into {})))
+
+(defn lru-map
+  "Returns a synchronized map keeping its max-size most recently used
+  entries.  Iterating it requires locking on the map."
+  [max-size]
+  (java.util.Collections/synchronizedMap
+   (proxy [java.util.LinkedHashMap] [16 0.75 true]
+     (removeEldestEntry [eldest]
+       (> (.size ^java.util.Map this) max-size)))))
+
+(defn create-cache
+  "Creates a field result cache for a validated schema.  Options:
+
+    :hints         map of [type-name field-name] to {:max-age seconds
+                   :scope :public | :private :key-fn (fn [parent])},
+                   overriding the schema's @cacheControl directives.
+                   :key-fn returns the key of the parent value
+    :max-size      maximum number of entries, least recently used
+                   entries are evicted first (default 10000)
+    :scope-key-fn  (fn [context]) returning the key PRIVATE entries
+                   are scoped to, e.g. the user id.  PRIVATE fields are
+                   not cached when it returns nil, and by default
+    :clock         (fn []) returning the current time in milliseconds"
+  ([schema]
+   (create-cache schema {}))
+  ([schema {:keys [hints max-size scope-key-fn clock]
+            :or {max-size 10000
+                 scope-key-fn (constantly nil)
+                 clock #(System/currentTimeMillis)}}]
+   {:hints (->> hints
+                (map (fn [[[type-name field-name] hint]] [[(str type-name) (str field-name)] hint]))
+                (into (schema-hints schema)))
+    :roots (set (map str (vals (:roots schema))))
+    :id-types (->> (:type-map schema)
+                   (keep (fn [[type-name type]] (when (get-in type [:field-map 'id]) (str type-name))))
+                   (set))
+    :entries (lru-map max-size)
+    :loading (java.util.concurrent.ConcurrentHashMap.)
+    :scope-key-fn scope-key-fn
+    :clock clock}))
+
+(defn hint
+  "Returns the cache hint of a field, or nil when it is not cacheable."
+  [cache type-name field-name]
+  (get (:hints cache) [(str type-name) (str field-name)]))
+
+(defn parent-key
+  "Returns the key of a parent value for the hint of one of its fields:
+  the root itself for fields of root types, the result of the hint's
+  :key-fn, or the :id of values of types declaring an id field.
+  Returns nil when the parent has no key."
+  [{:keys [roots id-types]} {:keys [key-fn]} type-name parent]
+  (cond
+    (contains? roots (str type-name)) type-name
+    key-fn (key-fn parent)
+    (and (contains? id-types (str type-name)) (map? parent)) (:id parent)))
+
+(defn- load!
+  "Calls resolve-fn for a missing key, once for the concurrent misses
+  of the key.  The calls waiting for the first one get its value when
+  it was cached, and otherwise call resolve-fn themselves."
+  [{:keys [entries ^java.util.concurrent.ConcurrentHashMap loading]} key now max-age resolve-fn cacheable?]
+  (let [task (java.util.concurrent.FutureTask.
+              (fn []
+                (let [value (resolve-fn)
+                      cached? (and (not (instance? clojure.lang.ExceptionInfo value)) (cacheable?))]
+                  (if cached?
+                    (.put ^java.util.Map entries key [value (+ now (* 1000 max-age))])
+                    (.remove ^java.util.Map entries key))
+                  [value cached?])))
+        ^java.util.concurrent.FutureTask running (.putIfAbsent loading key task)]
+    (if running
+      (let [[value cached?] (try
+                              (.get running)
+                              (catch java.util.concurrent.ExecutionException e
+                                nil))]
+        (if cached?
+          value
+          (resolve-fn)))
+      (try
+        (.run task)
+        (first (.get task))
+        (catch java.util.concurrent.ExecutionException e
+          (throw (.getCause e)))
+        (finally
+          (.remove loading key task))))))
+
+(defn lookup-or-resolve
+  "Returns the cached value for the key, or calls resolve-fn and
+  caches its result for the hint's max-age.  Errors returned as
+  ex-info values, and values for which the optional (cacheable?)
+  returns false after resolve-fn, are not cached.  Concurrent misses
+  of a key call resolve-fn once."
+  ([cache hint context key resolve-fn]
+   (lookup-or-resolve cache hint context key resolve-fn (constantly true)))
+  ([{:keys [entries scope-key-fn clock] :as cache} {:keys [max-age scope]} context key resolve-fn cacheable?]
+   (let [scope-key (when (= :private scope) (scope-key-fn context))]
+     (if (or (not (pos? max-age))
+             (and (= :private scope) (nil? scope-key)))
+       (resolve-fn)
+       (let [key (conj key scope-key)
+             now (clock)
+             [value expires-at :as entry] (.get ^java.util.Map entries key)]
+         (if (and entry (< now expires-at))
+           value
+           (load! cache key now max-age resolve-fn cacheable?)))))))
+
+(defn clear!
+  "Removes every entry from the cache."
+  [cache]
+  (.clear ^java.util.Map (:entries cache)))
+
+(defn size
+  "Returns the number of entries in the cache, including expired
+  entries that have not been evicted yet."
+  [cache]
+  (.size ^java.util.Map (:entries cache)))
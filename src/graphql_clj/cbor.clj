@@ -0,0 +1,20 @@
+(ns graphql-clj.cbor
+  "Compact binary encoding of execution results as CBOR (RFC 7049), for
+  consumers that do not need JSON text.  Results are encoded once
+  execution has finished, not while fields are completed."
+  (:import [graphql_clj Cbor]))
+
+(defn encode
+  "Encodes an execution result as a CBOR byte array.  When out is
+  given, writes the encoding to the OutputStream instead."
+  ([result]
+   (Cbor/encode result))
+  ([result ^java.io.OutputStream out]
+   (Cbor/encode result out)))
+
+(defn decode
+  "Decodes a CBOR byte array into maps with string keys, vectors and
+  scalars.  Keys such as :data and :errors of an execution result are
+  decoded as strings."
+  [^bytes bytes]
+  (Cbor/decode bytes))
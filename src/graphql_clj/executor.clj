@@ -1,10 +1,15 @@
 (ns graphql-clj.executor
-  (:require [graphql-clj.schema-validator :as sv]
+  (:require [graphql-clj.bulkhead :as bulkhead]
+            [graphql-clj.parser :as parser]
+            [graphql-clj.schema-validator :as sv]
             [graphql-clj.query-validator :as qv]
             [graphql-clj.resolver :as resolver]
+            [graphql-clj.scalar :as scalar]
+            [graphql-clj.cache :as cache]
             [graphql-clj.error :as gerror]
             [clojure.set :as set]
-            [clojure.string :as str]))
+            [clojure.string :as str])
+  (:import [graphql_clj Jfr ResultObject ResultObject$Layout]))
 
 (defn- error?
   [error]
@@ -16,10 +21,12 @@
        (map (fn format-error [error]
               (let [err (ex-data error)
                     locations (:locations err)
-                    path (:path err)]
+                    path (:path err)
+                    extensions (:extensions err)]
                 (-> {:message (.getMessage error)}
                     (cond-> locations (assoc :locations locations))
-                    (cond-> path (assoc :path path))))))
+                    (cond-> path (assoc :path path))
+                    (cond-> extensions (assoc :extensions extensions))))))
        distinct))
 
 (defn- cleanup-errors
@@ -41,23 +48,202 @@
   [object-type fragment-type]
   true)
 
-(defn collect-field-fn
-  [type state]
-  (fn [result selection]
-    ;; (prn "collect-field-fn: selection:" selection)
-    (case (:tag selection)
-      :selection-field (update result (or (:alias selection)
-                                          (:name selection)) conj selection)
-      :inline-fragment (when (does-fragment-type-apply? type (:on selection))
-                         (let [fragment-grouped-field-set (collect-fields (:type selection) (:selection-set selection) {} state)]
-                           (reduce (fn [result [name selection]]
-                                     ;; (println "result:" result "name:" name "selection:" selection)
-                                     (update result name concat selection))
-                                   result
-                                   fragment-grouped-field-set))))))
-
-(defn- collect-fields [type selection-set fields state]
-  (reduce (collect-field-fn type state) fields selection-set))
+(defn- directive-argument
+  "Returns the value of a directive argument, resolving variable
+  references against the coerced variables."
+  [{:keys [arguments]} arg-name variables]
+  (let [value (some #(when (= arg-name (:name %)) (:value %)) arguments)]
+    (if (= :variable-reference (:tag value))
+      (get variables (str (:name value)))
+      (:value value))))
+
+(defn- include-selection?
+  "Implements the @skip and @include checks of CollectFields.
+  Constant conditions are already folded into the validated document,
+  so only conditions on variables remain to be evaluated here."
+  [{:keys [directives]} variables]
+  (every? (fn [{:keys [name] :as directive}]
+            (case name
+              skip (not (directive-argument directive 'if variables))
+              include (boolean (directive-argument directive 'if variables))
+              true))
+          directives))
+
+(defn- deferred-fragment?
+  "True when an inline fragment is marked @defer and the execution
+  delivers results incrementally.  Otherwise @defer is ignored and
+  the fragment is executed with its parent."
+  [{:keys [directives]} {:keys [incremental variables]}]
+  (and incremental
+       (some (fn [{:keys [name] :as directive}]
+               (and (= 'defer name)
+                    (not (false? (directive-argument directive 'if variables)))))
+             directives)))
+
+(defn- collect-fields*
+  "Groups the fields of a selection set by response key in one pass,
+  descending into the inline fragments that apply.  order is a
+  transient vector of response keys in document order and groups a
+  transient map of response key to a transient vector of fields."
+  [type selection-set [order groups :as acc] state]
+  (reduce (fn [[order groups :as acc] selection]
+            (if-not (include-selection? selection (:variables state))
+              acc
+              (case (:tag selection)
+                :selection-field (let [response-key (str (or (:alias selection) (:name selection)))]
+                                   (if-let [group (get groups response-key)]
+                                     [order (assoc! groups response-key (conj! group selection))]
+                                     [(conj! order response-key) (assoc! groups response-key (transient [selection]))]))
+                :inline-fragment (if (and (does-fragment-type-apply? type (:on selection))
+                                          (not (deferred-fragment? selection state)))
+                                   (collect-fields* type (:selection-set selection) acc state)
+                                   acc))))
+          acc
+          selection-set))
+
+(defn- merge-fields
+  "Implements MergeSelectionSets: the first field of a group carries
+  the selection sets of all the fields with its response key."
+  [fields]
+  (if (and (next fields) (some :selection-set (next fields)))
+    (into [(assoc (first fields) :selection-set (vec (mapcat :selection-set fields)))] (rest fields))
+    fields))
+
+(declare get-field-def)
+
+(defn- named-type
+  "Returns the name of the type a field type wraps in lists."
+  [type]
+  (if (:inner-type type)
+    (recur (:inner-type type))
+    (:name type)))
+
+(defn- compile-field
+  "Attaches the coercion of the scalars of a field, once per plan
+  rather than per value: the serialize functions of the scalar it
+  returns, and the literals of its scalar arguments coerced with
+  parse-literal.  A literal that does not coerce is reported as a
+  field error when the field is executed."
+  [schema type-name field]
+  (let [field-def (get-field-def schema type-name (:name field))
+        {:keys [serialize serialize-list]} (scalar/scalar schema (named-type (:type field-def)))
+        list-of-scalars? (and (= :list-type (get-in field-def [:type :tag]))
+                              (not (get-in field-def [:type :inner-type :inner-type])))
+        arg-defs (into {} (map (juxt :name identity)) (:arguments field-def))]
+    (try
+      (cond-> field
+        serialize (assoc ::serialize serialize)
+        (and serialize-list list-of-scalars?) (assoc ::serialize-list serialize-list)
+        (seq (:arguments field)) (update :arguments
+                                         (partial mapv (fn [argument]
+                                                         (if-let [s (scalar/scalar schema (named-type (:type (get arg-defs (:name argument)))))]
+                                                           (update argument :value #(scalar/parse-literal s %))
+                                                           argument)))))
+      (catch Exception e
+        (assoc field ::error (.getMessage e))))))
+
+(defn- collect-fields
+  "Implements CollectFields.  Returns a ResultObject of response key to
+  the fields selected with it, in document order, over the layout of
+  the response keys, which the objects completed for the fields share.
+  Lookups by response key use the index of the layout, so wide
+  selections are not scanned.  When the schema has scalars, the first
+  field of each response key is compiled for them."
+  [type selection-set fields state]
+  (let [[order groups] (collect-fields* type selection-set
+                                        [(transient (mapv str (keys fields)))
+                                         (reduce-kv (fn [groups k v] (assoc! groups (str k) (transient (vec v))))
+                                                    (transient {})
+                                                    fields)]
+                                        state)
+        order (persistent! order)
+        values (object-array (count order))
+        schema (:schema state)
+        type-name (if (map? type) (:name type) type)
+        compile? (and (:scalars schema) type-name)]
+    (loop [i 0]
+      (when (< i (alength values))
+        (aset values i (cond-> (merge-fields (persistent! (get groups (nth order i))))
+                         compile? (update 0 #(compile-field schema type-name %))))
+        (recur (inc i))))
+    (ResultObject. (ResultObject$Layout. (into-array String order)) values)))
+
+(defn- key-layout
+  "Returns the layout of the response keys of collected fields, in the
+  order execute-fields completes them."
+  [fields]
+  (if (instance? ResultObject fields)
+    (.layout ^ResultObject fields)
+    (ResultObject$Layout. (into-array String (map (comp str key) fields)))))
+
+(defn- batched-fields
+  "Returns [response-key field batch] for the collected fields that
+  have a batch resolver."
+  [fields type-name {:keys [resolver]}]
+  (into [] (keep (fn [[response-key [field]]]
+                   (when-not (:resolver-fn field)
+                     (when-let [batch (::batch (meta (resolver (str type-name) (str (:name field)))))]
+                       [response-key field batch]))))
+        fields))
+
+(defn- fields-plan
+  "Returns the plan executing collected fields for a type: the fields,
+  their key layout and their :batched fields, which are only
+  prefetched when there are some."
+  [fields type-name state]
+  {:fields fields
+   :layout (key-layout fields)
+   :batched (batched-fields fields type-name state)})
+
+(defn- object-plan
+  "Returns the plan of a selection set for a type, computed once per
+  request.  Every object completed for the selection set and type,
+  such as the items of a list, shares the plan."
+  [{:keys [plans] :as state} type selection-set]
+  (let [type-name (:name type)]
+    (or (get (.get ^java.util.Map plans selection-set) type-name)
+        (let [plan (fields-plan (collect-fields type selection-set {} state) type-name state)]
+          (.put ^java.util.Map plans selection-set (assoc (.get ^java.util.Map plans selection-set) type-name plan))
+          plan))))
+
+(defn- collect-deferred-fragments
+  "Returns the deferred fragments of a selection set, these are left
+  out by collect-fields."
+  [selection-set state]
+  (mapcat (fn [selection]
+            (when (and (= :inline-fragment (:tag selection))
+                       (include-selection? selection (:variables state)))
+              (if (deferred-fragment? selection state)
+                [selection]
+                (collect-deferred-fragments (:selection-set selection) state))))
+          selection-set))
+
+(defn- enqueue-incremental!
+  "Adds a function producing a subsequent payload to the incremental
+  delivery queue."
+  [{:keys [incremental]} payload-fn]
+  (swap! incremental conj payload-fn))
+
+(defn- stream-initial-count
+  "Returns the initialCount of a @stream directive on a list field, or
+  nil when the field is not streamed."
+  [{:keys [directives]} {:keys [incremental variables]}]
+  (when incremental
+    (some (fn [{:keys [name] :as directive}]
+            (when (and (= 'stream name)
+                       (not (false? (directive-argument directive 'if variables))))
+              (or (directive-argument directive 'initialCount variables) 0)))
+          directives)))
+
+(defn- field-path
+  "Appends a response key or list index to the path of the value being
+  completed.  Paths are only tracked when delivering results
+  incrementally, where patches need them, while resolver events are
+  recorded, and for the errors of bulkheads."
+  [state key]
+  (if (or (:incremental state) (:trace-resolvers state) (:bulkheads state))
+    (update state :path (fnil conj []) key)
+    state))
 
 (defn- get-field-type
   [schema parent-type-name field-name]
@@ -112,8 +298,219 @@
                   (into {}))]
     (merge default-args args)))
 
+(defn- selection-field-def
+  "Returns the definition of a field selected on a type.  Fields
+  selected in fragments on the possible types of an interface or union
+  are looked up on those types."
+  [schema type-name field-name]
+  (when type-name
+    (or (get-field-def schema type-name field-name)
+        (let [abstract (get-in schema [:type-map type-name])]
+          (when (#{:interface-definition :union-definition} (:tag abstract))
+            (some (fn [[possible-name possible-type]]
+                    (when (or (contains? (:member-map abstract) possible-name)
+                              (some #(= type-name (:name %)) (:implements possible-type)))
+                      (get-field-def schema possible-name field-name)))
+                  (:type-map schema)))))))
+
+(defn- selections
+  "Returns the merged child selections of fields with the same response
+  key, with fragments flattened and @skip/@include applied.  Deferred
+  fragments are included, since they are executed against the same
+  parent value.  Arguments are coerced with the defaults of the field
+  definitions, as resolvers get them.  Nested selections are computed
+  as they are used."
+  [fields type-name state]
+  (let [state (dissoc state :incremental)
+        schema (:schema state)]
+    (map (fn [[response-key [field :as fields]]]
+           (let [field-def (selection-field-def schema type-name (:name field))]
+             {:name (str (:name field))
+              :alias (some-> (:alias field) str)
+              :args (args-fn (:arguments field) (:arguments field-def) (:variables state))
+              :selections (selections (collect-fields nil (mapcat :selection-set fields) {} state)
+                                      (named-type (or (:type field-def) (:resolved-type field)))
+                                      state)}))
+         fields)))
+
+(defn- with-lookahead
+  [args {:keys [selection-set resolved-type]} state]
+  (if (seq selection-set)
+    (vary-meta args assoc ::lookahead (delay (selections (collect-fields nil selection-set {} (dissoc state :incremental))
+                                                         (named-type resolved-type)
+                                                         state)))
+    args))
+
+(defn lookahead
+  "Returns the child selections requested for the field a resolver is
+  called for, given the args passed to the resolver.  Each selection is
+  a map of :name, :alias (nil when the field is not aliased), the
+  coerced :args and the nested :selections.  Fragments are flattened
+  and fields with the same response key merged, so a resolver can push
+  projections and joins down to its backend.  Returns nil for leaf
+  fields."
+  [args]
+  (some-> (::lookahead (meta args)) deref))
+
 (declare execute-fields)
 
+(defn- defer-fragments!
+  "Queues a subsequent payload for each deferred fragment of an object
+  selection set.  The payload executes the fragment against the same
+  parent value once the consumer asks for it."
+  [type type-name selection-set state parent-value]
+  (when (:incremental state)
+    (doseq [fragment (collect-deferred-fragments selection-set state)]
+      (enqueue-incremental!
+       state
+       (fn deferred-payload []
+         (let [fields (collect-fields type (:selection-set fragment) {} state)
+               label (directive-argument (some #(when (= 'defer (:name %)) %) (:directives fragment)) 'label (:variables state))]
+           (defer-fragments! type type-name (:selection-set fragment) state parent-value)
+           (-> (execute-fields (fields-plan fields type-name state) state type-name parent-value)
+               (cleanup-errors)
+               (assoc :path (:path state []))
+               (cond-> label (assoc :label label)))))))))
+
+(defn- stream-items!
+  "Queues a subsequent payload for the next item of a streamed list.
+  Items are completed one at a time as the consumer asks for them, so
+  a lazy source is only realized as far as it has been delivered."
+  [complete-item items index field state]
+  (when (seq items)
+    (enqueue-incremental!
+     state
+     (fn streamed-payload []
+       (let [value (complete-item index (first items))
+             label (directive-argument (some #(when (= 'stream (:name %)) %) (:directives field)) 'label (:variables state))]
+         (stream-items! complete-item (rest items) (inc index) field state)
+         (-> (if (error? value)
+               {:items [(:data (ex-data value))] :errors (rollup-errors [] value)}
+               {:items [value]})
+             (cleanup-errors)
+             (assoc :path (conj (:path state []) index))
+             (cond-> label (assoc :label label))))))))
+
+(defn- referenced-variables
+  "Returns the names of the variables referenced in an AST node."
+  [node]
+  (cond
+    (map? node) (if (= :variable-reference (:tag node))
+                  [(str (:name node))]
+                  (mapcat referenced-variables (vals node)))
+    (sequential? node) (mapcat referenced-variables node)))
+
+(defn- selection-key
+  "Returns what the lookahead of a field depends on: its merged
+  selection set, along with the values of the variables the selection
+  set references, or nil for leaf fields.  The variables referenced
+  are found once per field of a request's plans."
+  [{:keys [selection-set] :as field} {:keys [plans variables]}]
+  (when (seq selection-set)
+    (let [names (or (.get ^java.util.Map plans field)
+                    (let [names (vec (distinct (referenced-variables selection-set)))]
+                      (.put ^java.util.Map plans field names)
+                      names))]
+      (if (seq names)
+        [selection-set (select-keys variables names)]
+        selection-set))))
+
+(deftype ResolveKey [parent type-name field-name args selection]
+  Object
+  (equals [this other]
+    (and (instance? ResolveKey other)
+         (identical? parent (.-parent ^ResolveKey other))
+         (= type-name (.-type-name ^ResolveKey other))
+         (= field-name (.-field-name ^ResolveKey other))
+         (= args (.-args ^ResolveKey other))
+         (= selection (.-selection ^ResolveKey other))))
+  (hashCode [this]
+    (-> (System/identityHashCode parent)
+        (hash-combine type-name)
+        (hash-combine field-name)
+        (hash-combine args)
+        (hash-combine selection)
+        (unchecked-int))))
+
+(defn- split-batch
+  "Returns the n results of a batch call.  A batch error, or results
+  that do not match the calls, is the result of every call."
+  [results n describe]
+  (cond
+    (error? results) (repeat n results)
+    (and (sequential? results) (= n (count results))) (vec results)
+    :else (repeat n (ex-info (format "%s returned %s results for %d fields."
+                                     describe (if (sequential? results) (count results) "no") n)
+                             {}))))
+
+(deftype Completed [value])
+
+(defn completed
+  "Wraps a resolved value that is already in response form, such as
+  the data of a downstream GraphQL response, so that it is returned as
+  the value of the field instead of being completed against the
+  field's selection set."
+  [value]
+  (Completed. value))
+
+(defn batch-resolver
+  "Returns a resolver whose calls are batched.  The fields with batch
+  resolvers of the same key at one level, the fields of an object or
+  of the objects of a list, are resolved together with one call of
+  (batch-fn context calls), before the other fields of the level.
+  Each call is a map of the :parent value, the coerced :args, the
+  :field selected, with its merged :selection-set, and the :variables
+  of the operation, and :batch, the map of key, batch-fn and data.
+  batch-fn returns the results of the calls in order, or an ex-info
+  for all of them.
+
+  Fields of root mutations, which run one at a time, call batch-fn
+  with a single call.  Calls outside of the executor also do, without
+  :field and :variables."
+  [key batch-fn data]
+  (let [batch {:key key :fn batch-fn :data data}]
+    (with-meta (fn [context parent args]
+                 (first (split-batch (batch-fn context [{:parent parent :args args :batch batch}])
+                                     1 (format "Batch resolver %s" key))))
+      {::batch batch})))
+
+(defn- prefetch-batches
+  "Resolves the batched fields of collected fields for the parent
+  values of a level, with one call of the batch function of each key
+  for all of the batched fields of a plan and parents.  Returns
+  {:fields fields :parents results}, where results maps each parent
+  value, by identity, to its results by response key, or nil when no
+  field is batched."
+  [{:keys [fields batched]} type-name parents {:keys [schema context variables] :as state}]
+  (when (seq batched)
+    (let [results (java.util.IdentityHashMap.)
+          calls (for [parent parents
+                      [response-key field batch] batched]
+                  {:parent parent
+                   :args (with-lookahead (args-fn (:arguments field)
+                                                  (:arguments (get-field-def schema type-name (:name field)))
+                                                  variables)
+                           field state)
+                   :field field
+                   :variables variables
+                   :batch batch
+                   ::response-key response-key})]
+      (doseq [[key calls] (group-by (comp :key :batch) calls)
+              [call result] (map vector calls (split-batch ((:fn (:batch (first calls))) context calls)
+                                                           (count calls)
+                                                           (format "Batch resolver %s" key)))]
+        (.put results (:parent call) (assoc (.get results (:parent call)) (::response-key call) result)))
+      {:fields fields
+       :parents results})))
+
+(defn- resolve-memoized
+  "Resolves a field once per parent value, field, arguments and
+  selection set for the memo table of a request.  Calls that are in flight on other threads
+  wait for the first one to complete."
+  [^java.util.concurrent.ConcurrentHashMap memo key resolve-fn]
+  (let [resolution (delay (resolve-fn))]
+    @(or (.putIfAbsent memo key resolution) resolution)))
+
 (defn- resolve-field-value
   "6.4.2 Value Resolution
 
@@ -129,8 +526,138 @@
         resolver (or resolver-fn
                      (resolver (str parent-type-name) (str name)))
         default-arguments (:arguments field-def)
-        final-args (args-fn arguments default-arguments variables)]
-    (resolver context parent-value final-args)))
+        final-args (with-lookahead (args-fn arguments default-arguments variables) field state)
+        hint (when (and (:cache state) (not resolver-fn))
+               (cache/hint (:cache state) parent-type-name name))
+        parent-key (when hint
+                     (cache/parent-key (:cache state) hint parent-type-name parent-value))
+        limit (when (and (:bulkheads state) (not resolver-fn))
+                (bulkhead/bulkhead (:bulkheads state) parent-type-name name))
+        batch (when-not resolver-fn
+                (::batch (meta resolver)))
+        ;; A batched field that was not prefetched, such as a root
+        ;; mutation field, is a batch of its own call with the field.
+        call (if batch
+               #(first (split-batch ((:fn batch) context [{:parent parent-value :args final-args :field field
+                                                           :variables variables :batch batch}])
+                                    1 (format "Batch resolver %s" (:key batch))))
+               #(resolver context parent-value final-args))
+        call-resolver (if limit
+                        (fn []
+                          (bulkhead/call limit
+                                         call
+                                         (fn [message]
+                                           (ex-info message {:locations [(:start (meta field))]
+                                                             :path (:path state)}))))
+                        call)
+        resolve (if (some? parent-key)
+                  ;; A resolver that read the lookahead returns a value
+                  ;; for this selection only, it is not cached.
+                  #(cache/lookup-or-resolve (:cache state) hint context
+                                            [(str parent-type-name) (str name) final-args parent-key]
+                                            call-resolver
+                                            (fn [] (not (some-> (::lookahead (meta final-args)) realized?))))
+                  call-resolver)]
+    (let [event (when (:trace-resolvers state) (Jfr/begin Jfr/RESOLVE))]
+      (try
+        ;; Root mutation fields have side effects and always run.
+        (if (and (:memo state) (not resolver-fn) (not= :mutation-root-value parent-value))
+          (resolve-memoized (:memo state)
+                            (ResolveKey. parent-value (str parent-type-name) (str name) final-args (selection-key field state))
+                            resolve)
+          (resolve))
+        (finally
+          (when (Jfr/end event)
+            (Jfr/commitResolve event (str parent-type-name) (str name) (str/join "." (:path state)))))))))
+
+(defn- leaf-field?
+  [schema field-def]
+  (#{:scalar-definition :enum-definition} (get-in schema [:type-map (named-type (:type field-def)) :tag])))
+
+(defn- record-cache-hint!
+  "Lowers the max-age of the response to the field's hint.  Fields
+  without a hint do not limit it when they are leaves below the root,
+  and make the response uncacheable otherwise."
+  [{:keys [cache cache-control schema]} parent-type-name field-name field-def]
+  (when cache-control
+    (let [hint (cache/hint cache parent-type-name field-name)
+          max-age (cond
+                    hint (:max-age hint)
+                    (some #(= (str parent-type-name) (str %)) (vals (:roots schema))) 0
+                    (and field-def (not (leaf-field? schema field-def))) 0)]
+      (when max-age
+        (swap! cache-control (fn [{:keys [scope] :as cache-control}]
+                               {:max-age (min max-age (:max-age cache-control max-age))
+                                :scope (if (= :private (or (:scope hint) scope)) :private scope)}))))))
+
+(defn- complete-object-fields
+  [field-type type-name selection-set state result]
+  (let [plan (object-plan state field-type selection-set)
+        _ (defer-fragments! field-type type-name selection-set state result)
+        result (execute-fields plan state type-name result)]
+    (if (:errors result)
+      (ex-info (format "Execution errors") {:errors (:errors result)
+                                            :data (:data result)})
+      (:data result))))
+
+(defn id-entity-key
+  "The default entity key: the :id of values of object types that
+  declare an id field."
+  [schema type-name value]
+  (when (and (map? value)
+             (get-in schema [:type-map type-name :field-map 'id]))
+    (:id value)))
+
+(defn- entity-key
+  "Returns [type-name key] identifying the entity of an object value,
+  or nil when entities are not tracked or the value has no key."
+  [{:keys [entity-key-fn schema]} type-name value]
+  (when entity-key-fn
+    (when-some [key (entity-key-fn schema type-name value)]
+      [type-name key])))
+
+(defn- complete-object
+  "Completes an object value.  When entities are tracked, an entity
+  completed earlier in the request with an identical selection set is
+  reused instead of being executed again.  In a normalized response
+  the entity's fields are added to the :entities of the response and
+  the value is replaced by a {\"__ref\" \"Type:key\"} reference."
+  [field-type type-name selection-set {:keys [subtrees entities] :as state} result]
+  (if-let [[entity-type key :as entity] (entity-key state type-name result)]
+    (let [reuse-key [entity selection-set]
+          data (or (get @subtrees reuse-key)
+                   (let [data (complete-object-fields field-type type-name selection-set state result)]
+                     (when-not (error? data)
+                       (swap! subtrees assoc reuse-key data))
+                     data))]
+      (if (and entities (not (error? data)))
+        (let [ref (str entity-type ":" key)]
+          (swap! entities update ref merge data)
+          {"__ref" ref})
+        data))
+    (complete-object-fields field-type type-name selection-set state result)))
+
+(defn- prefetch-list-batches
+  "Resolves the batched fields of the objects of a list for all of
+  them at once, for execute-fields to pick up."
+  [{:keys [selection-set]} inner-type {:keys [schema] :as state} items]
+  (let [item-type (get-in schema [:type-map (:name inner-type)])]
+    (if-let [prefetched (when (and (seq selection-set)
+                                   (#{:type-definition :interface-definition} (:tag item-type))
+                                   (sequential? items))
+                          (prefetch-batches (object-plan state item-type selection-set)
+                                            (:name item-type) (remove nil? items) state))]
+      (assoc state ::prefetched prefetched)
+      state)))
+
+(defn- serialize-value
+  "Serializes a scalar result.  A value the scalar cannot represent is
+  a field error."
+  [serialize value state]
+  (try
+    (serialize value)
+    (catch Exception e
+      (ex-info (.getMessage e) (cond-> {} (:path state) (assoc :path (:path state)))))))
 
 (defn- complete-value
   "6.4.3 Value Completion
@@ -152,28 +679,34 @@
                 (and type-name
                      (= (.toString type-name)  "Boolean")))
         (cond
-          (#{:scalar-definition :enum-definition} tag) result
+          (#{:scalar-definition :enum-definition} tag) (if-let [serialize (::serialize field)]
+                                                         (serialize-value serialize result state)
+                                                         result)
           (#{:type-definition :interface-definition} tag) (if (seq selection-set)
-                                      (let [fields (collect-fields field-type selection-set {} state)
-                                            result (execute-fields fields state type-name result)]
-                                        (if (:errors result)
-                                          (ex-info (format "Execution errors") {:errors (:errors result)
-                                                                                :data (:data result)})
-                                          (:data result)))
+                                      (complete-object field-type type-name selection-set state result)
                                       (ex-info (format "Object Field(%s) has no selection." name) {:name name}))
           (#{:basic-type} tag) (let [unwrapped-type (get-in schema [:type-map type-name])]
                                  (complete-value (assoc field :type unwrapped-type) unwrapped-type state result))
-          (#{:list-type} tag) (do
-                                (let [list-result (map #(complete-value {:selection-set selection-set
-                                                                         :name name
-                                                                         :type inner-type
-                                                                         :required (:required resolved-type)} inner-type state %) result)
-                                      errors (filter error? list-result)
-                                      data (filter #(not (error? %)) list-result)]
+          (#{:list-type} tag) (let [initial-count (stream-initial-count field state)]
+                                (or (when-let [serialize-list (and (not initial-count) (::serialize-list field))]
+                                      (serialize-value serialize-list result state))
+                                (let [state (if initial-count state (prefetch-list-batches field inner-type state result))
+                                      complete-item (fn [index item]
+                                                      (complete-value {:selection-set selection-set
+                                                                       :name name
+                                                                       :type inner-type
+                                                                       :required (:required resolved-type)
+                                                                       ::serialize (::serialize field)} inner-type (field-path state index) item))
+                                      list-result (if initial-count
+                                                    (let [list-result (doall (map-indexed complete-item (take initial-count result)))]
+                                                      (stream-items! complete-item (drop initial-count result) initial-count field state)
+                                                      list-result)
+                                                    (map-indexed complete-item result))
+                                      errors (filter error? list-result)]
                                   (if (seq errors)
-                                    (ex-info (format "Executing errors") {:errors errors
-                                                                          :data data})
-                                    data)))
+                                    (ex-info (format "Executing errors") {:errors (reduce rollup-errors nil errors)
+                                                                          :data (map #(if (error? %) (:data (ex-data %)) %) list-result)})
+                                    list-result))))
           :else (gerror/throw-error (format "Unhandled field(%s) type: %s%n resolved-type: %s%n field:%s%n" name field-type resolved-type field)))))))
 
 (defn- execute-field
@@ -186,28 +719,54 @@
   value either by recursively executing another selection set or
   coercing a scalar value."
   [parent-type-name parent-value fields field-type field-def state]
-  (let [field (first fields)
-        resolved-value (resolve-field-value field field-def state parent-type-name parent-value)]
-    (complete-value field field-type state resolved-value)))
+  (let [field (first fields)]
+    (if-let [message (::error field)]
+      (ex-info message (cond-> {:locations [(:start (meta field))]} (:path state) (assoc :path (:path state))))
+      (let [resolved-value (resolve-field-value field field-def state parent-type-name parent-value)]
+        (record-cache-hint! state parent-type-name (:name field) field-def)
+        (cond
+          (error? resolved-value) resolved-value
+          (instance? Completed resolved-value) (.-value ^Completed resolved-value)
+          :else (complete-value field field-type state resolved-value))))))
 
 (defn- execute-fields
-  "Implements the 'Executing selection sets' section of the spec for 'read' mode."
-  [fields state parent-type-name parent-value]
+  "Implements the 'Executing selection sets' section of the spec for 'read' mode.
+
+  The completed object is a ResultObject with the values of the fields
+  of the plan in the order of its layout.  Batched fields are only
+  prefetched when the plan has some."
+  [{:keys [fields ^ResultObject$Layout layout] :as plan} state parent-type-name parent-value]
   ;; (prn "execute-fields: fields:" fields)
-  (reduce (fn execute-fields-field [{:keys [errors data] :as result} [response-key response-fields]]
-            ;; (prn "execute-fields-field:" response-key)
-            ;; (prn "parent-type-name:" parent-type-name)
-            (let [field-name (:name (first response-fields))
-                  schema (:schema state)
-                  field-type (get-field-type schema parent-type-name field-name)
-                  field-def (get-field-def schema parent-type-name field-name)
-                  response-value (execute-field parent-type-name parent-value response-fields field-type field-def state)]
-              (if (not (error? response-value))
-                (update result :data assoc (str response-key) response-value)
-                {:errors (rollup-errors (:errors result) response-value)
-                 :data (assoc (:data result) (str response-key) (:data (ex-data response-value)))})))
-          {}
-          fields))
+  (let [schema (:schema state)
+        values (object-array (.size layout))
+        prefetched (::prefetched state)
+        state (cond-> state prefetched (dissoc ::prefetched))
+        prefetched (when (and (seq (:batched plan)) (not= :mutation-root-value parent-value))
+                     (if (identical? fields (:fields prefetched))
+                       prefetched
+                       (prefetch-batches plan parent-type-name [parent-value] state)))
+        batched (some-> ^java.util.Map (:parents prefetched) (.get parent-value))]
+    (loop [fields (seq fields)
+           i 0
+           errors nil]
+      (if fields
+        (let [[response-key response-fields] (first fields)
+              response-fields (if (contains? batched response-key)
+                                (let [result (get batched response-key)]
+                                  (update response-fields 0 assoc :resolver-fn (fn [context parent args] result)))
+                                response-fields)
+              field-name (:name (first response-fields))
+              field-type (get-field-type schema parent-type-name field-name)
+              field-def (get-field-def schema parent-type-name field-name)
+              response-value (execute-field parent-type-name parent-value response-fields field-type field-def
+                                            (field-path state (.key layout i)))]
+          (if (not (error? response-value))
+            (do (aset values i response-value)
+                (recur (next fields) (inc i) errors))
+            (do (aset values i (:data (ex-data response-value)))
+                (recur (next fields) (inc i) (rollup-errors errors response-value)))))
+        (cond-> {:data (ResultObject. layout values)}
+          errors (assoc :errors errors))))))
 
 (defn- guard-missing-vars [variable-definitions vars]
   (let [required-var-names (->> (remove :default-value variable-definitions) (map :name) (map str) set)
@@ -222,6 +781,24 @@
     {:errors (map (fn erorr-msg [name] (ex-info (format "Missing input variables (%s)." name) {})) missing-var-names)
      :variables variables}))
 
+(defn- coerce-variables
+  "Coerces the values of the variables of scalar types with the
+  parse-value of their scalar, when the schema has scalars."
+  [schema variable-definitions {:keys [variables] :as validation-result}]
+  (if-not (:scalars schema)
+    validation-result
+    (reduce (fn [result var-def]
+              (let [var-name (str (:name var-def))
+                    s (scalar/scalar schema (named-type (:type var-def)))]
+                (if (and s (contains? variables var-name))
+                  (try
+                    (assoc-in result [:variables var-name] (scalar/parse-value s (get variables var-name)))
+                    (catch Exception e
+                      (update result :errors concat [(ex-info (format "Variable (%s): %s" var-name (.getMessage e)) {})])))
+                  result)))
+            validation-result
+            variable-definitions)))
+
 (defn- get-operation-root-type
   "Extracts the root type of the operation from the schema."
   [{:keys [tag] :as operation} {:keys [schema] :as state}]
@@ -230,11 +807,52 @@
     :query-definition (get-in schema [:roots :query])
     :selection-set (get-in schema [:roots :query])
     :mutation (get-in schema [:roots :mutation])
+    :subscription (get-in schema [:roots :subscription])
     {:errors [{:message "Can only execute queries, mutations and subscriptions"}]}))
 
+(defn- batch-results
+  "Calls a batch mutation resolver with the arguments of the fields of
+  a run, and returns one result per field.  A batch error, or results
+  that do not match the fields, is the result of every field."
+  [batch-fn type-name run {:keys [schema context variables] :as state}]
+  (let [args (mapv (fn [[response-key [field]]]
+                     (with-lookahead (args-fn (:arguments field)
+                                              (:arguments (get-field-def schema type-name (:name field)))
+                                              variables)
+                       field state))
+                   run)
+        results (batch-fn context args)]
+    (split-batch results (count run) (format "Batch resolver for %s.%s" type-name (:name (first (val (first run))))))))
+
+(defn- batch-mutation-fields
+  "Groups consecutive root mutation fields selecting the same field,
+  such as a1: addItem(...) a2: addItem(...), when :batch-mutations
+  has a batch resolver for it.  The batch resolver is a (fn [context
+  args]) called once with the arguments of every field of the run, in
+  order, and returning their results in the same order.
+
+  The batch is called when the first field of the run is executed, so
+  the fields before it complete first, and each field of the run then
+  completes its own result in order.  Fields of the run are resolved
+  before the selection sets of any of them are completed."
+  [fields type-name {:keys [batch-mutations] :as state}]
+  (if-not batch-mutations
+    fields
+    (let [entries (->> (seq fields)
+                       (partition-by (fn [[response-key [field]]] (:name field)))
+                       (mapcat (fn [run]
+                                 (let [batch-fn (batch-mutations (str type-name) (str (:name (first (val (first run))))))]
+                                   (if-not (and batch-fn (next run))
+                                     run
+                                     (let [results (delay (batch-results batch-fn type-name run state))]
+                                       (map-indexed (fn [i [response-key fields]]
+                                                      [response-key (update fields 0 assoc :resolver-fn (fn [context parent args] (nth @results i)))])
+                                                    run)))))))]
+      (ResultObject. (key-layout fields) (object-array (map second entries))))))
+
 (defn- execute-operation
   [{:keys [tag selection-set variable-definitions] :as operation} {:keys [variables schema] :as state}]
-  (let [validation-result (guard-missing-vars variable-definitions variables)
+  (let [validation-result (coerce-variables schema variable-definitions (guard-missing-vars variable-definitions variables))
         state-with-variables (assoc state :variables (:variables validation-result))
         root-type (get-operation-root-type operation state-with-variables)
         fields (collect-fields root-type selection-set {} state-with-variables)]
@@ -243,15 +861,56 @@
     (if (seq (:errors validation-result))
       {:errors (:errors validation-result)}
       (case tag
-        :query-definition (execute-fields fields state-with-variables root-type :query-root-value)
+        :query-definition (do (defer-fragments! root-type root-type selection-set state-with-variables :query-root-value)
+                              (execute-fields (fields-plan fields root-type state-with-variables) state-with-variables root-type :query-root-value))
         ;; anonymous default query
-        :selection-set (execute-fields fields state-with-variables root-type :query-root-value)
-        ;; TODO: Execute fields serially
-        :mutation (execute-fields fields state-with-variables root-type :mutation-root-value)
+        :selection-set (do (defer-fragments! root-type root-type selection-set state-with-variables :query-root-value)
+                           (execute-fields (fields-plan fields root-type state-with-variables) state-with-variables root-type :query-root-value))
+        :mutation (do (defer-fragments! root-type root-type selection-set state-with-variables :mutation-root-value)
+                      (execute-fields (fields-plan (batch-mutation-fields fields root-type state-with-variables)
+                                                   root-type state-with-variables)
+                                      state-with-variables root-type :mutation-root-value))
+        :subscription {:errors [(ex-info "Subscription operations must be executed with subscribe." {})]}
         {:errors [{:message "Can only execute queries, mutations and subscriptions"}]}))))
 
-(defn- execute-document
-  [document state operation-name]
+(defn- subscribe-operation
+  "Implements 6.2.3 Subscription.
+
+  The resolver of the subscription root field is the source stream
+  resolver.  It returns the source event stream: a function that takes
+  a callback, calls it with each event, and returns a function that
+  stops the stream.  Each event becomes the value of the root field,
+  and the selection set is executed for it with the result passed to
+  on-response."
+  [{:keys [selection-set variable-definitions] :as operation} {:keys [variables schema] :as state} on-response]
+  (let [validation-result (coerce-variables schema variable-definitions (guard-missing-vars variable-definitions variables))
+        state-with-variables (assoc state :variables (:variables validation-result))
+        root-type (get-operation-root-type operation state-with-variables)
+        fields (collect-fields root-type selection-set {} state-with-variables)]
+    (cond
+      (seq (:errors validation-result)) (cleanup-errors {:errors (:errors validation-result)})
+      (nil? root-type) {:errors [{:message "Schema does not define a subscription root type."}]}
+      (not= 1 (count fields)) {:errors [{:message "Subscription must select exactly one top level field."}]}
+      :else
+      (let [[response-key response-fields] (first fields)
+            field (first response-fields)
+            field-def (get-field-def schema root-type (:name field))
+            source-stream (resolve-field-value field field-def state-with-variables root-type :subscription-root-value)
+            ;; Planned once for the subscription, each event is the
+            ;; root value its field resolves to.
+            event-plan (fields-plan {response-key (mapv #(assoc % :resolver-fn (fn [context parent args] parent)) response-fields)}
+                                    root-type state-with-variables)
+            on-event (fn map-source-to-response-event [event]
+                       (-> (execute-fields event-plan state-with-variables root-type event)
+                           (cleanup-errors)
+                           (on-response)))]
+        (if (fn? source-stream)
+          {:unsubscribe (source-stream on-event)}
+          {:errors [{:message (format "Subscription field (%s) did not resolve to a source event stream." (:name field))}]})))))
+
+(defn- get-operation
+  "Returns [operation errors] for the operation to execute."
+  [document operation-name]
   ;; FIXME: Should only execute one statement per request, need
   ;; additional paramter to specify which statement will be
   ;; executed. Current implementation will merge result from multiple
@@ -264,43 +923,290 @@
         operation (first operations)
         operation-count (count operations)]
     (cond
-      (= 1 operation-count) (-> (execute-operation operation state)
-                                (cleanup-errors))
-      (< operation-count 1) {:errors [{:message "No operation provided in query document."}]}
-      (> operation-count 1) {:errors [{:message "Must provide operation name if query contains multiple operations."}]})))
+      (= 1 operation-count) [operation nil]
+      (< operation-count 1) [nil {:errors [{:message "No operation provided in query document."}]}]
+      (> operation-count 1) [nil {:errors [{:message "Must provide operation name if query contains multiple operations."}]}])))
+
+(defn- add-cache-control
+  "Adds the max-age and scope the response may be cached for, when
+  executing with a field cache.  Responses with errors are not
+  cacheable."
+  [result {:keys [cache-control]}]
+  (if cache-control
+    (let [{:keys [max-age scope]} @cache-control]
+      (assoc-in result [:extensions :cacheControl]
+                {:maxAge (if (seq (:errors result)) 0 (or max-age 0))
+                 :scope (if (= :private scope) "PRIVATE" "PUBLIC")}))
+    result))
+
+(defn- add-entities
+  [result {:keys [entities]}]
+  (if entities
+    (assoc result :entities @entities)
+    result))
+
+(defn- operation-type
+  [{:keys [tag]}]
+  (case tag
+    (:query-definition :selection-set) "query"
+    :mutation "mutation"
+    :subscription "subscription"
+    (str tag)))
+
+(defn- execute-prepared-operation
+  [document operation state]
+  (let [event (Jfr/begin Jfr/EXECUTE)
+        result (-> (execute-operation operation state)
+                   (cleanup-errors)
+                   (add-cache-control state)
+                   (add-entities state))]
+    (when (Jfr/end event)
+      (Jfr/commitExecute event (some-> (:name operation) str) (operation-type operation)
+                         (qv/document-hash document) (count (:errors result))))
+    result))
+
+(defn- execute-document
+  [document state operation-name]
+  (let [[operation errors] (get-operation document operation-name)]
+    (or errors
+        (execute-prepared-operation document operation state))))
+
+(defn- subsequent-payloads
+  [incremental]
+  (lazy-seq
+   (when-let [payload-fn (peek @incremental)]
+     (swap! incremental pop)
+     (let [payload (payload-fn)]
+       (cons (assoc payload :hasNext (boolean (peek @incremental)))
+             (subsequent-payloads incremental))))))
+
+(defn- execute-document-incrementally
+  [document state operation-name]
+  (let [incremental (atom clojure.lang.PersistentQueue/EMPTY)]
+    (lazy-seq
+     (let [result (execute-document document (assoc state :incremental incremental :path []) operation-name)]
+       (cons (assoc result :hasNext (boolean (peek @incremental)))
+             (subsequent-payloads incremental))))))
+
+(defn- init-request-state
+  "Creates the state collected while executing one operation."
+  [state]
+  (cond-> (assoc state :plans (java.util.Collections/synchronizedMap (java.util.IdentityHashMap.)))
+    (Jfr/isEnabled Jfr/RESOLVE) (assoc :trace-resolvers true)
+    (:cache state) (assoc :cache-control (atom nil))
+    (:entity-key-fn state) (assoc :subtrees (atom {}))
+    (:normalize state) (assoc :entities (atom {}))))
+
+(defn- create-state
+  ([context schema resolver-fn variables]
+   (create-state context schema resolver-fn variables nil))
+  ([context schema resolver-fn variables {:keys [cache memoize reuse-entities normalize bulkheads batch-mutations]}]
+   (-> {:variables (clojure.walk/stringify-keys variables)
+        :context context
+        :schema schema
+        :resolver (resolver/create-resolver-fn schema resolver-fn)}
+       (cond->
+         cache (assoc :cache cache)
+         bulkheads (assoc :bulkheads bulkheads)
+         batch-mutations (assoc :batch-mutations batch-mutations)
+         memoize (assoc :memo (java.util.concurrent.ConcurrentHashMap.))
+         (or reuse-entities normalize) (assoc :entity-key-fn (if (fn? reuse-entities) reuse-entities id-entity-key))
+         normalize (assoc :normalize true))
+       (init-request-state))))
+
+(defn- validate-inputs
+  "Validates the schema and document when they are given as strings.
+  Returns [validated-schema validated-document]."
+  [string-or-validated-schema string-or-validated-document & [{:keys [parse-limits]}]]
+  (let [validated-schema (if (string? string-or-validated-schema)
+                           (sv/validate-schema string-or-validated-schema)
+                           string-or-validated-schema)
+        validated-document (if (string? string-or-validated-document)
+                             (try
+                               (qv/validate-query validated-schema
+                                                  (if parse-limits
+                                                    (parser/parse-query-document string-or-validated-document parse-limits)
+                                                    string-or-validated-document))
+                               (catch Exception e
+                                 [(:errors (ex-data e)) nil]))
+                             string-or-validated-document)]
+    [validated-schema validated-document]))
+
+(defn- prepare-operation
+  "Validates an operation of a batch.  Returns a map with the
+  validated :document, the :operation and its :variables, or the
+  :errors result."
+  [validated-schema options [document variables operation-name]]
+  (let [[_ [statement-errors validated-document]] (validate-inputs validated-schema document options)
+        [operation errors] (when-not (seq statement-errors)
+                             (get-operation validated-document operation-name))]
+    (cond
+      (seq statement-errors) {:errors {:errors statement-errors}}
+      errors {:errors errors}
+      :else {:document validated-document
+             :operation operation
+             :variables variables})))
+
+(defn- deref-result
+  [result]
+  (try
+    @result
+    (catch java.util.concurrent.ExecutionException e
+      (throw (or (.getCause e) e)))))
 
 ;; Public API
 
 (defn execute-validated-document
-  ([context schema resolver-fn [statement-errors document] variables operation-name]
+  ([context schema resolver-fn [statement-errors document] variables operation-name options]
    (if (seq statement-errors)
      {:errors statement-errors}
      (execute-document document
-                       {:variables (clojure.walk/stringify-keys variables)
-                        :context context
-                        :schema schema
-                        :resolver (resolver/create-resolver-fn schema resolver-fn)}
+                       (create-state context schema resolver-fn variables options)
                        operation-name)))
+  ([context schema resolver-fn validated-document variables operation-name]
+   (execute-validated-document context schema resolver-fn validated-document variables operation-name nil))
   ([context validated-schema resolver-fn validated-document]
    (execute-validated-document context validated-schema resolver-fn validated-document nil nil))
   ([context validated-schema resolver-fn validated-document variables]
    (execute-validated-document context validated-schema resolver-fn validated-document variables nil)))
 
 (defn execute
+  "Executes a query or mutation.  options is a map of:
+
+    :cache    a field cache from graphql-clj.cache/create-cache.
+              Fields with a cache hint are resolved through it, and the
+              result gets [:extensions :cacheControl] with the :maxAge
+              in seconds and the :scope the response may be cached for.
+    :memoize  when true, a field is resolved once per parent value
+              (by identity), type, field, coerced arguments and
+              selection set in the request, so aliased and
+              fragment-duplicated selections do not call their resolver
+              again.  Selections of the same field with different
+              sub-selections are resolved separately, as their
+              lookaheads differ.  Root mutation fields are never
+              memoized.
+    :reuse-entities
+              true, or a (fn [schema type-name value]) returning the
+              key of an entity.  An entity completed with the same
+              selection set earlier in the request is reused instead of
+              being executed again.  By default entities are values
+              with an :id of object types declaring an id field.
+    :normalize
+              when true, entities are returned once in the :entities
+              of the result, keyed by \"Type:key\", and referenced as
+              {\"__ref\" \"Type:key\"} in the data.
+    :bulkheads
+              bulkheads from graphql-clj.bulkhead/create-bulkheads,
+              limiting the concurrent calls of the resolvers of their
+              fields.  A call rejected by its bulkhead is a field
+              error at the path of the field.
+    :batch-mutations
+              a (fn [type-name field-name]) returning a batch resolver
+              for a root mutation field, or nil.  Consecutive root
+              fields selecting the field are resolved with one call of
+              the batch resolver, a (fn [context args]) given the
+              arguments of every field in order and returning their
+              results in the same order.  Results are completed in
+              order, after the whole batch is resolved.
+    :parse-limits
+              a map of parser limits (see graphql-clj.parser/limits)
+              applied when the document is given as a string.  A
+              document exceeding a limit is rejected with an error
+              before it is parsed any further."
+  ([context string-or-validated-schema resolver-fn string-or-validated-document variables operation-name options]
+   (let [[validated-schema validated-document] (validate-inputs string-or-validated-schema string-or-validated-document options)]
+     (execute-validated-document context validated-schema resolver-fn validated-document variables operation-name options)))
   ([context string-or-validated-schema resolver-fn string-or-validated-document variables operation-name]
+   (execute context string-or-validated-schema resolver-fn string-or-validated-document variables operation-name nil))
+  ([context string-or-validated-schema resolver-fn string-or-validated-document variables]
+   (execute context string-or-validated-schema resolver-fn string-or-validated-document variables nil))
+  ([context string-or-validated-schema resolver-fn string-or-validated-document]
+   (execute context string-or-validated-schema resolver-fn string-or-validated-document nil nil)))
+
+(defn execute-batch
+  "Executes a batch of operations, each given as [document variables
+  operation-name] with optional variables and operation-name, and
+  returns a vector of their results in order.
+
+  The operations share one memo table, so a field resolved for the
+  same parent value with the same arguments and selection set in
+  several operations, or several times in one, is resolved once.  Root
+  fields of queries share the same parent, so repeated loads of the
+  same entity hit the backend once per batch.  Selection sets that
+  reference variables are only shared between operations with the same
+  values for them.  Consecutive queries run concurrently, while
+  mutations and the operations around them run in order.  Mutations
+  are not memoized and clear the memo table, so later operations see
+  their effects.  options are the options of execute."
+  ([context string-or-validated-schema resolver-fn operations options]
    (let [validated-schema (if (string? string-or-validated-schema)
                             (sv/validate-schema string-or-validated-schema)
                             string-or-validated-schema)
-         validated-document (if (string? string-or-validated-document)
-                              (try
-                                (qv/validate-query validated-schema string-or-validated-document)
-                                (catch Exception e
-                                  [(:errors (ex-data e)) nil]))
-                              string-or-validated-document)]
-     (execute-validated-document context validated-schema resolver-fn validated-document variables operation-name)))
+         state (create-state context validated-schema resolver-fn nil (assoc options :memoize true))
+         query? (fn [{:keys [operation]}]
+                  (contains? #{:query-definition :selection-set} (:tag operation)))
+         execute-prepared (fn [{:keys [document operation variables errors] :as prepared}]
+                            (or errors
+                                (let [operation-state (cond-> (-> (assoc state :variables (clojure.walk/stringify-keys variables))
+                                                                  (init-request-state))
+                                                        (not (query? prepared)) (dissoc :memo))]
+                                  (try
+                                    (execute-prepared-operation document operation operation-state)
+                                    (finally
+                                      (when-not (query? prepared)
+                                        (.clear ^java.util.Map (:memo state))))))))]
+     (->> operations
+          (map #(prepare-operation validated-schema options %))
+          (partition-by query?)
+          (mapcat (fn [prepared]
+                    (if (and (next prepared) (query? (first prepared)))
+                      (->> (mapv #(future (execute-prepared %)) prepared)
+                           (mapv deref-result))
+                      (mapv execute-prepared prepared))))
+          (vec))))
+  ([context string-or-validated-schema resolver-fn operations]
+   (execute-batch context string-or-validated-schema resolver-fn operations nil)))
+
+(defn execute-incremental
+  "Executes like `execute`, but delivers @defer fragments and @stream
+  list items incrementally.  Returns a lazy sequence of payloads: the
+  initial result followed by one patch per deferred fragment or
+  streamed item.  Every payload has a :hasNext flag, and patches carry
+  the :path they apply to (and the directive's :label) along with
+  either :data or :items.  Deferred work only runs as the sequence is
+  consumed, so a transport can flush each payload, for example as a
+  multipart or SSE chunk, before the next one is computed."
+  ([context string-or-validated-schema resolver-fn string-or-validated-document variables operation-name]
+   (let [[validated-schema [statement-errors document]] (validate-inputs string-or-validated-schema string-or-validated-document)]
+     (if (seq statement-errors)
+       (list {:errors statement-errors :hasNext false})
+       (execute-document-incrementally document
+                                       (create-state context validated-schema resolver-fn variables)
+                                       operation-name))))
   ([context string-or-validated-schema resolver-fn string-or-validated-document variables]
-   (execute context string-or-validated-schema resolver-fn string-or-validated-document variables nil))
+   (execute-incremental context string-or-validated-schema resolver-fn string-or-validated-document variables nil))
   ([context string-or-validated-schema resolver-fn string-or-validated-document]
-   (execute context string-or-validated-schema resolver-fn string-or-validated-document nil nil)))
+   (execute-incremental context string-or-validated-schema resolver-fn string-or-validated-document nil nil)))
 
+(defn subscribe
+  "Executes a subscription operation.  The resolver of the subscription
+  root field returns a source event stream: a function taking a
+  callback, which it calls with each event, and returning a function
+  that stops the stream.  For every event the selection set is
+  executed with the event as the value of the root field, and the
+  result is passed to on-response.
 
+  Returns {:unsubscribe f} where calling f stops the source stream, or
+  {:errors errors} when the subscription could not be created."
+  ([context string-or-validated-schema resolver-fn string-or-validated-document variables operation-name on-response]
+   (let [[validated-schema [statement-errors document]] (validate-inputs string-or-validated-schema string-or-validated-document)
+         [operation errors] (when-not (seq statement-errors) (get-operation document operation-name))]
+     (cond
+       (seq statement-errors) {:errors statement-errors}
+       errors errors
+       (not= :subscription (:tag operation)) {:errors [{:message "Operation is not a subscription."}]}
+       :else (subscribe-operation operation
+                                  (create-state context validated-schema resolver-fn variables)
+                                  on-response))))
+  ([context string-or-validated-schema resolver-fn string-or-validated-document variables on-response]
+   (subscribe context string-or-validated-schema resolver-fn string-or-validated-document variables nil on-response)))
@@ -3,9 +3,10 @@
             [clojure.string :as string]
             [clojure.java.io :as io]))
 
-(def introspection-schema-str (slurp (io/resource "introspection.schema")))
+;; Delays, so loading the namespace does not read and parse the schema.
+(def introspection-schema-str (delay (slurp (io/resource "introspection.schema"))))
 
-(def introspection-schema (parser/parse-schema introspection-schema-str))
+(def introspection-schema (delay (parser/parse-schema @introspection-schema-str)))
 
 (def introspection-query (slurp (io/resource "introspection.graphql")))
 
@@ -3,7 +3,7 @@
             [clojure.set :as set]
             [clojure.string :as str]
             [clojure.pprint :refer [pprint] :as pp])
-  (:import [graphql_clj Parser ParseException]))
+  (:import [graphql_clj Parser Parser$Limits ParseException Printer]))
 
 (defn- unescape
   "Unescapes a string's escaped values according to the graphql spec."
@@ -287,17 +287,102 @@
                     :column (:column location)
                     :index (:index location)}]})))
 
-(defn parse-schema [^String input]
-  (try
-    (.parseSchema (Parser. input))
-    (catch ParseException e
-      (throw (ex-info "Failed parse schema." {:errors [(parse-exception->error e)]})))))
-
-(defn parse-query-document [^String input]
-  (try
-    (.parseQueryDocument (Parser. input))
-    (catch ParseException e
-      (throw (ex-info "Failed parse query document." {:errors [(parse-exception->error e)]})))))
+(defn limits
+  "Returns the Parser$Limits of a map of limits.  Missing keys get the
+  default limit:
+
+    :max-document-size  maximum number of characters of the document
+    :max-tokens         maximum number of tokens, excluding whitespace,
+                        commas and comments
+    :max-depth          maximum nesting depth of {, [ and ( (default 500)
+    :max-string-length  maximum number of characters of a string
+                        literal, including its quotes"
+  [{:keys [max-document-size max-tokens max-depth max-string-length]}]
+  (Parser$Limits. (or max-document-size Integer/MAX_VALUE)
+                  (or max-tokens Integer/MAX_VALUE)
+                  (or max-depth 500)
+                  (or max-string-length Integer/MAX_VALUE)))
+
+(defn- parser
+  ^Parser [^String input limits-map]
+  (if limits-map
+    (Parser. input (limits limits-map))
+    (Parser. input)))
+
+(defn parse-schema
+  "Parses a schema.  limits is a map of the limits described in
+  limits.  Throws ex-info with {:errors errors} when the schema cannot
+  be parsed or exceeds a limit."
+  ([^String input]
+   (parse-schema input nil))
+  ([^String input limits]
+   (try
+     (.parseSchema (parser input limits))
+     (catch ParseException e
+       (throw (ex-info "Failed parse schema." {:errors [(parse-exception->error e)]}))))))
+
+(defn parse-query-document
+  "Parses a query document.  limits is a map of the limits described
+  in limits.  A document exceeding a limit is rejected as soon as the
+  limit is reached.  Throws ex-info with {:errors errors} when the
+  document cannot be parsed or exceeds a limit."
+  ([^String input]
+   (parse-query-document input nil))
+  ([^String input limits]
+   (try
+     (.parseQueryDocument (parser input limits))
+     (catch ParseException e
+       (throw (ex-info "Failed parse query document." {:errors [(parse-exception->error e)]}))))))
+
+(defn canonical-query
+  "Returns the canonical text of a query document string, computed
+  from its tokens without parsing it.  Documents that differ only in
+  whitespace, commas and comments have the same canonical text.  With
+  {:hoist-literals true}, inline argument values and variable default
+  values are replaced by a placeholder, which groups operations that
+  differ only in their literals, e.g. for metrics.
+
+  The canonical text can key a cache of parsed documents; a cached
+  document keeps the source locations of the variant it was parsed
+  from.  Throws ex-info like parse-query-document on lexical errors."
+  ([^String input]
+   (canonical-query input nil))
+  ([^String input {:keys [hoist-literals]}]
+   (try
+     (.canonicalQuery (Parser. input) (boolean hoist-literals))
+     (catch ParseException e
+       (throw (ex-info "Failed parse query document." {:errors [(parse-exception->error e)]}))))))
+
+(defn fingerprint
+  "Returns the SHA-256 of the canonical text of a query document, as a
+  hex string.  options are the options of canonical-query."
+  ([^String input]
+   (fingerprint input nil))
+  ([^String input options]
+   (let [digest (.digest (java.security.MessageDigest/getInstance "SHA-256")
+                         (.getBytes ^String (canonical-query input options) "UTF-8"))]
+     (apply str (map #(format "%02x" (bit-and % 0xff)) digest)))))
+
+(defn print-document
+  "Prints a query document, parsed or validated, as minimal GraphQL
+  text.  Returns a string, or writes to out, an Appendable such as a
+  StringBuilder or a java.io.Writer, when it is given.  Options:
+
+    :operation-name         only prints the operation with this name
+    :drop-unused-fragments  only prints the fragments the printed
+                            operations spread
+    :drop-unused-variables  leaves out the variable definitions an
+                            operation does not reference
+
+  A document returned by graphql-clj.query-validator/validate-query
+  has its fragments inlined, and its directives with constant
+  conditions applied, so it prints as a smaller document."
+  ([document]
+   (print-document document nil))
+  ([document {:keys [operation-name drop-unused-fragments drop-unused-variables]}]
+   (Printer/print document (some-> operation-name name) (boolean drop-unused-fragments) (boolean drop-unused-variables)))
+  ([document {:keys [operation-name drop-unused-fragments drop-unused-variables]} ^Appendable out]
+   (Printer/print document (some-> operation-name name) (boolean drop-unused-fragments) (boolean drop-unused-variables) out)))
 
 (def ^:private example-schema
 "enum DogCommand { SIT, DOWN, HEEL }
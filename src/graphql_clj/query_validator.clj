@@ -3,7 +3,8 @@
             [graphql-clj.schema-validator :as schema-validator]
             [clojure.string :as str]
             [clojure.set :as set]
-            [clojure.pprint :refer [pprint]]))
+            [clojure.pprint :refer [pprint]])
+  (:import [graphql_clj Jfr]))
 
 (def ^:private ^:dynamic *schema*)
 (def ^:private ^:dynamic *fragment-map*)
@@ -51,6 +52,7 @@
 
 (def ^:private tag-image
   {:mutation "mutation"
+   :subscription "subscription"
    :query-definition "query"})
 
 (defn- coersable-value [t v]
@@ -177,6 +179,59 @@
 (defn- merge-in-selection-set [sset vfrag]
   (into sset (:selection-set vfrag)))
 
+;; Returns the constant value of a @skip or @include condition: true
+;; when the selection is always included, false when it is always
+;; skipped, and nil when the directive is not one of the two or its
+;; condition depends on a variable.
+(defn- constant-directive-condition [{:keys [name arguments]}]
+  (when (or (= 'skip name) (= 'include name))
+    (let [v (some #(when (= 'if (:name %)) (:value %)) arguments)]
+      (when (= :boolean-value (:tag v))
+        (if (= 'skip name) (not (:value v)) (:value v))))))
+
+;; Folds constant @skip and @include conditions of a validated
+;; selection.  Returns nil when the selection is always skipped, or
+;; the selection without its always-true conditions.  Since the
+;; validated document is what gets cached and executed, skipped
+;; subtrees never reach the executor.  Conditions on variables are
+;; evaluated by the executor when collecting fields.
+(defn- fold-directives [f]
+  (if-let [ds (:directives f)]
+    (let [conds (mapv constant-directive-condition ds)]
+      (when-not (some false? conds)
+        (let [ds' (into [] (remove (comp true? constant-directive-condition)) ds)]
+          (if (empty? ds')
+            (dissoc f :directives)
+            (assoc f :directives (with-meta ds' (meta ds)))))))
+    f))
+
+(defn- check-value-variables [errors var-map value instantiated]
+  (case (:tag value)
+    :variable-reference
+    (let [vname (:name value)]
+      (if (contains? var-map vname)
+        (do (swap! *var-use* conj vname) errors)
+        (err errors instantiated value "variable '$%s' is not defined" vname)))
+
+    :list-value
+    (reduce #(check-value-variables %1 var-map %2 instantiated) errors (:values value))
+
+    :object-value
+    (reduce #(check-value-variables %1 var-map (:value %2) instantiated) errors (:fields value))
+
+    errors))
+
+(defn- check-directive-variables [errors var-map {:keys [directives]} instantiated]
+  (reduce (fn [errors {:keys [value]}]
+            (check-value-variables errors var-map value instantiated))
+          errors
+          (mapcat :arguments directives)))
+
+(defn- conj-folded [sset f]
+  (if-let [f (fold-directives f)]
+    (conj sset f)
+    sset))
+
 ;; check the :selection-set member of a decl and return decl with a
 ;; validated :selection-set
 (defn- check-selection-set [errors var-map tname decl declaration instantiated]
@@ -189,47 +244,58 @@
     [errors decl] ;; declaration already marked as error, skip
     (let [fmap (get-in *schema* [:type-map tname :field-map])
           r (fn [[errors sset] f]
-              (case (:tag f)
-                :selection-field
-                (let [fname (:name f)]
-                  (if-let [fdecl (fmap fname)]
-                    (let [errors (check-arguments errors var-map fdecl f declaration instantiated)
-                          [errors vf] (if (:selection-set f)
-                                        (check-selection-set errors var-map (base-type (:type fdecl)) f declaration instantiated)
-                                        [errors f])]
-                      [errors (conj sset (assoc vf :resolved-type (:type fdecl)))])
-                    [(if-let [alias (:alias f)]
-                       (err errors declaration fname "field '%s' (aliased as '%s') is not defined on type '%s'" fname alias tname)
-                       (err errors declaration fname "field '%s' is not defined on type '%s'" fname tname))
-                     sset]))
+              (let [errors (check-directive-variables errors var-map f instantiated)]
+                (case (:tag f)
+                  :selection-field
+                  (let [fname (:name f)]
+                    (if-let [fdecl (fmap fname)]
+                      (let [errors (check-arguments errors var-map fdecl f declaration instantiated)
+                            [errors vf] (if (:selection-set f)
+                                          (check-selection-set errors var-map (base-type (:type fdecl)) f declaration instantiated)
+                                          [errors f])]
+                        [errors (conj-folded sset (assoc vf :resolved-type (:type fdecl)))])
+                      [(if-let [alias (:alias f)]
+                         (err errors declaration fname "field '%s' (aliased as '%s') is not defined on type '%s'" fname alias tname)
+                         (err errors declaration fname "field '%s' is not defined on type '%s'" fname tname))
+                       sset]))
           
-                :inline-fragment
-                (let [on (get-in f [:on :name])
-                      ontype (get-in *schema* [:type-map on])]
-                  (if (composite-type? (:tag ontype))
-                    (let [[errors vf] (check-selection-set errors var-map on f declaration instantiated)]
-                      ;; [errors (merge-in-selection-set sset vf)]
-                      [errors (conj sset vf)])
-                    [(if ontype
-                       (err errors declaration on "inline fragment on non-composite type '%s'" on)
-                       (err errors declaration on "inline fragment on undefined type '%s'" on))
-                     sset]))
+                  :inline-fragment
+                  (let [on (or (get-in f [:on :name]) tname) ; no type condition applies to the enclosing type
+                        ontype (get-in *schema* [:type-map on])]
+                    (if (composite-type? (:tag ontype))
+                      (let [[errors vf] (check-selection-set errors var-map on f declaration instantiated)]
+                        ;; [errors (merge-in-selection-set sset vf)]
+                        [errors (conj-folded sset vf)])
+                      [(if ontype
+                         (err errors declaration on "inline fragment on non-composite type '%s'" on)
+                         (err errors declaration on "inline fragment on undefined type '%s'" on))
+                       sset]))
           
-                :fragment-spread
-                (let [fname (:name f)]
-                  (if (get-in *trace* [:set fname])
-                    [(err errors true fname "fragment cycle detected: %s" (fragment-cycle-string fname)) sset]
-                    (if-let [frag (*fragment-map* (:name f))]
-                      (if instantiated
-                        (binding [*trace* (-> *trace* (update :stack conj f) (update :set conj fname))]
-                          (let [[errors vf] (check-selection-set errors var-map tname frag false true)]
-                            [errors (merge-in-selection-set sset vf)])) ;; use [errors (conj sset vf)] to return inlined fragments
-                        [errors sset])
-                      ;; only warn about undefined fragments at top-level
-                      ;; decls (detected by an empty trace).  Otherwise every
-                      ;; included fragment would cause this warning.
-                      ;;(if (empty? (:stack *trace*))
-                      [(err errors declaration fname "fragment '%s' is not defined" fname) sset])))))
+                  :fragment-spread
+                  (let [fname (:name f)]
+                    (if (get-in *trace* [:set fname])
+                      [(err errors true fname "fragment cycle detected: %s" (fragment-cycle-string fname)) sset]
+                      (if-let [frag (*fragment-map* (:name f))]
+                        (if instantiated
+                          (binding [*trace* (-> *trace* (update :stack conj f) (update :set conj fname))]
+                            (let [[errors vf] (check-selection-set errors var-map tname frag false true)
+                                  folded (fold-directives f)]
+                              (cond
+                                (nil? folded) [errors sset]
+                                ;; keep the remaining conditions of the spread by inlining it
+                                ;; as an inline fragment.
+                                (:directives folded) [errors (conj sset (with-meta {:tag :inline-fragment
+                                                                                    :on (:on frag)
+                                                                                    :directives (:directives folded)
+                                                                                    :selection-set (:selection-set vf)}
+                                                                          (meta f)))]
+                                :else [errors (merge-in-selection-set sset vf)]))) ;; use [errors (conj sset vf)] to return inlined fragments
+                          [errors sset])
+                        ;; only warn about undefined fragments at top-level
+                        ;; decls (detected by an empty trace).  Otherwise every
+                        ;; included fragment would cause this warning.
+                        ;;(if (empty? (:stack *trace*))
+                        [(err errors declaration fname "fragment '%s' is not defined" fname) sset]))))))
           [errors sset] (reduce r [errors []] (:selection-set decl))]
       [errors (assoc decl :selection-set sset)])))
   
@@ -267,6 +333,15 @@
        (remove var-use)
        (reduce #(err %1 true %2 "variable '$%s' is not used" %2) errors)))
 
+;; Returns the set of response keys selected at the top level of a
+;; validated selection set.
+(defn- root-response-keys [sset]
+  (into #{} (mapcat (fn [f]
+                      (case (:tag f)
+                        :selection-field [(or (:alias f) (:name f))]
+                        :inline-fragment (root-response-keys (:selection-set f)))))
+        sset))
+
 (defn- check-definition [[errors vquery dmap] decl]
   (case (:tag decl)
     :selection-set
@@ -275,10 +350,11 @@
               (check-selection-set {} (get-in *schema* [:roots :query]) decl true true))]
       [errors (conj vquery vdecl) (assoc dmap nil vdecl)])
         
-    (:mutation :query-definition)
+    (:mutation :subscription :query-definition)
     (let [name (:name decl)
           root (case (:tag decl)
                  :mutation (get-in *schema* [:roots :mutation])
+                 :subscription (get-in *schema* [:roots :subscription])
                  :query-definition (get-in *schema* [:roots :query]))
           errors (cond-> errors (dmap name) (err true name "operation with name '%s' is already declared" name))
           [errors var-map] (reduce map-var-decl [errors {}] (:variable-definitions decl))]
@@ -288,7 +364,11 @@
               ;; TODO: do not call check-selection-set when (nil? root)
               [errors vdecl] (binding [*var-use* var-use]
                                (check-selection-set errors var-map root decl true true))
-              errors (check-vars-used errors var-map @var-use)]
+              errors (check-vars-used errors var-map @var-use)
+              errors (cond-> errors
+                       (and (= :subscription (:tag decl))
+                            (not= 1 (count (root-response-keys (:selection-set vdecl)))))
+                       (err true decl "subscription must select exactly one top level field"))]
           [errors (conj vquery vdecl) (assoc dmap name vdecl)])))
 
     :fragment-definition
@@ -325,18 +405,251 @@
        (err true anon "anonymous selection set must be lone operation"))
      vquery]))
 
+;; Overlapping fields can be merged (spec 5.2.2).
+;;
+;; Comparing every pair of fields in a document is quadratic, and each
+;; fragment spread would re-collect the same fields again.  Following
+;; the reference implementation, fields are grouped by response key so
+;; that only fields sharing a key are compared, the collected fields of
+;; each selection set are cached by identity, and each pair of
+;; fragments is compared at most once.  Identical fields within a
+;; group are compared once, so generated queries that repeat the same
+;; field thousands of times stay linear.  Distinct fields sharing a
+;; response key are still compared pairwise, so the work remains
+;; quadratic in the size of the largest group, and in the number of
+;; fragments spread in one selection set.
+
+(def ^:private ^:dynamic *fields-cache*)
+(def ^:private ^:dynamic *compared-fragment-pairs*)
+
+(defn- response-key [f]
+  (or (:alias f) (:name f)))
+
+(defn- object-type? [tname]
+  (= :type-definition (get-in *schema* [:type-map tname :tag])))
+
+(defn- leaf-type? [tname]
+  (#{:scalar-definition :enum-definition} (get-in *schema* [:type-map tname :tag])))
+
+;; Returns [field-map fragment-names] for a selection set.  field-map
+;; is a map of response key to a vector of [parent-type field
+;; field-declaration], fragment-names are the distinct names of the
+;; fragments spread in the selection set.  Inline fragments are
+;; flattened into the result.
+(defn- fields-and-fragment-names [tname sset]
+  (let [^java.util.Map cache *fields-cache*]
+    (or (.get cache sset)
+        (letfn [(collect [acc tname sset]
+                  (reduce (fn [[fields fnames :as acc] s]
+                            (case (:tag s)
+                              :selection-field
+                              (let [fdecl (get-in *schema* [:type-map tname :field-map (:name s)])]
+                                [(update fields (response-key s) (fnil conj []) [tname s fdecl]) fnames])
+                              :inline-fragment
+                              (collect acc (or (get-in s [:on :name]) tname) (:selection-set s))
+                              :fragment-spread
+                              [fields (if (some #{(:name s)} fnames) fnames (conj fnames (:name s)))]))
+                          acc sset))]
+          (let [r (collect [{} []] tname sset)]
+            (.put cache sset r)
+            r)))))
+
+(defn- fragment-fields-and-fragment-names [fname]
+  (let [frag (*fragment-map* fname)]
+    (when (map? frag)
+      (fields-and-fragment-names (get-in frag [:on :name]) (:selection-set frag)))))
+
+(defn- arguments-map [f]
+  (into {} (map (juxt :name :value)) (:arguments f)))
+
+(defn- types-conflict? [t1 t2]
+  (cond
+    (not= (boolean (:required t1)) (boolean (:required t2))) true
+    (or (= :list-type (:tag t1)) (= :list-type (:tag t2)))
+    (or (not= (:tag t1) (:tag t2))
+        (recur (:inner-type t1) (:inner-type t2)))
+    (or (leaf-type? (:name t1)) (leaf-type? (:name t2)))
+    (not= (:name t1) (:name t2))
+    :else false))
+
+(declare find-conflicts-between-sub-selection-sets)
+
+;; Returns a conflict [response-key reason field1 field2] or nil.  The
+;; reason is either a string or a vector of conflicts in the
+;; sub-selections.
+(defn- find-conflict [exclusive k [t1 f1 d1] [t2 f2 d2]]
+  (let [exclusive (or exclusive (and (not= t1 t2) (object-type? t1) (object-type? t2)))
+        type1 (:type d1)
+        type2 (:type d2)]
+    (cond
+      (and (not exclusive) (not= (:name f1) (:name f2)))
+      [k (format "'%s' and '%s' are different fields" (:name f1) (:name f2)) f1 f2]
+
+      (and (not exclusive) (not= (arguments-map f1) (arguments-map f2)))
+      [k "they have differing arguments" f1 f2]
+
+      (and type1 type2 (types-conflict? type1 type2))
+      [k (format "they return conflicting types '%s' and '%s'" (type-string type1) (type-string type2)) f1 f2]
+
+      (and (:selection-set f1) (:selection-set f2))
+      (let [sub (find-conflicts-between-sub-selection-sets
+                 exclusive
+                 (when type1 (base-type type1)) (:selection-set f1)
+                 (when type2 (base-type type2)) (:selection-set f2))]
+        (when (seq sub)
+          [k sub f1 f2])))))
+
+(defn- collect-conflicts-within [conflicts field-map]
+  (reduce-kv (fn [conflicts k fields]
+               (let [fields (vec (distinct fields))]
+                 (reduce (fn [conflicts [i j]]
+                           (if-let [c (find-conflict false k (fields i) (fields j))]
+                             (conj conflicts c)
+                             conflicts))
+                         conflicts
+                         (for [i (range (count fields)) j (range (inc i) (count fields))] [i j]))))
+             conflicts
+             field-map))
+
+(defn- collect-conflicts-between [conflicts exclusive field-map-1 field-map-2]
+  (reduce-kv (fn [conflicts k fields-1]
+               (if-let [fields-2 (field-map-2 k)]
+                 (reduce (fn [conflicts [f1 f2]]
+                           (if-let [c (find-conflict exclusive k f1 f2)]
+                             (conj conflicts c)
+                             conflicts))
+                         conflicts
+                         (for [f1 (distinct fields-1) f2 (distinct fields-2)] [f1 f2]))
+                 conflicts))
+             conflicts
+             field-map-1))
+
+(defn- collect-conflicts-between-fields-and-fragment* [[conflicts visited :as acc] exclusive field-map fname]
+  ;; visited guards against fragment cycles, which are reported
+  ;; elsewhere.
+  (if (visited fname)
+    acc
+    (let [visited (conj visited fname)
+          [field-map-2 fnames-2] (fragment-fields-and-fragment-names fname)]
+      (if (or (nil? field-map-2) (identical? field-map field-map-2))
+        [conflicts visited]
+        (reduce #(collect-conflicts-between-fields-and-fragment* %1 exclusive field-map %2)
+                [(collect-conflicts-between conflicts exclusive field-map field-map-2) visited]
+                fnames-2)))))
+
+(defn- collect-conflicts-between-fields-and-fragment [conflicts exclusive field-map fname]
+  (first (collect-conflicts-between-fields-and-fragment* [conflicts #{}] exclusive field-map fname)))
+
+(defn- compared-fragment-pair? [exclusive pair]
+  (let [compared @*compared-fragment-pairs*]
+    ;; a pair compared as non-exclusive covers the exclusive case too.
+    (or (compared [pair false])
+        (and exclusive (compared [pair true])))))
+
+(defn- collect-conflicts-between-fragments [conflicts exclusive fname-1 fname-2]
+  (let [pair (if (neg? (compare fname-1 fname-2)) [fname-1 fname-2] [fname-2 fname-1])]
+    (if (or (= fname-1 fname-2) (compared-fragment-pair? exclusive pair))
+      conflicts
+      (do
+        (swap! *compared-fragment-pairs* conj [pair exclusive])
+        (let [[field-map-1 fnames-1] (fragment-fields-and-fragment-names fname-1)
+              [field-map-2 fnames-2] (fragment-fields-and-fragment-names fname-2)]
+          (if (or (nil? field-map-1) (nil? field-map-2))
+            conflicts
+            (as-> (collect-conflicts-between conflicts exclusive field-map-1 field-map-2) conflicts
+              (reduce #(collect-conflicts-between-fragments %1 exclusive fname-1 %2) conflicts fnames-2)
+              (reduce #(collect-conflicts-between-fragments %1 exclusive %2 fname-2) conflicts fnames-1))))))))
+
+(defn- find-conflicts-between-sub-selection-sets [exclusive tname-1 sset-1 tname-2 sset-2]
+  (let [[field-map-1 fnames-1] (fields-and-fragment-names tname-1 sset-1)
+        [field-map-2 fnames-2] (fields-and-fragment-names tname-2 sset-2)]
+    (as-> (collect-conflicts-between [] exclusive field-map-1 field-map-2) conflicts
+      (reduce #(collect-conflicts-between-fields-and-fragment %1 exclusive field-map-1 %2) conflicts fnames-2)
+      (reduce #(collect-conflicts-between-fields-and-fragment %1 exclusive field-map-2 %2) conflicts fnames-1)
+      (reduce (fn [conflicts [a b]] (collect-conflicts-between-fragments conflicts exclusive a b))
+              conflicts
+              (for [a fnames-1 b fnames-2] [a b])))))
+
+(defn- find-conflicts-within-selection-set [tname sset]
+  (let [[field-map fnames] (fields-and-fragment-names tname sset)
+        conflicts (collect-conflicts-within [] field-map)]
+    (reduce (fn [conflicts i]
+              (reduce #(collect-conflicts-between-fragments %1 false (fnames i) (fnames %2))
+                      (collect-conflicts-between-fields-and-fragment conflicts false field-map (fnames i))
+                      (range (inc i) (count fnames))))
+            conflicts
+            (range (count fnames)))))
+
+(defn- conflict-reason-string [reason]
+  (if (string? reason)
+    reason
+    (->> (for [[k r] reason]
+           (format "subfields '%s' conflict because %s" k (conflict-reason-string r)))
+         (str/join " and "))))
+
+;; Visits every selection set in the definition (including nested
+;; ones) and reports the conflicts found within each.
+(defn- check-overlapping-fields-in [errors tname {sset :selection-set}]
+  (let [errors (reduce (fn [errors [k reason f1]]
+                         (err errors true f1 "fields '%s' conflict because %s; use different aliases on the fields to fetch both if this was intentional"
+                              k (conflict-reason-string reason)))
+                       errors
+                       (find-conflicts-within-selection-set tname sset))]
+    (reduce (fn [errors s]
+              (case (:tag s)
+                :selection-field
+                (if (:selection-set s)
+                  (let [ftype (get-in *schema* [:type-map tname :field-map (:name s) :type])]
+                    (check-overlapping-fields-in errors (when ftype (base-type ftype)) s))
+                  errors)
+                :inline-fragment
+                (check-overlapping-fields-in errors (or (get-in s [:on :name]) tname) s)
+                :fragment-spread
+                errors))
+            errors
+            sset)))
+
+(defn- check-overlapping-fields [[errors vquery] query]
+  (binding [*fields-cache* (java.util.IdentityHashMap.)
+            *compared-fragment-pairs* (atom #{})]
+    [(reduce (fn [errors decl]
+               (case (:tag decl)
+                 :selection-set (check-overlapping-fields-in errors (get-in *schema* [:roots :query]) decl)
+                 :query-definition (check-overlapping-fields-in errors (get-in *schema* [:roots :query]) decl)
+                 :mutation (check-overlapping-fields-in errors (get-in *schema* [:roots :mutation]) decl)
+                 :subscription (check-overlapping-fields-in errors (get-in *schema* [:roots :subscription]) decl)
+                 :fragment-definition (if (map? (*fragment-map* (:name decl)))
+                                        (check-overlapping-fields-in errors (get-in decl [:on :name]) decl)
+                                        errors)
+                 errors))
+             errors
+             query)
+     vquery]))
+
 (defn- validate-query*
   [schema query]
   (binding [*schema* schema]
     (let [[errors fragmap] (check-fragments [] query)]
       (binding [*fragment-map* fragmap]
         (-> (reduce check-definition [errors [] {}] query)
-            (check-lone-anonymous))))))
+            (check-lone-anonymous)
+            (check-overlapping-fields query))))))
+
+(defn document-hash
+  "Returns the hash of the minimal text of a validated document, the
+  document hash of its ValidateQuery and Execute events.  Documents
+  differing only in whitespace and comments have the same hash."
+  [document]
+  (.hashCode ^String (parser/print-document document)))
 
 (defn validate-query
   [schema query]
-  (let [parsed-query (if (string? query)
+  (let [event (Jfr/begin Jfr/VALIDATE_QUERY)
+        parsed-query (if (string? query)
                        (parser/parse-query-document query)
-                       query)]
-    (validate-query* schema parsed-query)))
+                       query)
+        [errors validated :as result] (validate-query* schema parsed-query)]
+    (when (Jfr/end event)
+      (Jfr/commitValidateQuery event (document-hash (if (seq errors) parsed-query validated)) (count errors)))
+    result))
         
@@ -0,0 +1,123 @@
+(ns graphql-clj.remote
+  "Delegation of fields to downstream GraphQL services.
+
+  A transport sends a request to a downstream service.  It is a
+  function of a map of :query, the document text, :variables and the
+  :context of the execution, returning the response as a map of :data,
+  with string keys, and :errors, maps with a :message and an optional
+  :path.  local-transport executes requests in process, e.g. as a
+  stand-in for a service in tests.
+
+  The fields delegated through the same transport at one execution
+  level, the fields of an object or of the objects of a list, are
+  merged into a single downstream document, with one aliased root
+  field per delegated field and parent value, and sent as one
+  request.  The response is split back into the delegated fields, and
+  their values are returned as the downstream service completed them."
+  (:require [graphql-clj.executor :as executor]
+            [graphql-clj.parser :as parser]))
+
+(defn local-transport
+  "Returns a transport executing requests with graphql-clj against a
+  schema and resolver-fn."
+  [schema resolver-fn]
+  (fn [{:keys [query variables context]}]
+    (executor/execute context schema resolver-fn query variables)))
+
+(defn- value-node
+  "Returns the AST node of an argument value.  Symbols and keywords are
+  enum values."
+  [value]
+  (cond
+    (nil? value) {:tag :null-value}
+    (string? value) {:tag :string-value :value value}
+    (instance? Boolean value) {:tag :boolean-value :value value}
+    (integer? value) {:tag :int-value :value value}
+    (number? value) {:tag :float-value :value (double value)}
+    (or (symbol? value) (keyword? value)) {:tag :enum-value :value value}
+    (map? value) {:tag :object-value
+                  :fields (mapv (fn [[k v]] {:tag :object-field :name (name k) :value (value-node v)}) value)}
+    (sequential? value) {:tag :list-value :values (mapv value-node value)}
+    :else {:tag :string-value :value (str value)}))
+
+(defn- inline-variables
+  "Replaces the variable references of a selection set by the values of
+  the variables, so it can be sent without variable definitions."
+  [node variables]
+  (cond
+    (and (map? node) (= :variable-reference (:tag node))) (value-node (get variables (str (:name node))))
+    (map? node) (persistent! (reduce-kv (fn [m k v] (if (coll? v) (assoc! m k (inline-variables v variables)) m))
+                                        (transient node)
+                                        node))
+    (sequential? node) (mapv #(inline-variables % variables) node)
+    :else node))
+
+(defn- root-field
+  [i {:keys [field args parent variables batch]}]
+  (let [{downstream-field :field args-fn :args} (:data batch)
+        args (if args-fn (args-fn parent args) args)]
+    (cond-> {:tag :selection-field
+             :alias (str "_" i)
+             :name (or downstream-field (str (:name field)))
+             :arguments (mapv (fn [[k v]] {:tag :argument :name (name k) :value (value-node v)}) args)}
+      (seq (:selection-set field)) (assoc :selection-set (inline-variables (:selection-set field) variables)))))
+
+(defn- downstream-error
+  "Returns the field error of a downstream error.  Its downstream path
+  below the delegated field and its locations in the downstream
+  document are kept in [:extensions :downstream]."
+  [{:keys [message path locations]}]
+  (let [downstream (cond-> {}
+                     (next path) (assoc :path (vec (rest path)))
+                     locations (assoc :locations locations))]
+    (ex-info message (if (seq downstream) {:extensions {:downstream downstream}} {}))))
+
+(defn- response-results
+  "Splits a downstream response into the results of the calls.  An
+  error with a path belongs to the field at the start of its path, an
+  error without one to every field whose value is null."
+  [{:keys [data errors]} n]
+  (let [errors-by-alias (group-by #(some-> (first (:path %)) str) errors)]
+    (for [i (range n)
+          :let [alias (str "_" i)
+                value (get data alias)
+                field-errors (concat (get errors-by-alias alias)
+                                     (when (nil? value) (get errors-by-alias nil)))]]
+      (if (seq field-errors)
+        (ex-info "Downstream errors"
+                 {:errors (mapv downstream-error field-errors)})
+        (executor/completed value)))))
+
+(defn- send-batch
+  [transport operation context calls]
+  (if (some #(nil? (:field %)) calls)
+    (ex-info "Delegated fields must be resolved by the executor." {})
+    (let [document [{:tag (if (= :mutation operation) :mutation :query-definition)
+                     :selection-set (vec (map-indexed root-field calls))}]]
+      (response-results (transport {:query (parser/print-document document)
+                                    :variables {}
+                                    :context context})
+                        (count calls)))))
+
+(defn delegate
+  "Returns a resolver delegating a field to the downstream service of a
+  transport.  The field's selection set is sent as the selection set
+  of a downstream root field.  options:
+
+    :field      the name of the downstream root field, by default the
+                name of the delegated field
+    :args       (fn [parent args]) returning the arguments of the
+                downstream field, by default the arguments of the field
+    :operation  :query (the default) or :mutation
+
+  Argument values and variables referenced in the selection set are
+  sent inline.  Strings are sent as strings, and symbols and keywords
+  as enum values.  The downstream errors of a field are reported as
+  its errors, with their downstream path below the field and
+  locations in [:extensions :downstream]."
+  ([transport]
+   (delegate transport nil))
+  ([transport {:keys [operation] :or {operation :query} :as options}]
+   (executor/batch-resolver [transport operation]
+                            (fn [context calls] (send-batch transport operation context calls))
+                            (select-keys options [:field :args]))))
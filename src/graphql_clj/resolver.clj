@@ -25,9 +25,8 @@
   [schema]
   (let [query-root-name (str (or (get-in schema [:roots :query])
                                  "QueryRoot"))
-        mutation-root-name (str (get-in schema [:roots :mutation]))]
-    (fn [type-name field-name]
-      (get-in {query-root-name {"__schema" (fn [context parent args]
+        mutation-root-name (str (get-in schema [:roots :mutation]))
+        table {query-root-name {"__schema" (fn [context parent args]
                                              {})
                                 "__type" (fn [context parent args]
                                            (let [type-name (get args "name")
@@ -101,9 +100,9 @@
                                             nil)
                               "args" (fn [context parent args]
                                        ;; TODO
-                                       nil)}}
-              [type-name field-name])
-      )))
+                                       nil)}}]
+    (fn [type-name field-name]
+      (get-in table [type-name field-name]))))
 
 (defn create-resolver-fn
   [state resolver-fn]
@@ -0,0 +1,111 @@
+(ns graphql-clj.scalar
+  "Coercion of scalar values.  A scalar is a map of:
+
+    :serialize       (fn [value]) returns the result value of a field
+    :parse-value     (fn [value]) returns the value of a variable
+    :parse-literal   (fn [node]) returns the value of an argument
+                     literal, given its AST node, a map of :tag (such
+                     as :int-value or :string-value), :image and the
+                     :value read by the parser
+    :serialize-list  optional (fn [list]) serializing a list of the
+                     scalar at once, or returning nil to serialize its
+                     items one by one
+
+  A function throws to reject a value, and its message is reported as
+  an error.  Values of a scalar without the function are left as they
+  are.
+
+  Scalars are attached to a validated schema with the :scalars option
+  of graphql-clj.schema-validator/validate-schema, a map of type name
+  to scalar.  The built-in scalars are used for the names that are not
+  given."
+  (:import [graphql_clj Scalars]))
+
+(defn- serialize-string [value]
+  (cond
+    (string? value) value
+    (or (keyword? value) (symbol? value)) (name value)
+    (or (number? value) (instance? Boolean value)) (str value)
+    :else (throw (IllegalArgumentException. (str "String cannot represent value: " value)))))
+
+(defn- parse-string [value]
+  (if (string? value)
+    value
+    (throw (IllegalArgumentException. (str "String cannot represent a non string value: " value)))))
+
+(defn- parse-int-literal [node]
+  (if (= :int-value (:tag node))
+    (Scalars/serializeInt (:value node))
+    (throw (IllegalArgumentException. (str "Int cannot represent a non integer value: " (:value node))))))
+
+(defn- serialize-id [value]
+  (if (or (string? value) (integer? value))
+    (str value)
+    (serialize-string value)))
+
+(defn- parse-id [value]
+  (if (or (string? value) (integer? value))
+    (str value)
+    (throw (IllegalArgumentException. (str "ID cannot represent value: " value)))))
+
+(def built-in-scalars
+  {'Int {:serialize #(Scalars/serializeInt %)
+         :parse-value #(Scalars/serializeInt %)
+         :parse-literal parse-int-literal
+         :serialize-list #(Scalars/serializeIntList %)}
+   'Float {:serialize #(Scalars/serializeFloat %)
+           :parse-value #(Scalars/serializeFloat %)
+           :parse-literal #(Scalars/serializeFloat (:value %))
+           :serialize-list #(Scalars/serializeFloatList %)}
+   'Boolean {:serialize #(Scalars/serializeBoolean %)
+             :parse-value #(Scalars/serializeBoolean %)
+             :parse-literal #(Scalars/serializeBoolean (:value %))}
+   'String {:serialize serialize-string
+            :parse-value parse-string
+            :parse-literal #(parse-string (:value %))}
+   'ID {:serialize serialize-id
+        :parse-value parse-id
+        :parse-literal #(parse-id (:value %))}})
+
+(defn registry
+  "Returns the built-in scalars merged with scalars, a map of type name
+  (a string or symbol) to scalar."
+  [scalars]
+  (into built-in-scalars
+        (map (fn [[type-name scalar]] [(symbol (name type-name)) scalar]))
+        scalars))
+
+(defn with-scalars
+  "Attaches scalars to a validated schema, such as one read from a
+  snapshot, like the :scalars option of validate-schema but without
+  checking that the schema declares them."
+  [schema scalars]
+  (assoc schema :scalars (registry scalars)))
+
+(defn scalar
+  "Returns the scalar of a type name of a validated schema, or nil
+  when the schema has no scalars attached."
+  [schema type-name]
+  (get (:scalars schema) type-name))
+
+(defn parse-literal
+  "Coerces an argument value node of a scalar type.  List values are
+  coerced item by item.  Variable references and nulls are left as
+  they are."
+  [scalar node]
+  (case (:tag node)
+    (:variable-reference :null-value) node
+    :list-value (update node :values (partial mapv #(parse-literal scalar %)))
+    (if-let [parse (:parse-literal scalar)]
+      (assoc node :value (parse node))
+      node)))
+
+(defn parse-value
+  "Coerces a variable value of a scalar type.  Lists are coerced item by
+  item."
+  [scalar value]
+  (let [parse (:parse-value scalar)]
+    (cond
+      (or (nil? value) (not parse)) value
+      (sequential? value) (mapv #(parse-value scalar %) value)
+      :else (parse value))))
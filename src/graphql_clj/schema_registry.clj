@@ -0,0 +1,165 @@
+(ns graphql-clj.schema-registry
+  "Holds the current validated schema of a service and the queries
+  validated against it, and replaces the schema while requests run.
+
+  update-schema! validates a new schema incrementally against the
+  current one, keeps the validated queries that do not touch a changed
+  type, and swaps the schema and the queries in one step.  Requests
+  read a consistent snapshot of both and never wait for an update."
+  (:require [graphql-clj.cache :as cache]
+            [graphql-clj.parser :as parser]
+            [graphql-clj.schema-validator :as sv]
+            [graphql-clj.query-validator :as qv]
+            [graphql-clj.executor :as executor]))
+
+(defn- snapshot
+  [parsed schema queries version]
+  {:parsed parsed
+   :schema schema
+   :queries queries
+   :version version})
+
+(def ^:private default-max-queries 1000)
+
+(defn create-registry
+  "Creates a registry for a schema string or parsed schema.  Throws
+  ex-info with {:errors errors} when the schema is invalid.  options
+  are the options of graphql-clj.schema-validator/validate-schema, and
+  :max-queries, the number of validated queries kept in the registry,
+  1000 by default."
+  ([schema]
+   (create-registry schema nil))
+  ([schema {:keys [max-queries] :or {max-queries default-max-queries} :as options}]
+   (let [parsed (if (string? schema)
+                  (parser/parse-schema schema)
+                  schema)]
+     {:state (atom (snapshot parsed (sv/validate-schema parsed options) (cache/lru-map max-queries) 0))
+      :lock (Object.)
+      :max-queries max-queries
+      :options options})))
+
+(defn schema
+  "Returns the current validated schema."
+  [registry]
+  (:schema @(:state registry)))
+
+(defn version
+  "Returns the number of schema updates applied to the registry."
+  [registry]
+  (:version @(:state registry)))
+
+(defn- type-name [t]
+  (if (= :list-type (:tag t))
+    (recur (:inner-type t))
+    (:name t)))
+
+(defn- input-closure
+  "Adds the input types reachable from names through input fields."
+  [schema names]
+  (loop [names (set names) [n & more :as pending] (seq names)]
+    (if (empty? pending)
+      names
+      (let [tdef (get-in schema [:type-map n])
+            referenced (when (= :input-definition (:tag tdef))
+                         (->> (:fields tdef)
+                              (map #(type-name (:type %)))
+                              (remove names)))]
+        (recur (into names referenced) (concat more referenced))))))
+
+(defn- selection-types
+  [schema parent-type-name selection-set]
+  (mapcat (fn [selection]
+            (case (:tag selection)
+              :selection-field
+              (let [field-type-name (type-name (:resolved-type selection))]
+                (concat [field-type-name]
+                        (->> (get-in schema [:type-map parent-type-name :field-map (:name selection) :arguments])
+                             (map #(type-name (:type %))))
+                        (selection-types schema field-type-name (:selection-set selection))))
+              :inline-fragment
+              (let [on-type-name (type-name (:on selection))]
+                (cons on-type-name (selection-types schema on-type-name (:selection-set selection))))
+              nil))
+          selection-set))
+
+(defn query-types
+  "Returns the set of the names of the types a validated document
+  depends on: the root types of its operations, and the types of its
+  variables, selected fields, their arguments and fragment
+  conditions."
+  [schema document]
+  (->> document
+       (mapcat (fn [operation]
+                 (let [root-type-name (get-in schema [:roots (case (:tag operation)
+                                                               :mutation :mutation
+                                                               :subscription :subscription
+                                                               :query)])]
+                   (concat [root-type-name]
+                           (map #(type-name (:type %)) (:variable-definitions operation))
+                           (selection-types schema root-type-name (:selection-set operation))))))
+       (remove nil?)
+       (input-closure schema)))
+
+(defn- query-key
+  "Returns the fingerprint of a query string, or nil when it has
+  lexical errors."
+  [query-str]
+  (try
+    (parser/fingerprint query-str)
+    (catch clojure.lang.ExceptionInfo e
+      nil)))
+
+(defn- validated-query
+  [{:keys [schema queries]} query-str]
+  (let [k (query-key query-str)]
+    (or (when k (:validated (.get ^java.util.Map queries k)))
+        (let [[errors document :as validated] (qv/validate-query schema query-str)]
+          ;; Invalid queries are not cached: their errors locate the
+          ;; text of this variant of the query.
+          (when (and k (empty? errors))
+            (.put ^java.util.Map queries k {:validated validated
+                                            :types (query-types schema document)}))
+          validated))))
+
+(defn validate-query
+  "Returns the [errors validated-document] of a query string validated
+  against the current schema.  Valid queries are cached by their
+  fingerprint, so queries differing in whitespace and comments share
+  one entry, until an update changes a type they depend on or they are
+  the least recently used above :max-queries."
+  [registry query-str]
+  (validated-query @(:state registry) query-str))
+
+(defn execute
+  "Executes a query string against the current schema, with its
+  validated document cached in the registry.  The arguments after
+  resolver-fn are those of graphql-clj.executor/execute."
+  ([registry context resolver-fn query-str]
+   (execute registry context resolver-fn query-str nil nil nil))
+  ([registry context resolver-fn query-str variables operation-name options]
+   (let [state @(:state registry)]
+     (executor/execute-validated-document context (:schema state) resolver-fn (validated-query state query-str)
+                                          variables operation-name options))))
+
+(defn update-schema!
+  "Replaces the schema of the registry with a schema string or parsed
+  schema.  Only the changed types and the types referencing them are
+  validated again, and only the cached queries depending on a changed
+  type are dropped.  Requests started before the swap complete with
+  the previous schema.
+
+  Returns the set of the names of the changed types.  Throws ex-info
+  with {:errors errors} and leaves the registry unchanged when the new
+  schema is invalid."
+  [registry new-schema]
+  (locking (:lock registry)
+    (let [{:keys [parsed schema queries version]} @(:state registry)
+          result (sv/validate-schema-update parsed schema new-schema (:options registry))
+          changed (:changed result)
+          queries' (cache/lru-map (:max-queries registry))]
+      ;; In access order, so the kept queries keep their recency.
+      (doseq [[k entry] (locking queries (vec queries))
+              :when (not-any? changed (:types entry))]
+        (.put ^java.util.Map queries' k entry))
+      (reset! (:state registry) (snapshot (:parsed result) (:schema result) queries' (inc version)))
+      changed)))
@@ -0,0 +1,72 @@
+(ns graphql-clj.schema-snapshot
+  "Binary snapshots of validated schemas.  Reading a snapshot restores
+  the validated schema without parsing or validating it again, which
+  makes startup with large schemas fast.  Each snapshot records the
+  checksum of the schema source it was validated from, so a stale
+  snapshot is detected when the source changes."
+  (:require [graphql-clj.schema-validator :as sv]
+            [clojure.java.io :as io])
+  (:import [graphql_clj SchemaSnapshot]
+           [java.io File]
+           [java.nio.file CopyOption Files StandardCopyOption]
+           [java.nio.file.attribute FileAttribute]
+           [java.security MessageDigest]))
+
+(defn checksum
+  "Returns the SHA-256 checksum of a schema source string as a byte
+  array."
+  ^bytes [^String schema-str]
+  (.digest (MessageDigest/getInstance "SHA-256") (.getBytes schema-str "UTF-8")))
+
+(defn write-snapshot
+  "Writes a validated schema and the checksum of schema-str, the
+  source it was validated from, to out.  out is anything accepted by
+  clojure.java.io/output-stream.  The scalars attached to the schema
+  are not written, see graphql-clj.scalar/with-scalars."
+  [validated-schema schema-str out]
+  (with-open [out (io/output-stream out)]
+    (SchemaSnapshot/write out (checksum schema-str) (dissoc validated-schema :scalars))))
+
+(defn read-snapshot
+  "Reads a validated schema from in, anything accepted by
+  clojure.java.io/input-stream.  When schema-str is given, returns nil
+  if the snapshot was not written for that source.  Throws a
+  graphql_clj.SnapshotException, an IOException, when in is not a
+  snapshot or is truncated or corrupt."
+  ([in]
+   (read-snapshot in nil))
+  ([in schema-str]
+   (with-open [in (io/input-stream in)]
+     (SchemaSnapshot/read in (when schema-str (checksum schema-str))))))
+
+(defn- replace-snapshot
+  "Writes a snapshot to a temporary file next to file and moves it into
+  place atomically, so readers never see a partly written snapshot."
+  [validated-schema schema-str ^File file]
+  (let [file (.getAbsoluteFile file)
+        temp (Files/createTempFile (.toPath (.getParentFile file)) (.getName file) ".tmp"
+                                   (make-array FileAttribute 0))]
+    (try
+      (write-snapshot validated-schema schema-str (.toFile temp))
+      (Files/move temp (.toPath file) (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE
+                                                              StandardCopyOption/REPLACE_EXISTING]))
+      (finally
+        (Files/deleteIfExists temp)))))
+
+(defn load-schema
+  "Returns the validated schema for schema-str, reading it from the
+  snapshot file when it is up to date.  Otherwise, including when the
+  file cannot be read or is corrupt, validates schema-str and writes a
+  new snapshot to file.  The snapshot includes the introspection types
+  merged into the schema, so loading it does not read or parse the
+  introspection schema."
+  [schema-str file]
+  (let [file (io/file file)]
+    (or (when (.exists file)
+          (try
+            (read-snapshot file schema-str)
+            (catch java.io.IOException e
+              nil)))
+        (let [validated-schema (sv/validate-schema schema-str)]
+          (replace-snapshot validated-schema schema-str file)
+          validated-schema))))
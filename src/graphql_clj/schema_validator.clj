@@ -1,7 +1,10 @@
 (ns graphql-clj.schema-validator
   (:require [graphql-clj.parser :as parser]
+            [graphql-clj.scalar :as scalar]
+            [clojure.core.reducers :as r]
             [clojure.string :as str]
-            [clojure.pprint :refer [pprint]]))
+            [clojure.pprint :refer [pprint]])
+  (:import [graphql_clj Jfr]))
 
 (def ^:private introspection-schema
   "# From Section 4.2 Schema Introduction
@@ -182,28 +185,54 @@ enum __DirectiveLocation {
 (defmethod build-member-map :scalar-definition [errors tdef] [errors tdef])
 (defmethod build-member-map :default [errors tdef] [errors nil])
 
+;; Number of definitions below which a parallel pass runs on the
+;; calling thread.
+(def ^:private parallel-chunk-size 32)
+
+;; Maps f over the definitions, in order.  When parallel is true the
+;; definitions are split into chunks that run on the fork/join pool,
+;; and the results are joined back in definition order, so the output
+;; is the same as the sequential one.
+(defn- map-definitions [parallel f tdefs]
+  (if parallel
+    (r/fold parallel-chunk-size
+            (r/monoid into vector)
+            (fn [v tdef] (conj v (f tdef)))
+            (vec tdefs))
+    (mapv f tdefs)))
+
 ;; build-type-map is the starting process of the validation.  It
 ;; builds maps for the fields/members/constants in definitions, and
 ;; builds a map from name to type declaration.  The returned schema
-;; has additional :*-map fields.
-(defn- build-type-map [errors tmap schema]
-  (loop [tdefs (:type-system-definitions schema) tdefs' [] tmap tmap errors errors]
+;; has additional :*-map fields.  The member maps depend on a single
+;; definition each and may be built in parallel; the name map is then
+;; assembled in definition order by assemble-type-map from the
+;; [errors tdef'] results of build-member-map.
+(defn- assemble-type-map [errors tmap schema members]
+  (loop [tdefs (:type-system-definitions schema)
+         members (seq members)
+         tdefs' [] tmap tmap errors errors]
     (if-let [[tdef & tdefs] tdefs]
-      (let [[errors tdef'] (build-member-map errors tdef)]
+      (let [[[member-errors tdef'] & members] members
+            errors (into errors member-errors)]
         (if (nil? tdef')
-          (recur tdefs (conj tdefs' tdef) tmap errors)
+          (recur tdefs members (conj tdefs' tdef) tmap errors)
           (let [pdef (tmap (:name tdef))]
             ;; We allow duplicate scalar definitions since they are
             ;; harmless and allow schemas to declare scalars that are
             ;; internally defined
             (if (or (nil? pdef) (and (= :scalar-definition (:tag pdef))
                                      (= :scalar-definition (:tag tdef))))
-              (recur tdefs (conj tdefs' tdef') (assoc tmap (:name tdef) tdef') errors)
-              (recur tdefs (conj tdefs' tdef') tmap (err errors tdef "type '%s' already declared" (:name tdef)))))))
+              (recur tdefs members (conj tdefs' tdef') (assoc tmap (:name tdef) tdef') errors)
+              (recur tdefs members (conj tdefs' tdef') tmap (err errors tdef "type '%s' already declared" (:name tdef)))))))
       ;; replace the type-system-definition member with the updated
       ;; one, and add the type-map field.
       [errors (assoc schema :type-system-definitions tdefs' :type-map tmap)])))
 
+(defn- build-type-map [errors tmap schema & [parallel]]
+  (assemble-type-map errors tmap schema
+                     (map-definitions parallel #(build-member-map [] %) (:type-system-definitions schema))))
+
 (defn- raw-type-name [t]
   (if (= :list-type (:tag t))
     (recur (:inner-type t))
@@ -229,16 +258,19 @@ enum __DirectiveLocation {
           (recur members (err errors m "union member '%s' is not declared" mname))))
       errors)))
 
-(defn- check-types-members [errors schema]
-  (loop [tdefs (:type-system-definitions schema) errors errors]
-    (if-let [[tdef & tdefs] tdefs]
-      (case (:tag tdef)
-        (:type-definition :interface-definition :input-definition)
-        (recur tdefs (check-type-fields errors (:type-map schema) tdef))
-        :union-definition
-        (recur tdefs (check-union-members errors (:type-map schema) tdef))
-        (recur tdefs errors))
-      errors)))
+(defn- check-type-members [tmap tdef]
+  (case (:tag tdef)
+    (:type-definition :interface-definition :input-definition)
+    (check-type-fields [] tmap tdef)
+    :union-definition
+    (check-union-members [] tmap tdef)
+    []))
+
+(defn- check-definitions-members [errors tmap tdefs parallel]
+  (reduce into errors (map-definitions parallel #(check-type-members tmap %) tdefs)))
+
+(defn- check-types-members [errors schema & [parallel]]
+  (check-definitions-members errors (:type-map schema) (:type-system-definitions schema) parallel))
 
 (defn- validate-schema-roots [errors schema tdef]
   (loop [roots {} members (seq (:members tdef)) errors errors]
@@ -276,9 +308,11 @@ enum __DirectiveLocation {
 
 (defn- print-pass [x] x) ;; (pprint x) x)
 
+;; Built on first validation, so loading a schema snapshot does not
+;; parse the introspection schema.
 (def ^:private introspection-type-map
-  (-> (build-type-map [] {} (parser/parse-schema introspection-schema))
-      (get-in [1 :type-map])))
+  (delay (-> (build-type-map [] {} (parser/parse-schema introspection-schema))
+             (get-in [1 :type-map]))))
 
 (defn update-root-query-with-introspection
   [query-root]
@@ -309,8 +343,32 @@ enum __DirectiveLocation {
   (let [query-root (get-in schema [:roots :query])]
     (update-in schema [:type-map query-root] update-root-query-with-introspection)))
 
+(defn- attach-scalars
+  "Attaches the scalar registry of the :scalars option.  Every custom
+  scalar must be declared by the schema."
+  [errors schema scalars]
+  (if-not scalars
+    [errors schema]
+    [(reduce (fn [errors type-name]
+               (if (= :scalar-definition (get-in schema [:type-map (symbol (name type-name)) :tag]))
+                 errors
+                 (err errors schema "custom scalar '%s' is not declared as a scalar" (name type-name))))
+             errors
+             (keys scalars))
+     (assoc schema :scalars (scalar/registry scalars))]))
+
+(defn- finish-validation
+  [errors schema {:keys [scalars]}]
+  (let [[errors schema] (check-schema-decl errors schema)
+        [errors schema] (attach-scalars errors schema scalars)
+        schema-with-updated-root-query (update-schema-with-introspection schema)]
+    (if (empty? errors)
+      schema-with-updated-root-query
+      (throw (ex-info "schema validation failed"
+                      {:errors errors})))))
+
 (defn- validate-schema*
-  [schema]
+  [schema {:keys [parallel] :as options}]
   ;; after validation add
   ;; {:type-system-definitions [ ... ]
   ;;  :type-map {'Dog {...} ... }
@@ -319,18 +377,108 @@ enum __DirectiveLocation {
   ;;     :mutation     nil        ;; if not present = fine.  if present, check that type exists 'type'
   ;;     :subscription nil        ;;   ditto
   ;;  }
-  (let [[errors schema] (print-pass (build-type-map [] introspection-type-map schema))
-        errors (check-types-members errors schema)
-        [errors schema] (check-schema-decl errors schema)
-        schema-with-updated-root-query (update-schema-with-introspection schema)]
-    (if (empty? errors)
-      schema-with-updated-root-query
-      (throw (ex-info "schema validation failed"
-                      {:errors errors})))))
+  (let [[errors schema] (print-pass (build-type-map [] @introspection-type-map schema parallel))
+        errors (check-types-members errors schema parallel)]
+    (finish-validation errors schema options)))
 
 (defn validate-schema
-  [schema]
-  (let [parsed-schema (if (string? schema)
-                           (parser/parse-schema schema)
-                           schema)]
-    (validate-schema* parsed-schema)))
+  "Validates a schema string or parsed schema, and returns the
+  validated schema.  Throws ex-info with {:errors errors} when the
+  schema is invalid.
+
+  Options:
+    :parallel  when true, member maps and member checks of the type
+               definitions run in parallel on the fork/join pool.  The
+               result and the order of errors are the same as in a
+               sequential validation.
+    :scalars   a map of type name to the scalar coercing its values
+               (see graphql-clj.scalar).  The executor serializes
+               results and coerces arguments and variables of scalar
+               types, with the built-in scalars for the names that
+               are not given.  Without it, scalar values are left as
+               the resolvers return them."
+  ([schema] (validate-schema schema nil))
+  ([schema options]
+   (let [event (Jfr/begin Jfr/VALIDATE_SCHEMA)
+         parsed-schema (if (string? schema)
+                         (parser/parse-schema schema)
+                         schema)]
+     (try
+       (let [validated (validate-schema* parsed-schema options)]
+         (when (Jfr/end event)
+           (Jfr/commitValidateSchema event (count (:type-map validated)) 0))
+         validated)
+       (catch clojure.lang.ExceptionInfo e
+         (when (Jfr/end event)
+           (Jfr/commitValidateSchema event 0 (count (:errors (ex-data e)))))
+         (throw e))))))
+
+(def ^:private type-definition-tags
+  #{:type-definition :interface-definition :input-definition
+    :enum-definition :union-definition :scalar-definition})
+
+(defn- definition-key [tdef]
+  [(:tag tdef) (:name tdef)])
+
+(defn- referenced-names [tdef]
+  (case (:tag tdef)
+    (:type-definition :interface-definition :input-definition)
+    (map #(raw-type-name (:type %)) (:fields tdef))
+    :union-definition
+    (map :name (:members tdef))
+    nil))
+
+(defn validate-schema-update
+  "Validates schema, a schema string or parsed schema that replaces
+  previous-parsed, the parsed schema the validated schema previous was
+  validated from.  Definitions that did not change keep the member
+  maps of previous, so only the changed definitions and the
+  definitions referencing them are checked again.  Reused definitions
+  keep their source locations in previous.
+
+  Returns {:parsed parsed-schema :schema validated-schema :changed
+  names}, where names is the set of names of the types that were
+  added, removed or changed, including the root types when the roots
+  changed.  Throws ex-info with {:errors errors} like validate-schema
+  when the new schema is invalid.  options are the options of
+  validate-schema."
+  ([previous-parsed previous schema]
+   (validate-schema-update previous-parsed previous schema nil))
+  ([previous-parsed previous schema {:keys [parallel] :as options}]
+   (let [parsed (if (string? schema)
+                  (parser/parse-schema schema)
+                  schema)
+         reusable (into {}
+                        (map (fn [tdef tdef'] [(definition-key tdef) [tdef tdef']])
+                             (:type-system-definitions previous-parsed)
+                             (:type-system-definitions previous)))
+         tdefs (:type-system-definitions parsed)
+         reused? (fn [tdef]
+                   (and (contains? type-definition-tags (:tag tdef))
+                        (= tdef (first (reusable (definition-key tdef))))))
+         changed (into (set (->> tdefs
+                                 (remove reused?)
+                                 (keep :name)))
+                       (->> (apply dissoc reusable (map definition-key tdefs))
+                            (keys)
+                            (keep second)))
+         members (map-definitions parallel
+                                  (fn [tdef]
+                                    (if (reused? tdef)
+                                      [[] (second (reusable (definition-key tdef)))]
+                                      (build-member-map [] tdef)))
+                                  tdefs)
+         [errors schema] (assemble-type-map [] @introspection-type-map parsed members)
+         errors (check-definitions-members errors
+                                           (:type-map schema)
+                                           (->> (:type-system-definitions schema)
+                                                (filter #(or (contains? changed (:name %))
+                                                             (some changed (referenced-names %)))))
+                                           parallel)
+         validated (finish-validation errors schema options)
+         changed (if (= (:roots previous) (:roots validated))
+                   changed
+                   (into changed (concat (vals (:roots previous)) (vals (:roots validated)))))]
+     {:parsed parsed
+      :schema validated
+      :changed (disj changed nil)})))
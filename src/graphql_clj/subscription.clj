@@ -0,0 +1,93 @@
+(ns graphql-clj.subscription
+  "Subscription fan-out.  Subscribers with an identical document,
+  variables and operation name share one source event stream and one
+  execution per event.  The result is serialized once and broadcast to
+  every subscriber."
+  (:require [graphql-clj.executor :as executor]
+            [graphql-clj.schema-validator :as sv]
+            [graphql-clj.query-validator :as qv]
+            [clojure.walk :as walk]))
+
+(defn create-manager
+  "Creates a subscription manager for a schema.  serialize-fn is
+  applied once to each result before it is broadcast, e.g. to encode
+  it as JSON, and defaults to identity."
+  ([string-or-validated-schema resolver-fn]
+   (create-manager string-or-validated-schema resolver-fn identity))
+  ([string-or-validated-schema resolver-fn serialize-fn]
+   {:schema (if (string? string-or-validated-schema)
+              (sv/validate-schema string-or-validated-schema)
+              string-or-validated-schema)
+    :resolver-fn resolver-fn
+    :serialize-fn serialize-fn
+    :subscriptions (atom {})}))
+
+(defn- broadcast
+  [{:keys [subscriptions serialize-fn]} key response]
+  (let [payload (serialize-fn response)]
+    (doseq [listener (vals (get-in @subscriptions [key :listeners]))]
+      (listener payload))))
+
+(defn- remove-listener!
+  "Removes a listener, stopping the shared source stream when it was
+  the last one."
+  [{:keys [subscriptions]} key id]
+  (loop []
+    (let [old @subscriptions
+          entry (get old key)
+          listeners (dissoc (:listeners entry) id)
+          new (if (empty? listeners)
+                (dissoc old key)
+                (assoc-in old [key :listeners] listeners))]
+      (if (compare-and-set! subscriptions old new)
+        (when (and entry (empty? listeners))
+          (when-let [unsubscribe (:unsubscribe (try @(:stream entry) (catch Exception _ nil)))]
+            (unsubscribe)))
+        (recur)))))
+
+(defn subscribe!
+  "Subscribes listener to the results of a subscription operation.
+  When another subscriber already uses the same document, variables
+  and operation name, the listener joins its execution instead of
+  creating a new source stream.  Shared executions run with the
+  context of the subscriber that created them.
+
+  Returns {:unsubscribe f}, or {:errors errors} when the subscription
+  could not be created."
+  ([manager context document variables listener]
+   (subscribe! manager context document variables nil listener))
+  ([{:keys [schema resolver-fn subscriptions] :as manager} context document variables operation-name listener]
+   (let [validated-document (if (string? document)
+                              (try
+                                (qv/validate-query schema document)
+                                (catch Exception e
+                                  [(:errors (ex-data e)) nil]))
+                              document)
+         variables (walk/stringify-keys variables)
+         key [validated-document variables operation-name]
+         id (Object.)
+         start (fn start-stream []
+                 (executor/subscribe context schema resolver-fn validated-document variables operation-name
+                                     #(broadcast manager key %)))
+         entry (-> (swap! subscriptions update key
+                          (fn [entry]
+                            (-> (or entry {:stream (delay (start))})
+                                (assoc-in [:listeners id] listener))))
+                   (get key))
+         result (try
+                  @(:stream entry)
+                  (catch Exception e
+                    (remove-listener! manager key id)
+                    (throw e)))]
+     (if (:errors result)
+       (do (remove-listener! manager key id)
+           result)
+       {:unsubscribe #(remove-listener! manager key id)}))))
+
+(defn subscriber-count
+  "Returns the number of subscribers, and the number of source streams
+  they share, as [subscribers streams]."
+  [{:keys [subscriptions]}]
+  (let [entries (vals @subscriptions)]
+    [(reduce + 0 (map (comp count :listeners) entries))
+     (count entries)]))
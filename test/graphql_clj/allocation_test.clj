@@ -0,0 +1,89 @@
+(ns graphql-clj.allocation-test
+  "Allocation budgets of the parser, validators and executor.  The
+  bytes allocated per operation on fixed fixtures are measured on the
+  test thread and compared to a budget, so a change that allocates
+  more on a hot path fails here instead of showing up as GC pressure.
+
+  Budgets were measured on OpenJDK 17; the tolerance can be set with
+  the graphql-clj.allocation-tolerance system property, e.g. 0.5 on a
+  JVM without compact strings.  When a change is meant to allocate
+  more, or allocates less, update its budget."
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.fixture :as fixture]
+            [graphql-clj.query-validator :as qv]
+            [graphql-clj.schema-validator :as sv])
+  (:import [graphql_clj Parser ParseException]
+           [java.lang.management ManagementFactory]))
+
+(def ^:private budgets
+  {:parse-query-document 440000
+   :parse-schema 182000
+   :validate-schema 63000
+   :validate-query 28500
+   :execute 32500})
+
+(def ^:private tolerance
+  (Double/parseDouble (System/getProperty "graphql-clj.allocation-tolerance" "0.2")))
+
+(def ^:private thread-bean
+  (let [bean (ManagementFactory/getThreadMXBean)]
+    (when (and (instance? com.sun.management.ThreadMXBean bean)
+               (.isThreadAllocatedMemorySupported ^com.sun.management.ThreadMXBean bean))
+      (.setThreadAllocatedMemoryEnabled ^com.sun.management.ThreadMXBean bean true)
+      bean)))
+
+(defn- allocated-bytes
+  "Returns the average number of bytes allocated by the current thread
+  in a call of f, after warming it up."
+  [f]
+  (let [^com.sun.management.ThreadMXBean bean thread-bean
+        thread-id (.getId (Thread/currentThread))
+        n 200]
+    (dotimes [_ n] (f))
+    (let [before (.getThreadAllocatedBytes bean thread-id)]
+      (dotimes [_ n] (f))
+      (quot (- (.getThreadAllocatedBytes bean thread-id) before) n))))
+
+(defn- within-budget? [k f]
+  (let [budget (get budgets k)
+        actual (allocated-bytes f)]
+    (or (<= actual (* budget (+ 1 tolerance)))
+        (do (println (format "%s allocated %d bytes per operation, budget %d" (name k) actual budget))
+            false))))
+
+(defn- inputs
+  "Returns the parser test inputs with a prefix that parse."
+  [prefix parse]
+  (->> (.listFiles (io/file "test/graphql_clj/parser_test"))
+       (filter #(let [file-name (.getName ^java.io.File %)]
+                  (and (.startsWith file-name prefix) (.endsWith file-name ".input"))))
+       (sort)
+       (map slurp)
+       (filter #(try (parse %) true (catch ParseException e false)))
+       (vec)))
+
+(def ^:private query-str
+  "query { dog { name nickname barkVolume doesKnowCommand(dogCommand: SIT) owner { name } } }")
+
+(defn- resolver-fn [type-name field-name]
+  (case [type-name field-name]
+    ["QueryRoot" "dog"] (fn [context parent args] {:name "rex" :nickname "r" :barkVolume 3 :owner {:name "ann"}})
+    ["Dog" "doesKnowCommand"] (fn [context parent args] true)
+    nil))
+
+(deftest allocation-budgets
+  (if-not thread-bean
+    (println "Skipping allocation budgets, thread allocation is not measurable on this JVM")
+    (let [queries (inputs "query" #(.parseQueryDocument (Parser. %)))
+          schemas (inputs "schema" #(.parseSchema (Parser. %)))
+          schema (sv/validate-schema fixture/validation-5-schema-str)
+          validated (qv/validate-query schema query-str)]
+      (is (within-budget? :parse-query-document #(doseq [q queries] (.parseQueryDocument (Parser. q)))))
+      (is (within-budget? :parse-schema #(doseq [s schemas] (.parseSchema (Parser. s)))))
+      (is (within-budget? :validate-schema #(sv/validate-schema fixture/validation-5-schema-str)))
+      (is (within-budget? :validate-query #(qv/validate-query schema query-str)))
+      (is (= {:data {"dog" {"name" "rex" "nickname" "r" "barkVolume" 3 "doesKnowCommand" true "owner" {"name" "ann"}}}}
+             (executor/execute-validated-document nil schema resolver-fn validated)))
+      (is (within-budget? :execute #(executor/execute-validated-document nil schema resolver-fn validated))))))
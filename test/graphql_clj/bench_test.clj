@@ -0,0 +1,30 @@
+(ns graphql-clj.bench-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.bench :as bench]
+            [graphql-clj.bench.generator :as generator]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.query-validator :as qv]))
+
+(deftest generated-workload
+  (doseq [fragments [nil :inline :named]]
+    (let [{:keys [schema queries resolver-fn]} (bench/workload {:types 30 :queries 5 :depth 4 :fragments fragments})]
+      (doseq [query queries]
+        (is (empty? (first (qv/validate-query schema query))) query)
+        (let [result (executor/execute nil schema resolver-fn query)]
+          (is (nil? (:errors result)) query)
+          (is (seq (:data result))))))))
+
+(deftest generation-is-deterministic
+  (let [model (generator/generate-schema {:types 20 :seed 7})]
+    (is (= (generator/schema-sdl model) (generator/schema-sdl (generator/generate-schema {:types 20 :seed 7}))))
+    (is (= (generator/generate-query model {:seed 3}) (generator/generate-query model {:seed 3})))))
+
+(deftest histogram
+  (let [h (bench/histogram)]
+    (doseq [v (range 1 10001)]
+      (bench/record! h (* 1000 v)))
+    (is (= 10000 (bench/total-count h)))
+    (is (< (Math/abs (- 5000000 (bench/percentile h 50))) 80000))
+    (is (< (Math/abs (- 9900000 (bench/percentile h 99))) 160000))
+    (is (= 10000000 (bench/percentile h 100)))
+    (is (= 100 (bench/percentile (doto (bench/histogram) (bench/record! 100)) 50)))))
@@ -0,0 +1,76 @@
+(ns graphql-clj.bulkhead-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.bulkhead :as bulkhead]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.schema-validator :as sv])
+  (:import [java.util.concurrent CountDownLatch TimeUnit]))
+
+(def ^:private schema
+  (sv/validate-schema
+   "type Account { id: Int balance: Int }
+type QueryRoot { account(id: Int): Account accounts: [Account] version: String }"))
+
+(defn- resolver-fn [entered release]
+  (fn [type-name field-name]
+    (case [type-name field-name]
+      ["QueryRoot" "account"] (fn [context parent args] {:id (get args "id")})
+      ["QueryRoot" "accounts"] (fn [context parent args] [{:id 1} {:id 2}])
+      ["QueryRoot" "version"] (fn [context parent args] "1")
+      ["Account" "balance"] (fn [context parent args]
+                              (when (= :slow context)
+                                (.countDown ^CountDownLatch entered)
+                                (.await ^CountDownLatch release 5 TimeUnit/SECONDS))
+                              (* 10 (:id parent)))
+      nil)))
+
+(deftest bulkhead-limits
+  (let [bulkheads (bulkhead/create-bulkheads [{:name "ledger" :fields ["Account.balance"] :max-concurrent 1}
+                                              {:name "root" :fields ["QueryRoot"] :max-concurrent 4 :timeout-ms 100}])
+        entered (CountDownLatch. 1)
+        release (CountDownLatch. 1)
+        resolver-fn (resolver-fn entered release)
+        options {:bulkheads bulkheads}]
+    (is (= (get bulkheads "QueryRoot") (bulkhead/bulkhead bulkheads "QueryRoot" "version")))
+    (is (nil? (bulkhead/bulkhead bulkheads "Account" "id")))
+    (is (= {:data {"account" {"id" 1 "balance" 10}}}
+           (executor/execute nil schema resolver-fn "{ account(id: 1) { id balance } }" nil nil options)))
+    (testing "a call over the limit is a field error at its path"
+      (let [slow (future (executor/execute :slow schema resolver-fn "{ account(id: 1) { balance } }" nil nil options))]
+        (is (.await entered 5 TimeUnit/SECONDS))
+        (is (= {"ledger" {:in-flight 1 :rejected 0} "root" {:in-flight 0 :rejected 0}}
+               (bulkhead/stats bulkheads)))
+        (let [result (executor/execute nil schema resolver-fn
+                                       "{ version a: account(id: 1) { id balance } b: account(id: 2) { id balance } }"
+                                       nil nil options)]
+          (is (= {"version" "1" "a" {"id" 1 "balance" nil} "b" {"id" 2 "balance" nil}} (:data result)))
+          (is (= [{:message "Bulkhead 'ledger' rejected the call: 1 concurrent calls are in flight."
+                   :locations [{:line 1 :column 34 :index 33}]
+                   :path ["a" "balance"]}
+                  {:message "Bulkhead 'ledger' rejected the call: 1 concurrent calls are in flight."
+                   :locations [{:line 1 :column 67 :index 66}]
+                   :path ["b" "balance"]}]
+                 (:errors result))))
+        (testing "in list items"
+          (let [result (executor/execute nil schema resolver-fn "{ accounts { id balance } }" nil nil options)]
+            (is (= {"accounts" [{"id" 1 "balance" nil} {"id" 2 "balance" nil}]} (:data result)))
+            (is (= [["accounts" 0 "balance"] ["accounts" 1 "balance"]] (map :path (:errors result))))))
+        (.countDown release)
+        (is (= {:data {"account" {"balance" 10}}} @slow))
+        (is (= {"ledger" {:in-flight 0 :rejected 4} "root" {:in-flight 0 :rejected 0}}
+               (bulkhead/stats bulkheads)))))))
+
+(deftest lazy-results
+  (let [bulkheads (bulkhead/create-bulkheads [{:name "accounts" :fields ["QueryRoot.accounts"] :max-concurrent 1}])
+        in-flight (atom [])
+        resolver-fn (fn [type-name field-name]
+                      (when (= ["QueryRoot" "accounts"] [type-name field-name])
+                        (fn [context parent args]
+                          (map (fn [id]
+                                 (swap! in-flight conj (get-in (bulkhead/stats bulkheads) ["accounts" :in-flight]))
+                                 {:id id})
+                               [1 2]))))]
+    (testing "lazy results are realized while the permit is held"
+      (is (= {:data {"accounts" [{"id" 1} {"id" 2}]}}
+             (executor/execute nil schema resolver-fn "{ accounts { id } }" nil nil {:bulkheads bulkheads})))
+      (is (= [1 1] @in-flight))
+      (is (= {"accounts" {:in-flight 0 :rejected 0}} (bulkhead/stats bulkheads))))))
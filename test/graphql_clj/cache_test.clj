@@ -0,0 +1,162 @@
+(ns graphql-clj.cache-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.cache :as cache]
+            [graphql-clj.schema-validator :as sv]))
+
+(def schema (sv/validate-schema "type Product {
+  id: Int
+  name: String
+  price(currency: String = \"USD\"): Int @cacheControl(maxAge: 10)
+  reviews: [String]
+}
+
+type Account {
+  name: String
+}
+
+type QueryRoot {
+  product(id: Int!): Product @cacheControl(maxAge: 60)
+  account: Account @cacheControl(maxAge: 30, scope: PRIVATE)
+  now: String
+}
+
+schema {
+  query: QueryRoot
+}"))
+
+(defn- resolver-fn
+  [calls]
+  (fn [type-name field-name]
+    (let [count-call (fn [resolve]
+                       (fn [context parent args]
+                         (swap! calls update [type-name field-name] (fnil inc 0))
+                         (resolve context parent args)))]
+      (case [type-name field-name]
+        ["QueryRoot" "product"] (count-call (fn [context parent args] {:id (get args "id") :name "book"}))
+        ["QueryRoot" "account"] (count-call (fn [context parent args] {:name (:user context)}))
+        ["QueryRoot" "now"] (count-call (fn [context parent args] "now"))
+        ["Product" "price"] (count-call (fn [context parent args] (if (= "EUR" (get args "currency")) 9 10)))
+        ["Product" "reviews"] (count-call (fn [context parent args] ["good"]))
+        nil))))
+
+(deftest schema-hints
+  (is (= {["QueryRoot" "product"] {:max-age 60}
+          ["QueryRoot" "account"] {:max-age 30 :scope :private}
+          ["Product" "price"] {:max-age 10}}
+         (cache/schema-hints schema))))
+
+(deftest field-cache
+  (let [now (atom 0)
+        calls (atom {})
+        field-cache (cache/create-cache schema {:hints {["QueryRoot" "now"] {:max-age 0}}
+                                                :scope-key-fn :user
+                                                :clock #(deref now)})
+        execute (fn [context query]
+                  (executor/execute context schema (resolver-fn calls) query nil nil {:cache field-cache}))]
+    (testing "cached values are reused across requests"
+      (is (= {:data {"product" {"id" 1 "name" "book" "price" 10}}
+              :extensions {:cacheControl {:maxAge 10 :scope "PUBLIC"}}}
+             (execute nil "{product(id: 1) {id name price}}")))
+      (is (= {:data {"product" {"id" 1 "name" "book" "price" 10}}
+              :extensions {:cacheControl {:maxAge 10 :scope "PUBLIC"}}}
+             (execute {:user "other"} "{product(id: 1) {id name price}}")))
+      (is (= 1 (get @calls ["QueryRoot" "product"])))
+      (is (= 1 (get @calls ["Product" "price"]))))
+    (testing "arguments are part of the key"
+      (execute nil "{product(id: 2) {price(currency: \"EUR\")}}")
+      (is (= 2 (get @calls ["QueryRoot" "product"])))
+      (is (= 2 (get @calls ["Product" "price"]))))
+    (testing "entries expire after max-age"
+      (reset! now 11000)
+      (execute nil "{product(id: 1) {price}}")
+      (is (= 2 (get @calls ["QueryRoot" "product"])))
+      (is (= 3 (get @calls ["Product" "price"])))
+      (reset! now 61000)
+      (execute nil "{product(id: 1) {name}}")
+      (is (= 3 (get @calls ["QueryRoot" "product"]))))
+    (testing "private fields are scoped to the context"
+      (is (= {:data {"account" {"name" "a"}}
+              :extensions {:cacheControl {:maxAge 30 :scope "PRIVATE"}}}
+             (execute {:user "a"} "{account {name}}")))
+      (is (= {:data {"account" {"name" "b"}}
+              :extensions {:cacheControl {:maxAge 30 :scope "PRIVATE"}}}
+             (execute {:user "b"} "{account {name}}")))
+      (execute {:user "a"} "{account {name}}")
+      (is (= 2 (get @calls ["QueryRoot" "account"])))
+      (execute nil "{account {name}}")
+      (execute nil "{account {name}}")
+      (is (= 4 (get @calls ["QueryRoot" "account"])) "not cached without a scope key"))
+    (testing "max-age of the response"
+      (is (= {:maxAge 0 :scope "PUBLIC"}
+             (get-in (execute nil "{now}") [:extensions :cacheControl])))
+      (execute nil "{now}")
+      (is (= 2 (get @calls ["QueryRoot" "now"])))
+      (is (= {:maxAge 60 :scope "PUBLIC"}
+             (get-in (execute nil "{product(id: 1) {reviews}}") [:extensions :cacheControl]))
+          "unhinted lists of leaves below the root do not limit the response")
+      (is (= {:maxAge 30 :scope "PRIVATE"}
+             (get-in (execute {:user "a"} "{product(id: 1) {name} account {name}}") [:extensions :cacheControl]))))))
+
+(deftest selections
+  (let [calls (atom {})
+        field-cache (cache/create-cache schema {:hints {["Account" "name"] {:max-age 10}}
+                                                :scope-key-fn :user})
+        execute (fn [resolver-fn query]
+                  (:data (executor/execute {:user "a"} schema resolver-fn query nil nil {:cache field-cache})))
+        projecting-resolver-fn (fn [type-name field-name]
+                                 (if (= ["QueryRoot" "product"] [type-name field-name])
+                                   (fn [context parent args]
+                                     (swap! calls update [type-name field-name] (fnil inc 0))
+                                     (select-keys {:id (get args "id") :name "book"}
+                                                  (map (comp keyword :name) (executor/lookahead args))))
+                                   ((resolver-fn calls) type-name field-name)))]
+    (testing "values projected with the lookahead are not served to other selections"
+      (is (= {"product" {"name" "book"}} (execute projecting-resolver-fn "{product(id: 1) {name}}")))
+      (is (= {"product" {"id" 1 "name" "book"}} (execute projecting-resolver-fn "{product(id: 1) {id name}}")))
+      (is (= 2 (get @calls ["QueryRoot" "product"]))))
+    (testing "values that do not depend on the selection are shared by selections"
+      (is (= {"product" {"name" "book"}} (execute (resolver-fn calls) "{product(id: 2) {name}}")))
+      (is (= {"product" {"id" 2 "name" "book"}} (execute (resolver-fn calls) "{product(id: 2) {id name}}")))
+      (is (= 3 (get @calls ["QueryRoot" "product"]))))
+    (testing "fields of parents without a key are not cached"
+      (let [size (cache/size field-cache)]
+        (execute (resolver-fn calls) "{account {name}}")
+        (is (= (inc size) (cache/size field-cache)) "account is cached, but not the name of an Account")))))
+
+(deftest bounded-size
+  (let [calls (atom {})
+        field-cache (cache/create-cache schema {:max-size 2})]
+    (doseq [id (range 5)]
+      (executor/execute nil schema (resolver-fn calls) (format "{product(id: %d) {id}}" id) nil nil {:cache field-cache}))
+    (is (= 2 (cache/size field-cache)))
+    (cache/clear! field-cache)
+    (is (= 0 (cache/size field-cache)))))
+
+(deftest private-scope
+  (let [calls (atom {})
+        field-cache (cache/create-cache schema)]
+    (dotimes [_ 2]
+      (executor/execute {:user "a"} schema (resolver-fn calls) "{account {name}}" nil nil {:cache field-cache}))
+    (is (= 2 (get @calls ["QueryRoot" "account"])) "PRIVATE fields are not cached without a :scope-key-fn")
+    (is (= 0 (cache/size field-cache)))))
+
+(deftest concurrent-misses
+  (let [calls (atom 0)
+        started (java.util.concurrent.CountDownLatch. 1)
+        release (java.util.concurrent.CountDownLatch. 1)
+        field-cache (cache/create-cache schema)
+        hint {:max-age 60}
+        resolve-fn (fn []
+                     (swap! calls inc)
+                     (.countDown started)
+                     (.await release)
+                     :value)
+        first-load (future (cache/lookup-or-resolve field-cache hint nil ["QueryRoot" "product" {} "QueryRoot"] resolve-fn))
+        _ (.await started)
+        waiting (doall (for [_ (range 4)]
+                         (future (cache/lookup-or-resolve field-cache hint nil ["QueryRoot" "product" {} "QueryRoot"] resolve-fn))))]
+    (Thread/sleep 50)
+    (.countDown release)
+    (is (= [:value :value :value :value :value] (map deref (cons first-load waiting))))
+    (is (= 1 @calls) "concurrent misses of a key resolve once")))
@@ -0,0 +1,69 @@
+(ns graphql-clj.cbor-test
+  (:require [clojure.test :refer :all]
+            [clojure.walk :as walk]
+            [graphql-clj.cbor :as cbor]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.executor-test :as executor-test]))
+
+(defn- hex [^bytes bytes]
+  (apply str (map #(format "%02x" (bit-and % 0xff)) bytes)))
+
+(defn- unhex [^String s]
+  (byte-array (map #(unchecked-byte (Integer/parseInt (apply str %) 16)) (partition 2 s))))
+
+(deftest encoding
+  (testing "examples from RFC 7049 appendix A"
+    (are [value encoded] (= encoded (hex (cbor/encode value)))
+      0 "00"
+      23 "17"
+      24 "1818"
+      1000 "1903e8"
+      1000000 "1a000f4240"
+      1000000000000 "1b000000e8d4a51000"
+      -1 "20"
+      -1000 "3903e7"
+      18446744073709551616N "c249010000000000000000"
+      -18446744073709551617N "c349010000000000000000"
+      100000.0 "fa47c35000"
+      1.1 "fb3ff199999999999a"
+      false "f4"
+      true "f5"
+      nil "f6"
+      "" "60"
+      "ü" "62c3bc"
+      [] "80"
+      [1 [2 3] [4 5]] "8301820203820405"
+      {} "a0"
+      {"a" 1} "a1616101"))
+  (testing "keywords and other values are written as text"
+    (is (= (hex (cbor/encode {"data" "x"})) (hex (cbor/encode {:data :x}))))
+    (is (= "y" (cbor/decode (cbor/encode 'y))))))
+
+(deftest decoding
+  (are [encoded value] (= value (cbor/decode (unhex encoded)))
+    "1b000000e8d4a51000" 1000000000000
+    "3bffffffffffffffff" -18446744073709551616N
+    "f93c00" 1.0
+    "f9c400" -4.0
+    "9f018202039f0405ffff" [1 [2 3] [4 5]]
+    "bf61610161629f0203ffff" {"a" 1 "b" [2 3]})
+  (is (thrown? IllegalArgumentException (cbor/decode (unhex "8301"))))
+  (is (thrown? IllegalArgumentException (cbor/decode (unhex "0000")))))
+
+(deftest execution-result-round-trip
+  (let [result (executor/execute nil executor-test/schema executor-test/user-resolver-fn
+                                 "query {user {name friends {name nickname phones}} stringList loremIpsum(words: 2) reqArg(arg: 1) objectList {name cannotBeNull}}")
+        encoded (cbor/encode result)
+        out (java.io.ByteArrayOutputStream.)]
+    (is (seq (:errors result)))
+    (is (= (walk/stringify-keys result) (cbor/decode encoded)))
+    (is (< (alength encoded) (count (pr-str result))))
+    (cbor/encode result out)
+    (is (= (seq encoded) (seq (.toByteArray out))))
+    (testing "objects are encoded with the keys of their layout"
+      (let [plain (fn plain [x]
+                    (cond
+                      (map? x) (apply array-map (mapcat (fn [[k v]] [k (plain v)]) x))
+                      (sequential? x) (mapv plain x)
+                      :else x))]
+        (is (= (hex (cbor/encode (plain (:data result)))) (hex (cbor/encode (:data result)))))))))
@@ -0,0 +1,91 @@
+(ns graphql-clj.entity-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.schema-validator :as sv]))
+
+(def schema (sv/validate-schema "type User {
+  id: Int
+  name: String
+  friends: [User]
+  bestFriend: User
+}
+
+type Post {
+  title: String
+  author: User
+}
+
+type QueryRoot {
+  posts: [Post]
+}
+
+schema {
+  query: QueryRoot
+}"))
+
+(def users
+  {1 {:id 1 :name "ann" :friends [2 3]}
+   2 {:id 2 :name "bob" :friends [1]}
+   3 {:id 3 :name "cid" :friends [1 2]}})
+
+(defn- resolver-fn
+  [calls]
+  (fn [type-name field-name]
+    (case [type-name field-name]
+      ["QueryRoot" "posts"] (fn [context parent args]
+                              [{:title "a" :author 1} {:title "b" :author 2} {:title "c" :author 1}])
+      ["Post" "author"] (fn [context parent args]
+                          (get users (:author parent)))
+      ["User" "friends"] (fn [context parent args]
+                           (swap! calls update (:id parent) (fnil inc 0))
+                           (map users (:friends parent)))
+      nil)))
+
+(def ^:private query-str
+  "{ posts { title author { id name friends { id name } } } }")
+
+(def ^:private expected
+  {"posts" [{"title" "a" "author" {"id" 1 "name" "ann" "friends" [{"id" 2 "name" "bob"} {"id" 3 "name" "cid"}]}}
+            {"title" "b" "author" {"id" 2 "name" "bob" "friends" [{"id" 1 "name" "ann"}]}}
+            {"title" "c" "author" {"id" 1 "name" "ann" "friends" [{"id" 2 "name" "bob"} {"id" 3 "name" "cid"}]}}]})
+
+(deftest entity-reuse
+  (testing "without reuse every occurrence is completed"
+    (let [calls (atom {})]
+      (is (= {:data expected} (executor/execute nil schema (resolver-fn calls) query-str nil nil nil)))
+      (is (= {1 2 2 1} @calls))))
+  (testing "repeated entities with the same selection set are completed once"
+    (let [calls (atom {})
+          result (executor/execute nil schema (resolver-fn calls) query-str nil nil {:reuse-entities true})]
+      (is (= {:data expected} result))
+      (is (= {1 1 2 1} @calls))
+      (is (identical? (get-in result [:data "posts" 0 "author"])
+                      (get-in result [:data "posts" 2 "author"])))))
+  (testing "different selection sets are completed separately"
+    (let [calls (atom {})]
+      (is (= {:data {"posts" [{"author" {"id" 1}} {"author" {"id" 2}} {"author" {"id" 1}}]
+                     "p" [{"author" {"name" "ann"}} {"author" {"name" "bob"}} {"author" {"name" "ann"}}]}}
+             (executor/execute nil schema (resolver-fn calls) "{ posts { author { id } } p: posts { author { name } } }"
+                               nil nil {:reuse-entities true})))))
+  (testing "custom entity keys"
+    (let [calls (atom {})]
+      (executor/execute nil schema (resolver-fn calls) query-str nil nil
+                        {:reuse-entities (fn [schema type-name value]
+                                           (when (= 'User type-name) (:name value)))})
+      (is (= {1 1 2 1} @calls)))))
+
+(deftest normalized-response
+  (let [result (executor/execute nil schema (resolver-fn (atom {})) query-str nil nil {:normalize true})]
+    (is (= {:data {"posts" [{"title" "a" "author" {"__ref" "User:1"}}
+                            {"title" "b" "author" {"__ref" "User:2"}}
+                            {"title" "c" "author" {"__ref" "User:1"}}]}
+            :entities {"User:1" {"id" 1 "name" "ann" "friends" [{"__ref" "User:2"} {"__ref" "User:3"}]}
+                       "User:2" {"id" 2 "name" "bob" "friends" [{"__ref" "User:1"}]}
+                       "User:3" {"id" 3 "name" "cid"}}}
+           result))
+    (testing "fields from different selection sets are merged"
+      (is (= {"User:1" {"id" 1 "name" "ann"}
+              "User:2" {"id" 2 "name" "bob"}}
+             (:entities (executor/execute nil schema (resolver-fn (atom {}))
+                                          "{ posts { title author { id } } p: posts { author { name } } }"
+                                          nil nil {:normalize true})))))))
@@ -295,6 +295,20 @@ input WorldInput {
             fields (#'sut/collect-fields query-root-type selection-set {} {})]
         (is (empty? errors))
         (is (= 4 (count fields)))))
+    (testing "collect fields - document order"
+      (let [aliases ["j" "b" "i" "c" "h" "d" "g" "e" "f" "a"]
+            [errors document] (qv/validate-query starwars-schema
+                                                 (str "query { " (str/join " " (map #(str % ": hero { name }") aliases)) " }"))
+            fields (#'sut/collect-fields query-root-type (:selection-set (first document)) {} {})]
+        (is (empty? errors))
+        (is (= aliases (keys fields)))
+        (is (= 'f (:alias (first (get fields "f")))))))
+    (testing "collect fields - selection sets are merged"
+      (let [[errors document] (qv/validate-query starwars-schema "query { hero { name } hero { id } }")
+            fields (#'sut/collect-fields query-root-type (:selection-set (first document)) {} {})]
+        (is (empty? errors))
+        (is (= ["hero"] (keys fields)))
+        (is (= '[name id] (map :name (:selection-set (first (get fields "hero"))))))))
     ))
 
 (deftest test-execute-fields
@@ -355,7 +369,7 @@ input WorldInput {
                               "query { human(id: \"1000\") { id name friends } }")]
       (is (seq (:errors result)))
       (is (= {:errors [{:message "Object Field(friends) has no selection."}],
-              :data {"human" {"id" "1000", "name" "Luke Skywalker", "friends" ()}}}
+              :data {"human" {"id" "1000", "name" "Luke Skywalker", "friends" [nil nil nil nil]}}}
              result)))))
 
 (deftest test-execute-multiple-queries
@@ -377,3 +391,49 @@ input WorldInput {
                               "isCute" true
                               "isDumb" false}}}
              result)))))
+
+(deftest test-execute-incremental-defer
+  (testing "deferred fragments are delivered after the initial payload"
+    (let [resolved (atom [])
+          resolver-fn (fn [type-name field-name]
+                        (when-let [f (starwars-resolver-fn type-name field-name)]
+                          (fn [context parent args]
+                            (swap! resolved conj field-name)
+                            (f context parent args))))
+          result (sut/execute-incremental nil starwars-schema resolver-fn
+                                          "query { human(id: \"1000\") { id ... @defer(label: \"friends\") { friends { name } } } }")]
+      (is (= {:data {"human" {"id" "1000"}} :hasNext true}
+             (first result)))
+      (is (= ["human"] @resolved))
+      (is (= [{:data {"friends" [{"name" "Han Solo"} {"name" "Leia Organa"} {"name" "C-3PO"} {"name" "R2-D2"}]}
+               :path ["human"]
+               :label "friends"
+               :hasNext false}]
+             (rest result)))
+      (is (= ["human" "friends"] @resolved))))
+  (testing "deferred fragment spreads and disabled defers"
+    (let [result (sut/execute-incremental nil starwars-schema starwars-resolver-fn
+                                          "query($d: Boolean!) { human(id: \"1000\") { ...F @defer ... @defer(if: $d) { id } } }
+                                           fragment F on Human { name }"
+                                          {:d false})]
+      (is (= [{:data {"human" {"id" "1000"}} :hasNext true}
+              {:data {"name" "Luke Skywalker"} :path ["human"] :hasNext false}]
+             result))))
+  (testing "@defer is ignored by execute"
+    (is (= {:data {"human" {"id" "1000" "name" "Luke Skywalker"}}}
+           (sut/execute nil starwars-schema starwars-resolver-fn
+                        "query { human(id: \"1000\") { id ... @defer { name } } }")))))
+
+(deftest test-execute-incremental-stream
+  (testing "streamed list items after the initial count"
+    (let [result (sut/execute-incremental nil starwars-schema starwars-resolver-fn
+                                          "query { human(id: \"1003\") { friends @stream(initialCount: 2, label: \"f\") { name } } }")]
+      (is (= [{:data {"human" {"friends" [{"name" "Luke Skywalker"} {"name" "Han Solo"}]}} :hasNext true}
+              {:items [{"name" "C-3PO"}] :path ["human" "friends" 2] :label "f" :hasNext true}
+              {:items [{"name" "R2-D2"}] :path ["human" "friends" 3] :label "f" :hasNext false}]
+             result))))
+  (testing "validation errors"
+    (let [result (sut/execute-incremental nil starwars-schema starwars-resolver-fn "query { unknown }")]
+      (is (= 1 (count result)))
+      (is (seq (:errors (first result))))
+      (is (false? (:hasNext (first result)))))))
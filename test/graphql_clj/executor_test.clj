@@ -119,6 +119,14 @@ schema {
       (is (not (:errors result)))
       (is (= "Test user name" (get-in result [:data "user" "name"]))))))
 
+(deftest parse-limits
+  (is (= "Test user name"
+         (get-in (executor/execute nil schema user-resolver-fn "query {user {name}}" nil nil {:parse-limits {:max-depth 2}})
+                 [:data "user" "name"])))
+  (is (= {:errors [{:message "document exceeds the maximum nesting depth of 1"
+                    :locations [{:line 1 :column 13 :index 12}]}]}
+         (executor/execute nil schema user-resolver-fn "query {user {name}}" nil nil {:parse-limits {:max-depth 1}}))))
+
 (deftest simple-execution
   (testing "simple execution"
     (let [result (test-execute "query {user {name}}")]
@@ -194,6 +202,109 @@ fragment userFields on User {
       (is (not (:errors result)))
       (is (= 5 (count (get-in result [:data "user" "friends"])))))))
 
+(defn- counting-resolver-fn
+  "Wraps user-resolver-fn, counting the resolver calls per field."
+  [calls]
+  (fn [type-name field-name]
+    (when-let [f (user-resolver-fn type-name field-name)]
+      (fn [context parent args]
+        (swap! calls update (str type-name "." field-name) (fnil inc 0))
+        (f context parent args)))))
+
+(deftest execution-with-skip-and-include
+  (testing "constant conditions"
+    (let [calls (atom {})
+          result (executor/execute nil schema (counting-resolver-fn calls)
+                                   "query {user {name @include(if: true) nickname @skip(if: true) friends @include(if: false) {name}}}")]
+      (is (not (:errors result)))
+      (is (= {"user" {"name" "Test user name"}} (:data result)))
+      (is (nil? (get @calls "User.friends")))))
+  (testing "conditions on variables"
+    (let [query-str "query($withFriends: Boolean!, $short: Boolean!) {
+  user {
+    name
+    nickname @skip(if: $short)
+    friends @include(if: $withFriends) { name }
+  }
+}"]
+      (let [calls (atom {})
+            result (executor/execute nil schema (counting-resolver-fn calls) query-str {"withFriends" false "short" true})]
+        (is (not (:errors result)))
+        (is (= {"user" {"name" "Test user name"}} (:data result)))
+        (is (nil? (get @calls "User.friends"))))
+      (let [result (test-execute query-str {"withFriends" true "short" false})]
+        (is (not (:errors result)))
+        (is (= "Test user nickname" (get-in result [:data "user" "nickname"])))
+        (is (= 5 (count (get-in result [:data "user" "friends"])))))))
+  (testing "conditions on fragments"
+    (let [query-str "query($short: Boolean!) {
+  user {
+    ...details @skip(if: $short)
+    ... @include(if: false) { friends { name } }
+  }
+}
+fragment details on User { nickname }"]
+      (is (= {"user" {"nickname" "Test user nickname"}} (:data (test-execute query-str {"short" false}))))
+      (is (= {"user" {}} (:data (test-execute query-str {"short" true})))))))
+
+(deftest selection-lookahead
+  (let [lookaheads (atom {})
+        resolver-fn (fn [type-name field-name]
+                      (when-let [f (user-resolver-fn type-name field-name)]
+                        (fn [context parent args]
+                          (swap! lookaheads assoc (str type-name "." field-name) (executor/lookahead args))
+                          (f context parent args))))
+        result (executor/execute nil schema resolver-fn
+                                 "query($short: Boolean!) {
+  user {
+    name
+    ...details
+    ... on User { best: friends { name } }
+    friends { nickname son { name } }
+    phones @skip(if: $short)
+  }
+}
+fragment details on User { nickname }"
+                                 {"short" true})]
+    (is (not (:errors result)))
+    (is (= [{:name "name" :alias nil :args {} :selections []}
+            {:name "nickname" :alias nil :args {} :selections []}
+            {:name "friends" :alias "best" :args {} :selections [{:name "name" :alias nil :args {} :selections []}]}
+            {:name "friends" :alias nil :args {}
+             :selections [{:name "nickname" :alias nil :args {} :selections []}
+                          {:name "son" :alias nil :args {} :selections [{:name "name" :alias nil :args {} :selections []}]}]}]
+           (get @lookaheads "QueryRoot.user")))
+    (is (= [{:name "name" :alias nil :args {} :selections []}]
+           (get @lookaheads "User.son")))))
+
+(deftest lookahead-argument-defaults
+  (let [schema (sv/validate-schema "interface Node { id: Int }
+type Item implements Node { id: Int label(locale: String = \"en\"): String }
+type QueryRoot { items: [Item] node: Node }")
+        lookaheads (atom {})
+        label-args (atom [])
+        resolver-fn (fn [type-name field-name]
+                      (case [type-name field-name]
+                        ["QueryRoot" "items"] (fn [context parent args]
+                                                (swap! lookaheads assoc "items" (executor/lookahead args))
+                                                [{:id 1}])
+                        ["QueryRoot" "node"] (fn [context parent args]
+                                               (swap! lookaheads assoc "node" (doall (executor/lookahead args)))
+                                               nil)
+                        ["Item" "label"] (fn [context parent args]
+                                           (swap! label-args conj args)
+                                           (get args "locale"))
+                        nil))]
+    (is (= {:data {"items" [{"label" "en" "fr" "fr"}]}}
+           (executor/execute nil schema resolver-fn "{ items { label fr: label(locale: \"fr\") } }")))
+    (testing "lookahead args have the defaults the resolver gets"
+      (is (= [{"locale" "en"} {"locale" "fr"}] @label-args))
+      (is (= @label-args (map :args (get @lookaheads "items")))))
+    (testing "fields of fragments on the possible types of an interface"
+      (is (= {:data {"node" nil}}
+             (executor/execute nil schema resolver-fn "{ node { id ... on Item { label } } }")))
+      (is (= [{} {"locale" "en"}] (map :args (get @lookaheads "node")))))))
+
 (deftest mutation
   (testing "execution on mutation with argument value"
     (let [user-name "Mutation Test User"
@@ -215,6 +326,166 @@ fragment userFields on User {
       (is (not (:errors result)))
       (is (= user-name (get-in result [:data "createUser" "name"]))))))
 
+(deftest batch-mutations
+  (let [batches (atom [])
+        batch-fn (fn [context args]
+                   (swap! batches conj (mapv #(get % "name") args))
+                   (map-indexed (fn [i {:strs [name]}]
+                                  (if (= "bad" name)
+                                    (ex-info "Invalid name." {})
+                                    {:id (str "u" i) :name name}))
+                                args))
+        execute (fn [mutation-str batch-fn]
+                  (executor/execute nil schema user-resolver-fn mutation-str {"name" "b"} nil
+                                    {:batch-mutations (fn [type-name field-name]
+                                                        (when (= ["MutationRoot" "createUser"] [type-name field-name])
+                                                          batch-fn))}))]
+    (testing "consecutive root fields are resolved with one call"
+      (is (= {:data {"a1" {"id" "u0" "name" "a"}
+                     "a2" {"id" "u1" "name" "b"}
+                     "a3" {"id" "u2" "name" "default user name"}}}
+             (execute "mutation($name: String) { a1: createUser(name: \"a\", required: true) { id name }
+                                                a2: createUser(name: $name, required: true) { id name }
+                                                a3: createUser(required: true) { id name } }"
+                      batch-fn)))
+      (is (= [["a" "b" "default user name"]] @batches)))
+    (testing "a single field uses its resolver"
+      (reset! batches [])
+      (is (= "a" (get-in (execute "mutation { createUser(name: \"a\", required: true) { name } }" batch-fn)
+                         [:data "createUser" "name"])))
+      (is (= [] @batches)))
+    (testing "errors are returned for their fields"
+      (is (= {:data {"a1" {"name" "a"} "a2" nil}
+              :errors [{:message "Invalid name."}]}
+             (execute "mutation { a1: createUser(name: \"a\", required: true) { name }
+                                  a2: createUser(name: \"bad\", required: true) { name } }"
+                      batch-fn)))
+      (is (= {:data {"a1" nil "a2" nil}
+              :errors [{:message "Batch resolver for MutationRoot.createUser returned 1 results for 2 fields."}]}
+             (execute "mutation { a1: createUser(name: \"a\", required: true) { name }
+                                  a2: createUser(name: \"b\", required: true) { name } }"
+                      (fn [context args] [{:name "a"}])))))))
+
+(deftest memoized-execution
+  (let [query-str "query {
+  user { name }
+  u2: user { nickname a: son { name } ...sons }
+  l2: loremIpsum(words: 2)
+  ... on QueryRoot { l2again: loremIpsum(words: 2) l3: loremIpsum(words: 3) }
+}
+fragment sons on User { b: son { nickname } }"
+        expected {"user" {"name" "Test user name"}
+                  "u2" {"nickname" "Test user nickname"
+                        "a" {"name" "Test son name"}
+                        "b" {"nickname" "Son's nickname"}}
+                  "l2" "Lorem Lorem"
+                  "l2again" "Lorem Lorem"
+                  "l3" "Lorem Lorem Lorem"}]
+    (testing "without memoization every selection calls its resolver"
+      (let [calls (atom {})
+            result (executor/execute nil schema (counting-resolver-fn calls) query-str nil nil nil)]
+        (is (= expected (:data result)))
+        (is (= {"QueryRoot.user" 2 "User.son" 2 "QueryRoot.loremIpsum" 3} @calls))))
+    (testing "identical calls on the same parent are resolved once"
+      (let [calls (atom {})
+            result (executor/execute nil schema (counting-resolver-fn calls) query-str nil nil {:memoize true})]
+        (is (= expected (:data result)))
+        (is (= {"QueryRoot.user" 2 "User.son" 2 "QueryRoot.loremIpsum" 2} @calls)
+            "user and son are selected with different sub-selections"))
+      (let [calls (atom {})
+            result (executor/execute nil schema (counting-resolver-fn calls)
+                                     "{ a: user { name son { name } } b: user { ...named son { name } } }
+                                      fragment named on User { name }"
+                                     nil nil {:memoize true})]
+        (is (= {"a" {"name" "Test user name" "son" {"name" "Test son name"}}
+                "b" {"name" "Test user name" "son" {"name" "Test son name"}}}
+               (:data result)))
+        (is (= {"QueryRoot.user" 1 "User.son" 1} @calls))))
+    (testing "calls with different sub-selections see their own lookahead"
+      (let [calls (atom {})
+            projecting-resolver-fn (fn [type-name field-name]
+                                     (if (= ["QueryRoot" "user"] [type-name field-name])
+                                       (fn [context parent args]
+                                         (swap! calls update "QueryRoot.user" (fnil inc 0))
+                                         (select-keys {:name "Test user name" :nickname "Test user nickname"}
+                                                      (map (comp keyword :name) (executor/lookahead args))))
+                                       (user-resolver-fn type-name field-name)))
+            result (executor/execute nil schema projecting-resolver-fn
+                                     "query($n: Boolean!) {
+  a: user { name }
+  b: user { nickname }
+  c: user { name }
+  d: user { name @include(if: $n) nickname @skip(if: $n) }
+}"
+                                     {"n" false} nil {:memoize true})]
+        (is (= {"a" {"name" "Test user name"}
+                "b" {"nickname" "Test user nickname"}
+                "c" {"name" "Test user name"}
+                "d" {"nickname" "Test user nickname"}}
+               (:data result)))
+        (is (= {"QueryRoot.user" 3} @calls))))
+    (testing "root mutation fields always run"
+      (let [calls (atom {})
+            result (executor/execute nil schema (counting-resolver-fn calls)
+                                     "mutation {a: createUser(required: true) {name} b: createUser(required: true) {name}}"
+                                     nil nil {:memoize true})]
+        (is (not (:errors result)))
+        (is (= 2 (get @calls "MutationRoot.createUser")))))))
+
+(deftest batch-execution
+  (let [calls (atom {})
+        results (executor/execute-batch nil schema (counting-resolver-fn calls)
+                                        [["query {user {name}}"]
+                                         ["query($n: Int) {user {nickname} loremIpsum(words: $n)}" {:n 2}]
+                                         ["query A {user {son {name}}} query B {stringList}" nil "B"]
+                                         ["mutation {createUser(required: true) {name}}"]
+                                         ["mutation {createUser(required: true) {name}}"]
+                                         ["query {user {name}}"]
+                                         ["query {nothing}"]
+                                         ["query A {user {name}} query B {stringList}"]])]
+    (testing "results are returned in order"
+      (is (= [{:data {"user" {"name" "Test user name"}}}
+              {:data {"user" {"nickname" "Test user nickname"} "loremIpsum" "Lorem Lorem"}}
+              {:data {"stringList" ["0" "1" "2"]}}
+              {:data {"createUser" {"name" "default user name"}}}
+              {:data {"createUser" {"name" "default user name"}}}
+              {:data {"user" {"name" "Test user name"}}}]
+             (subvec results 0 6)))
+      (is (= 1 (count (:errors (nth results 6)))))
+      (is (= {:errors [{:message "Must provide operation name if query contains multiple operations."}]}
+             (nth results 7))))
+    (testing "identical resolver calls are shared between queries"
+      (is (= 3 (get @calls "QueryRoot.user")) "once per selection set before the mutations and once after"))
+    (testing "mutations are not deduplicated"
+      (is (= 2 (get @calls "MutationRoot.createUser"))))))
+
+(deftest batch-execution-with-lookahead
+  (let [lookaheads (atom [])
+        projecting-resolver-fn (fn [type-name field-name]
+                                 (if (= ["QueryRoot" "user"] [type-name field-name])
+                                   (fn [context parent args]
+                                     (let [fields (map :name (executor/lookahead args))]
+                                       (swap! lookaheads conj (set fields))
+                                       (select-keys {:name "Test user name" :nickname "Test user nickname"}
+                                                    (map keyword fields))))
+                                   (user-resolver-fn type-name field-name)))
+        results (executor/execute-batch nil schema projecting-resolver-fn
+                                        [["query {user {name}}"]
+                                         ["query {user {nickname}}"]
+                                         ["query {u: user {name}}"]
+                                         ["query($n: Boolean!) {user {name @include(if: $n) nickname}}" {:n true}]
+                                         ["query($n: Boolean!) {user {name @include(if: $n) nickname}}" {:n false}]])]
+    (testing "each operation gets the projection of its own selection"
+      (is (= [{:data {"user" {"name" "Test user name"}}}
+              {:data {"user" {"nickname" "Test user nickname"}}}
+              {:data {"u" {"name" "Test user name"}}}
+              {:data {"user" {"name" "Test user name" "nickname" "Test user nickname"}}}
+              {:data {"user" {"nickname" "Test user nickname"}}}]
+             results)))
+    (testing "operations with the same selection share the call"
+      (is (= 4 (count @lookaheads)))
+      (is (= #{#{"name"} #{"nickname"} #{"name" "nickname"}} (set @lookaheads))))))
+
 (deftest readme-example
   (let [schema-str "type User {
     name: String
@@ -1,5 +1,6 @@
 (ns graphql-clj.executor-unit-test
   (:require [graphql-clj.executor :as sut :refer :all]
+            [graphql-clj.schema-validator]
             [clojure.test :as t :refer [deftest testing is]]))
 
 (deftest test-resolve-field-on-object
@@ -13,3 +14,42 @@
                   {:vals "Parent result"})]
       (is (= "resolved val" result)))))
 
+
+(deftest test-result-object
+  (let [layout (graphql_clj.ResultObject$Layout. (into-array String ["b" "a" "c"]))
+        obj (graphql_clj.ResultObject. layout (object-array [1 nil {"x" 2}]))]
+    (testing "behaves as a map in layout order"
+      (is (= {"a" nil "b" 1 "c" {"x" 2}} obj))
+      (is (= obj {"a" nil "b" 1 "c" {"x" 2}}))
+      (is (= (hash {"a" nil "b" 1 "c" {"x" 2}}) (hash obj)))
+      (is (= ["b" "a" "c"] (keys obj)))
+      (is (= [["b" 1] ["a" nil] ["c" {"x" 2}]] (vec obj)))
+      (is (= 3 (count obj)))
+      (is (contains? obj "a"))
+      (is (not (contains? obj "d")))
+      (is (= :none (get obj "d" :none)))
+      (is (= 2 (get-in obj ["c" "x"])))
+      (is (= "{\"b\" 1, \"a\" nil, \"c\" {\"x\" 2}}" (pr-str obj)))
+      (is (= ["b" "a"] (reduce-kv (fn [ks k v] (if (= "c" k) (reduced ks) (conj ks k))) [] obj))))
+    (testing "modifications return persistent maps"
+      (is (= {"a" nil "b" 1 "c" {"x" 2} "d" 4} (assoc obj "d" 4)))
+      (is (= {"a" nil "c" {"x" 2}} (dissoc obj "b")))
+      (is (= {:m true} (meta (with-meta obj {:m true})))))
+    (testing "layouts with many keys"
+      (let [ks (map str (range 20))
+            obj (graphql_clj.ResultObject. (graphql_clj.ResultObject$Layout. (into-array String ks)) (object-array (range 20)))]
+        (is (= (zipmap ks (range 20)) obj))
+        (is (= 19 (get obj "19")))))))
+
+(deftest test-list-items-share-layout
+  (let [schema (graphql-clj.schema-validator/validate-schema "type Item { id: Int name: String }
+type QueryRoot { items: [Item] }")
+        result (sut/execute nil schema (fn [type-name field-name]
+                                         (when (= ["QueryRoot" "items"] [type-name field-name])
+                                           (fn [context parent args]
+                                             (map (fn [i] {:id i :name (str "item " i)}) (range 3)))))
+                            "{ items { id name } }")
+        items (get-in result [:data "items"])]
+    (is (= [{"id" 0 "name" "item 0"} {"id" 1 "name" "item 1"} {"id" 2 "name" "item 2"}] items))
+    (is (every? #(instance? graphql_clj.ResultObject %) items))
+    (is (every? #(identical? (.layout ^graphql_clj.ResultObject (first items)) (.layout ^graphql_clj.ResultObject %)) items))))
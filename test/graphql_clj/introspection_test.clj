@@ -40,7 +40,7 @@ schema {
                     {"name" 'Int, "kind" :SCALAR})}}}))))
 
 ;; (deftest schema-introspection-without-user-schema
-;;   (let [intro-schema (-> intro/introspection-schema sv/validate-schema)
+;;   (let [intro-schema (-> @intro/introspection-schema sv/validate-schema)
 ;;         result       (executor/execute nil intro-schema (constantly nil) intro/introspection-query)]
 ;;     (is (not (:errors result)))
 ;;     (is (= {"name" "Query"} (get-in result [:data "__schema" "queryType"])))))
@@ -0,0 +1,77 @@
+(ns graphql-clj.jfr-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.schema-validator :as sv]))
+
+(def ^:private available?
+  (try
+    (Class/forName "jdk.jfr.Recording")
+    true
+    (catch ClassNotFoundException e
+      false)))
+
+(defn- record-events
+  "Runs f while recording the GraphQL events, resolver events without a
+  threshold, and returns the recorded events as maps of their name and
+  fields."
+  [f]
+  (let [recording (clojure.lang.Reflector/invokeConstructor (Class/forName "jdk.jfr.Recording") (object-array 0))
+        file (java.io.File/createTempFile "graphql" ".jfr")]
+    (try
+      (doseq [event-name ["graphql_clj.Parse" "graphql_clj.ValidateSchema" "graphql_clj.ValidateQuery"
+                          "graphql_clj.Execute" "graphql_clj.Resolve"]]
+        (-> (.enable ^jdk.jfr.Recording recording ^String event-name)
+            (.withThreshold java.time.Duration/ZERO)))
+      (.start ^jdk.jfr.Recording recording)
+      (f)
+      (.stop ^jdk.jfr.Recording recording)
+      (.dump ^jdk.jfr.Recording recording (.toPath file))
+      (vec (for [^jdk.jfr.consumer.RecordedEvent event (jdk.jfr.consumer.RecordingFile/readAllEvents (.toPath file))]
+             (into {:name (.getName (.getEventType event))}
+                   (for [^jdk.jfr.ValueDescriptor field (.getFields event)
+                         :let [k (.getName field)]
+                         :when (not (#{"startTime" "duration" "eventThread" "stackTrace"} k))]
+                     [(keyword k) (.getValue event k)]))))
+      (finally
+        (.close ^jdk.jfr.Recording recording)
+        (.delete file)))))
+
+(def ^:private schema-str "type User { name: String friends: [User] } type QueryRoot { user: User }")
+
+(defn- resolver-fn [type-name field-name]
+  (case [type-name field-name]
+    ["QueryRoot" "user"] (fn [context parent args] {:name "ann" :friends [{:name "bob"}]})
+    nil))
+
+(deftest flight-recorder-events
+  (when available?
+    (let [events (record-events
+                  #(executor/execute nil (sv/validate-schema schema-str) resolver-fn
+                                     "query Q { user { name friends { name } } }"))
+          by-name (group-by :name events)]
+      (is (= [{:name "graphql_clj.Parse" :kind "schema" :length 72 :tokens 19}
+              {:name "graphql_clj.Parse" :kind "query" :length 42 :tokens 12}]
+             (get by-name "graphql_clj.Parse")))
+      (is (= [{:name "graphql_clj.ValidateSchema" :types 14 :errors 0}]
+             (get by-name "graphql_clj.ValidateSchema")))
+      (is (= 0 (:errors (first (get by-name "graphql_clj.ValidateQuery")))))
+      (is (= [["Q" "query" 0]]
+             (map (juxt :operationName :operationType :errors) (get by-name "graphql_clj.Execute"))))
+      (is (= (:documentHash (first (get by-name "graphql_clj.ValidateQuery")))
+             (:documentHash (first (get by-name "graphql_clj.Execute")))))
+      (is (= [["QueryRoot" "user" "user"]
+              ["User" "name" "user.name"]
+              ["User" "friends" "user.friends"]
+              ["User" "name" "user.friends.0.name"]]
+             (map (juxt :typeName :fieldName :path) (get by-name "graphql_clj.Resolve")))))))
+
+(deftest document-hashes
+  (when available?
+    (let [schema (sv/validate-schema schema-str)
+          events (record-events
+                  #(doseq [query ["query Q { user { name friends { name } } }"
+                                  "query Q {\n  user { name, friends { name } } # friends\n}"]]
+                     (executor/execute nil schema resolver-fn query)))]
+      (testing "documents differing in whitespace and comments have the same hash"
+        (is (= 1 (count (set (map :documentHash (filter (comp #{"graphql_clj.ValidateQuery" "graphql_clj.Execute"} :name)
+                                                        events))))))))))
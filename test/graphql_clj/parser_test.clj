@@ -216,3 +216,84 @@
        "\"\\x1234\"" {:loc {:line 1 :column 4 :index 3} :msg "invalid escape sequence"}
        "\"\\uEFGH\"" {:loc {:line 1 :column 7 :index 6} :msg "invalid hex escape"}))
 
+
+(deftest canonical-query
+  (let [query "# fetch a dog
+query Dog($name: String = \"rex\", $n: Int) {
+  dog(name: $name, limit: 10) @include(if: true) {
+    name,   nickname
+    ... on Dog { barkVolume }
+    owner(filter: {age: [1, 2]}) { name }
+  }
+}"]
+    (is (= "query Dog($name:String=\"rex\"$n:Int){dog(name:$name limit:10)@include(if:true){name nickname...on Dog{barkVolume}owner(filter:{age:[1 2]}){name}}}"
+           (parser/canonical-query query)))
+    (is (= (parser/parse-query-document (parser/canonical-query query))
+           (parser/parse-query-document query)))
+    (is (= "query Dog($name:String=$_$n:Int){dog(name:$name limit:$_)@include(if:$_){name nickname...on Dog{barkVolume}owner(filter:$_){name}}}"
+           (parser/canonical-query query {:hoist-literals true})))
+    (testing "fingerprints"
+      (is (= (parser/fingerprint "{ a(x: 1) { b } }") (parser/fingerprint "{a(x:1){b}}")))
+      (is (not= (parser/fingerprint "{ a(x: 1) { b } }") (parser/fingerprint "{ a(x: 2) { b } }")))
+      (is (= (parser/fingerprint "{ a(x: 1) { b } }" {:hoist-literals true})
+             (parser/fingerprint "{ a(x: \"two\") { b } }" {:hoist-literals true})))
+      (is (= 64 (count (parser/fingerprint "{ a }")))))
+    (is (thrown? clojure.lang.ExceptionInfo (parser/canonical-query "{ a(x: \"b) }")))))
+
+(deftest print-document
+  (let [document (parser/parse-query-document "query Dog($name: String = \"rex\", $n: Int, $unused: [Int!]!) {
+  dog(name: $name, filter: {tags: [\"a\\\"b\", null], size: -1.5}) @include(if: true) { ...Names ... on Dog { barkVolume } }
+}
+fragment Names on Dog { name nickname(n: $n) ...Owner }
+fragment Owner on Dog { owner { name } }
+fragment Unused on Dog { id }
+mutation { bark }")]
+    (is (= (str "query Dog($name:String=\"rex\"$n:Int$unused:[Int!]!){dog(name:$name filter:{tags:[\"a\\\"b\"null]size:-1.5})@include(if:true){...Names...on Dog{barkVolume}}}"
+                "fragment Names on Dog{name nickname(n:$n)...Owner}fragment Owner on Dog{owner{name}}fragment Unused on Dog{id}mutation{bark}")
+           (parser/print-document document)))
+    (is (= document (parser/parse-query-document (parser/print-document document))))
+    (testing "unused fragments and variables"
+      (is (= (str "query Dog($name:String=\"rex\"$n:Int){dog(name:$name filter:{tags:[\"a\\\"b\"null]size:-1.5})@include(if:true){...Names...on Dog{barkVolume}}}"
+                  "fragment Names on Dog{name nickname(n:$n)...Owner}fragment Owner on Dog{owner{name}}")
+             (parser/print-document document {:operation-name "Dog" :drop-unused-fragments true :drop-unused-variables true})))
+      (is (= "mutation Bark{bark}"
+             (let [out (java.io.StringWriter.)]
+               (parser/print-document (parser/parse-query-document "mutation Bark { bark } fragment Names on Dog { name }")
+                                      {:operation-name :Bark :drop-unused-fragments true}
+                                      out)
+               (str out)))))
+    (testing "printed documents parse to documents that print the same"
+      (doseq [file (.listFiles (File. "test/graphql_clj/parser_test"))
+              :let [file-name (.getName ^File file)]
+              :when (and (.startsWith file-name "query") (.endsWith file-name ".input"))
+              :let [document (try (parser/parse-query-document (slurp file))
+                                  (catch clojure.lang.ExceptionInfo e nil))]
+              :when document
+              :let [printed (parser/print-document document)]]
+        (is (= printed (parser/print-document (parser/parse-query-document printed))) file-name)))))
+
+(deftest parse-limits
+  (letfn [(error [input limits]
+            (try
+              (parser/parse-query-document input limits)
+              nil
+              (catch clojure.lang.ExceptionInfo e
+                (first (:errors (ex-data e))))))]
+    (is (nil? (error "{ a(x: \"abc\") { b } }" {:max-document-size 21 :max-tokens 11 :max-depth 2 :max-string-length 5})))
+    (is (= {:message "document exceeds the maximum size of 20 characters"
+            :locations [{:line 1 :column 1 :index 0}]}
+           (error "{ a(x: \"abc\") { b } }" {:max-document-size 20})))
+    (is (= {:message "document exceeds the maximum of 10 tokens"
+            :locations [{:line 1 :column 21 :index 20}]}
+           (error "{ a(x: \"abc\") { b } }" {:max-tokens 10})))
+    (is (= {:message "document exceeds the maximum nesting depth of 1"
+            :locations [{:line 1 :column 4 :index 3}]}
+           (error "{ a(x: \"abc\") { b } }" {:max-depth 1})))
+    (is (= {:message "string exceeds the maximum length of 4 characters"
+            :locations [{:line 1 :column 8 :index 7}]}
+           (error "{ a(x: \"abc\") { b } }" {:max-string-length 4})))
+    (testing "deep documents are rejected without overflowing the stack"
+      (is (= "document exceeds the maximum nesting depth of 500"
+             (:message (error (str (apply str (repeat 100000 "{ a ")) (apply str (repeat 100000 "}"))) nil))))
+      (is (= "document exceeds the maximum nesting depth of 500"
+             (:message (error (str "{ a(x: " (apply str (repeat 100000 "[")) ") }") nil)))))))
@@ -0,0 +1,83 @@
+(ns graphql-clj.query-validator-overlap-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [graphql-clj.fixture :as fixture]
+            [graphql-clj.schema-validator :as schema-validator]
+            [graphql-clj.query-validator :as query-validator]
+            [graphql-clj.query-validator-util :refer [deftest-invalid]]))
+
+(def ^:private schema (schema-validator/validate-schema fixture/validation-5-schema-str))
+
+(defn- err [msg sl sc si el ec ei]
+  {:message msg :start {:line sl :column sc :index si} :end {:line el :column ec :index ei}})
+
+(defn- conflict [k reason]
+  (format "fields '%s' conflict because %s; use different aliases on the fields to fetch both if this was intentional" k reason))
+
+(defn- errors [query]
+  (first (query-validator/validate-query schema query)))
+
+(deftest mergeable-fields
+  (testing "identical fields"
+    (is (empty? (errors "{ dog { name name } }"))))
+  (testing "identical fields with identical arguments"
+    (is (empty? (errors "{ dog { doesKnowCommand(dogCommand: SIT) doesKnowCommand(dogCommand: SIT) } }"))))
+  (testing "different aliases"
+    (is (empty? (errors "{ dog { a: name b: nickname } }"))))
+  (testing "same field in fragments"
+    (is (empty? (errors "{ dog { ...A ...B name } } fragment A on Dog { name } fragment B on Dog { name }")))))
+
+(deftest-invalid different-fields-same-response-key schema
+  "{ dog { name: nickname name } }"
+  (err (conflict "name" "'nickname' and 'name' are different fields") 1 9 8 1 23 22))
+
+(deftest-invalid differing-arguments schema
+  "{ dog { doesKnowCommand(dogCommand: SIT) doesKnowCommand(dogCommand: HEEL) } }"
+  (err (conflict "doesKnowCommand" "they have differing arguments") 1 9 8 1 41 40))
+
+(deftest-invalid conflict-between-fragments schema
+  "{ dog { ...A ...B } } fragment A on Dog { x: name } fragment B on Dog { x: barkVolume }"
+  (err (conflict "x" "'name' and 'barkVolume' are different fields") 1 43 42 1 50 49))
+
+(deftest-invalid conflict-in-inline-fragments schema
+  "{ dog { ... on Dog { name } ... on Dog { name: nickname } } }"
+  (err (conflict "name" "'name' and 'nickname' are different fields") 1 22 21 1 26 25))
+
+(deftest-invalid conflicting-subfields schema
+  "{ dog { owner { name } owner { name: __typename } } }"
+  (err (conflict "owner" "subfields 'name' conflict because 'name' and '__typename' are different fields")
+       1 9 8 1 23 22))
+
+;; Pathological inputs.  The number of field comparisons is asserted
+;; rather than the time taken, the timings are in
+;; graphql-clj.bench.overlap.  A quadratic implementation compares every
+;; pair of fields on these.
+
+(defn- comparisons [query]
+  (let [n (atom 0)
+        find-conflict @#'query-validator/find-conflict]
+    (with-redefs [query-validator/find-conflict (fn [& args]
+                                                  (swap! n inc)
+                                                  (apply find-conflict args))]
+      (is (empty? (errors query))))
+    @n))
+
+(deftest repeated-fields
+  (testing "identical fields are compared once"
+    (is (= 0 (comparisons (str "{ dog { " (str/join " " (repeat 2000 "name")) " } }"))))
+    (is (= 0 (comparisons (str "{ dog { " (str/join " " (repeat 2000 "owner { name }")) " } }")))))
+  (testing "fields with different response keys are not compared"
+    (is (= 0 (comparisons (str "{ dog { " (str/join " " (map #(str "a" % ": name") (range 2000))) " } }")))))
+  (testing "distinct fields sharing a response key are compared pairwise"
+    (is (= 3 (comparisons "{ dog { n: name n: name @include(if: true) n: name @skip(if: false) } }")))))
+
+(deftest repeated-fragments
+  (testing "a pair of fragments is compared once however often it is spread"
+    (is (= 3 (comparisons (str "{ dog { " (str/join " " (repeat 1000 "...A ...B")) " } } "
+                               "fragment A on Dog { name owner { name } } "
+                               "fragment B on Dog { name owner { name } }")))))
+  (testing "fragments are compared pairwise, once per pair and shared response key"
+    (let [n 50]
+      (is (= (* 3 (quot (* n (dec n)) 2))
+             (comparisons (str "{ dog { " (str/join " " (map #(str "...F" %) (range n))) " } } "
+                               (str/join " " (map #(str "fragment F" % " on Dog { name owner { name } }") (range n))))))))))
@@ -664,6 +664,40 @@ query getName {
    }"
   nil)
 
+;; constant @skip and @include conditions are folded into the validated document
+(deftest-valid skip-and-include-constant-folding example-schema
+  "query($x: Boolean) {
+     dog {
+       name @include(if: true)
+       nickname @skip(if: true)
+       barkVolume @include(if: $x)
+       ... @include(if: false) { owner { name } }
+     }
+   }"
+  [{:tag :query-definition
+    :variable-definitions [{:tag :variable-definition :name 'x :type {:tag :basic-type :name 'Boolean}}]
+    :selection-set
+    [{:tag :selection-field
+      :name 'dog
+      :resolved-type {:tag :basic-type, :name 'Dog}
+      :selection-set
+      [{:tag :selection-field
+        :name 'name
+        :resolved-type {:tag :basic-type, :name 'String, :required true}}
+       {:tag :selection-field
+        :name 'barkVolume
+        :directives [{:tag :directive :name 'include
+                      :arguments [{:tag :argument :name 'if :value {:tag :variable-reference :name 'x}}]}]
+        :resolved-type {:tag :basic-type, :name 'Int}}]}]}])
+
+(deftest-invalid skip-undefined-variable example-schema
+  "{ dog { name @skip(if: $undefined) } }"
+  (err "variable '$undefined' is not defined" 1 24 23 1 34 33))
+
+(deftest-invalid skip-undefined-nested-variable example-schema
+  "{ dog { name @skip(if: {a: [$undefined]}) } }"
+  (err "variable '$undefined' is not defined" 1 29 28 1 39 38))
+
 ;; 5.3.1
 (deftest-invalid invalid-arg-name example-schema
   "{                          dog {
@@ -0,0 +1,116 @@
+(ns graphql-clj.remote-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.remote :as remote]
+            [graphql-clj.schema-validator :as sv]))
+
+(def ^:private users
+  {1 {:id 1 :name "Ann" :role 'ADMIN}
+   2 {:id 2 :name "Bob" :role 'USER}})
+
+(def ^:private downstream-schema
+  (sv/validate-schema
+   "enum Role { ADMIN USER }
+type User { id: Int name: String role: Role }
+type QueryRoot { user(id: Int): User users(role: Role): [User] }
+type MutationRoot { addUser(name: String): User }
+schema { query: QueryRoot mutation: MutationRoot }"))
+
+(defn- downstream-resolver-fn [type-name field-name]
+  (case [type-name field-name]
+    ["QueryRoot" "user"] (fn [context parent args]
+                           (or (get users (get args "id"))
+                               (ex-info (str "No user " (get args "id")) {})))
+    ["QueryRoot" "users"] (fn [context parent args]
+                            (filter #(= (str (get args "role")) (str (:role %))) (vals users)))
+    ["MutationRoot" "addUser"] (fn [context parent args]
+                                 {:id 3 :name (get args "name") :role 'USER})
+    nil))
+
+(def ^:private schema
+  (sv/validate-schema
+   "enum Role { ADMIN USER }
+type User { id: Int name: String role: Role }
+type Post { id: Int title: String author: User }
+type QueryRoot { posts: [Post] user(id: Int): User users(role: Role): [User] }
+type MutationRoot { addUser(name: String): User }
+schema { query: QueryRoot mutation: MutationRoot }"))
+
+(defn- counting-transport [requests]
+  (let [transport (remote/local-transport downstream-schema downstream-resolver-fn)]
+    (fn [request]
+      (swap! requests conj (:query request))
+      (transport request))))
+
+(defn- resolver-fn [transport]
+  (let [user (remote/delegate transport)
+        users (remote/delegate transport)
+        author (remote/delegate transport {:field "user" :args (fn [parent args] {:id (:author parent)})})
+        add-user (remote/delegate transport {:operation :mutation})]
+    (fn [type-name field-name]
+      (case [type-name field-name]
+        ["QueryRoot" "posts"] (fn [context parent args]
+                                [{:id 10 :title "Hello" :author 1}
+                                 {:id 11 :title "Again" :author 2}
+                                 {:id 12 :title "Lost" :author 3}])
+        ["QueryRoot" "user"] user
+        ["QueryRoot" "users"] users
+        ["Post" "author"] author
+        ["MutationRoot" "addUser"] add-user
+        nil))))
+
+(deftest one-request-per-level
+  (let [requests (atom [])
+        result (executor/execute nil schema (resolver-fn (counting-transport requests))
+                                 "query Q($id: Int) {
+  a: user(id: 1) { name }
+  b: user(id: $id) { ...Named }
+  admins: users(role: ADMIN) { id role }
+  posts { title author { name } }
+}
+fragment Named on User { id name }"
+                                 {:id 2})]
+    (is (= {"a" {"name" "Ann"}
+            "b" {"id" 2 "name" "Bob"}
+            "admins" [{"id" 1 "role" 'ADMIN}]
+            "posts" [{"title" "Hello" "author" {"name" "Ann"}}
+                     {"title" "Again" "author" {"name" "Bob"}}
+                     {"title" "Lost" "author" nil}]}
+           (:data result)))
+    (is (= [{:message "No user 3"}] (:errors result)))
+    (testing "the root fields and the authors of the posts are fetched with one request each"
+      (is (= 2 (count @requests)))
+      (is (= "{_0:user(id:1){name}_1:user(id:2){id name}_2:users(role:ADMIN){id role}}"
+             (first @requests))))))
+
+(deftest downstream-errors
+  (let [requests (atom [])
+        result (executor/execute nil schema (resolver-fn (counting-transport requests))
+                                 "{ a: user(id: 1) { name } b: user(id: 4) { name } }")]
+    (is (= {"a" {"name" "Ann"} "b" nil} (:data result)))
+    (is (= [{:message "No user 4"}] (:errors result)))
+    (is (= 1 (count @requests)))))
+
+(deftest direct-calls
+  (let [user (remote/delegate (counting-transport (atom [])))]
+    (is (= "Delegated fields must be resolved by the executor."
+           (.getMessage ^Exception (user nil nil {"id" 1}))))))
+
+(deftest delegated-mutations
+  (let [requests (atom [])
+        result (executor/execute nil schema (resolver-fn (counting-transport requests))
+                                 "mutation { a: addUser(name: \"Cy\") { id name } b: addUser(name: \"Di\") { name } }")]
+    (is (= {:data {"a" {"id" 3 "name" "Cy"} "b" {"name" "Di"}}} result))
+    (testing "root mutation fields are sent one at a time"
+      (is (= ["mutation{_0:addUser(name:\"Cy\"){id name}}" "mutation{_0:addUser(name:\"Di\"){name}}"]
+             @requests)))))
+
+(deftest downstream-error-paths
+  (let [transport (fn [request]
+                    {:data {"_0" {"name" nil}}
+                     :errors [{:message "Name is hidden" :path ["_0" "name"] :locations [{:line 1 :column 18}]}]})
+        result (executor/execute nil schema (resolver-fn transport) "{ user(id: 1) { name } }")]
+    (is (= {"user" nil} (:data result)))
+    (is (= [{:message "Name is hidden"
+             :extensions {:downstream {:path ["name"] :locations [{:line 1 :column 18}]}}}]
+           (:errors result)))))
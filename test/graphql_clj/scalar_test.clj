@@ -0,0 +1,89 @@
+(ns graphql-clj.scalar-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.cbor :as cbor]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.scalar :as scalar]
+            [graphql-clj.schema-validator :as sv])
+  (:import [graphql_clj Scalars$DoubleList Scalars$IntList]
+           [java.time Instant]))
+
+(def ^:private schema-str
+  "scalar DateTime
+scalar ID
+type QueryRoot {
+  count: Int
+  big: Int
+  counts: [Int]
+  sparse: [Int]
+  ratios: [Float]
+  name: String
+  ids: [ID]
+  at(time: DateTime): DateTime
+  echo(n: Int): Int
+}")
+
+(def ^:private date-time
+  {:serialize str
+   :parse-value #(Instant/parse %)
+   :parse-literal #(Instant/parse (:value %))})
+
+(def ^:private schema
+  (sv/validate-schema schema-str {:scalars {"DateTime" date-time}}))
+
+(defn- resolver-fn [type-name field-name]
+  (case field-name
+    "count" (constantly 3)
+    "big" (constantly 5000000000)
+    "counts" (constantly (long-array [1 2 3]))
+    "sparse" (constantly [1 nil 3])
+    "ratios" (constantly [1 2.5])
+    "name" (constantly :ann)
+    "ids" (constantly [1 "a"])
+    "at" (fn [context parent args]
+           (is (instance? Instant (get args "time")))
+           (get args "time"))
+    "echo" (fn [context parent args] (get args "n"))
+    nil))
+
+(deftest serialize
+  (is (= {:data {"count" 3 "counts" [1 2 3] "sparse" [1 nil 3] "ratios" [1.0 2.5] "name" "ann" "ids" ["1" "a"]}}
+         (executor/execute nil schema resolver-fn "{ count counts sparse ratios name ids }")))
+  (testing "lists of Int and Float are backed by primitive arrays"
+    (let [data (:data (executor/execute nil schema resolver-fn "{ counts ratios }"))]
+      (is (instance? Scalars$IntList (get data "counts")))
+      (is (instance? Scalars$DoubleList (get data "ratios")))
+      (is (= {"data" {"counts" [1 2 3] "ratios" [1.0 2.5]}}
+             (cbor/decode (cbor/encode {:data data}))))))
+  (testing "a value the scalar cannot represent is a field error"
+    (is (= {:data {"big" nil "count" 3}
+            :errors [{:message "Int cannot represent value: 5000000000"}]}
+           (executor/execute nil schema resolver-fn "{ big count }"))))
+  (testing "without scalars, values are left as they are"
+    (is (= {:data {"name" :ann "big" 5000000000}}
+           (executor/execute nil (sv/validate-schema schema-str) resolver-fn "{ name big }")))))
+
+(deftest parse
+  (is (= {:data {"at" "2020-01-01T00:00:00Z" "echo" 4}}
+         (executor/execute nil schema resolver-fn "{ at(time: \"2020-01-01T00:00:00Z\") echo(n: 4) }")))
+  (is (= {:data {"at" "2021-01-01T00:00:00Z" "echo" 7}}
+         (executor/execute nil schema resolver-fn "query Q($t: DateTime, $n: Int) { at(time: $t) echo(n: $n) }"
+                           {:t "2021-01-01T00:00:00Z" :n 7})))
+  (testing "a literal that does not coerce is a field error"
+    (is (= {:data {"at" nil "count" 3}
+            :errors [{:message "Text 'soon' could not be parsed at index 0"
+                      :locations [{:line 1 :column 3 :index 2}]}]}
+           (executor/execute nil schema resolver-fn "{ at(time: \"soon\") count }"))))
+  (testing "Int literals must be integers"
+    (let [int-scalar (scalar/scalar schema 'Int)]
+      (is (= 4 (:value (scalar/parse-literal int-scalar {:tag :int-value :image "4" :value 4}))))
+      (is (thrown-with-msg? IllegalArgumentException #"Int cannot represent a non integer value: 1.5"
+                            (scalar/parse-literal int-scalar {:tag :float-value :image "1.5" :value 1.5})))
+      (is (thrown? IllegalArgumentException
+                   (scalar/parse-literal int-scalar {:tag :string-value :image "\"4\"" :value "4"})))))
+  (testing "a variable that does not coerce fails the operation"
+    (is (= {:errors [{:message "Variable (t): Text 'soon' could not be parsed at index 0"}]}
+           (executor/execute nil schema resolver-fn "query Q($t: DateTime) { at(time: $t) }" {:t "soon"})))))
+
+(deftest undeclared-scalars
+  (is (thrown-with-msg? clojure.lang.ExceptionInfo #"schema validation failed"
+                        (sv/validate-schema schema-str {:scalars {"Decimal" date-time}}))))
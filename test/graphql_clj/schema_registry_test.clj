@@ -0,0 +1,95 @@
+(ns graphql-clj.schema-registry-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.schema-registry :as registry]
+            [graphql-clj.schema-validator :as sv]))
+
+(def ^:private schema-str
+  "type User { id: Int name: String }
+type Post { title: String author: User }
+input PostFilter { title: String }
+type QueryRoot { user(id: Int): User posts(filter: PostFilter): [Post] }")
+
+(defn- resolver-fn [type-name field-name]
+  (case [type-name field-name]
+    ["QueryRoot" "user"] (fn [context parent args] {:id (get args "id") :name "ann" :email "ann@example.com"})
+    ["QueryRoot" "posts"] (fn [context parent args] [{:title "a"}])
+    nil))
+
+(defn- cached? [r query-str]
+  (identical? (registry/validate-query r query-str) (registry/validate-query r query-str)))
+
+(deftest schema-updates
+  (let [r (registry/create-registry schema-str)
+        user-query "{ user(id: 1) { id name } }"
+        post-query "{ posts(filter: {title: \"a\"}) { title } }"
+        user-validated (registry/validate-query r user-query)
+        post-validated (registry/validate-query r post-query)]
+    (is (= {:data {"user" {"id" 1 "name" "ann"}}} (registry/execute r nil resolver-fn user-query)))
+    (testing "an unchanged schema changes nothing"
+      (is (= #{} (registry/update-schema! r schema-str)))
+      (is (identical? user-validated (registry/validate-query r user-query)))
+      (is (identical? post-validated (registry/validate-query r post-query))))
+    (testing "queries touching a changed type are validated again"
+      (is (= #{'PostFilter} (registry/update-schema! r (.replace schema-str "input PostFilter { title: String }"
+                                                                  "input PostFilter { title: String tag: String }"))))
+      (is (identical? user-validated (registry/validate-query r user-query)))
+      (is (not (identical? post-validated (registry/validate-query r post-query))))
+      (is (cached? r post-query)))
+    (testing "the new schema is used after the swap"
+      (is (= #{'User} (registry/update-schema! r (-> schema-str
+                                                      (.replace "type User { id: Int name: String }"
+                                                                "type User { id: Int name: String email: String }")
+                                                      (.replace "input PostFilter { title: String }"
+                                                                "input PostFilter { title: String tag: String }")))))
+      (is (= {:data {"user" {"email" "ann@example.com"}}}
+             (registry/execute r nil resolver-fn "{ user(id: 1) { email } }")))
+      (is (= 3 (registry/version r))))
+    (testing "the schema is the same as a full validation"
+      (is (= (sv/validate-schema (-> schema-str
+                                     (.replace "type User { id: Int name: String }"
+                                               "type User { id: Int name: String email: String }")
+                                     (.replace "input PostFilter { title: String }"
+                                               "input PostFilter { title: String tag: String }")))
+             (registry/schema r))))
+    (testing "an invalid update leaves the registry unchanged"
+      (let [schema (registry/schema r)]
+        (is (thrown? clojure.lang.ExceptionInfo
+                     (registry/update-schema! r (.replace schema-str "author: User" "author: Person"))))
+        (is (= ["type 'User' referenced by field 'author' is not declared"
+                "type 'User' referenced by field 'user' is not declared"]
+               (try
+                 (registry/update-schema! r (.replace schema-str "type User { id: Int name: String }" ""))
+                 (catch clojure.lang.ExceptionInfo e
+                   (map :message (:errors (ex-data e)))))))
+        (is (identical? schema (registry/schema r)))
+        (is (= 3 (registry/version r)))))
+    (testing "removed types are changed"
+      (is (contains? (registry/update-schema! r (-> schema-str
+                                                    (.replace "type Post { title: String author: User }" "")
+                                                    (.replace "posts(filter: PostFilter): [Post]" "")))
+                     'Post))
+      (is (seq (first (registry/validate-query r post-query)))))))
+
+(deftest query-cache
+  (let [r (registry/create-registry schema-str {:max-queries 2})
+        queries #(.size ^java.util.Map (:queries @(:state r)))]
+    (testing "queries differing in whitespace and comments share one entry"
+      (let [validated (registry/validate-query r "{ user(id: 1) { id name } }")]
+        (is (identical? validated (registry/validate-query r "{user(id:1){id\n  name # comment\n}}")))
+        (is (= 1 (queries)))))
+    (testing "invalid queries are not cached"
+      (is (seq (first (registry/validate-query r "{ user(id: 1) { age } }"))))
+      (is (thrown? clojure.lang.ExceptionInfo (registry/validate-query r "{ user(id: \"1) }")))
+      (is (= 1 (queries))))
+    (testing "the least recently used queries are dropped"
+      (let [validated (registry/validate-query r "{ user(id: 1) { id name } }")]
+        (doseq [i (range 2 10)]
+          (registry/validate-query r (str "{ user(id: " i ") { id } }")))
+        (is (= 2 (queries)))
+        (is (not (identical? validated (registry/validate-query r "{ user(id: 1) { id name } }"))))))
+    (testing "updates keep the bound"
+      (registry/update-schema! r (.replace schema-str "input PostFilter { title: String }"
+                                           "input PostFilter { title: String tag: String }"))
+      (doseq [i (range 10 20)]
+        (registry/validate-query r (str "{ user(id: " i ") { id } }")))
+      (is (= 2 (queries))))))
@@ -0,0 +1,103 @@
+(ns graphql-clj.schema-snapshot-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.schema-snapshot :as snapshot]
+            [graphql-clj.schema-validator :as sv]
+            [graphql-clj.query-validator :as qv]
+            [graphql-clj.fixture :as fixture])
+  (:import [graphql_clj SnapshotException]
+           [java.io ByteArrayInputStream ByteArrayOutputStream File]
+           [java.nio.file Files]
+           [java.util Arrays]))
+
+(defn- snapshot-bytes [schema schema-str]
+  (let [out (ByteArrayOutputStream.)]
+    (snapshot/write-snapshot schema schema-str out)
+    (.toByteArray out)))
+
+(deftest round-trip
+  (let [schema-str fixture/validation-5-schema-str
+        schema (sv/validate-schema schema-str)
+        bytes (snapshot-bytes schema schema-str)
+        loaded (snapshot/read-snapshot (ByteArrayInputStream. bytes) schema-str)]
+    (testing "the validated schema is restored"
+      (is (= schema loaded))
+      (is (= (meta (get-in schema [:type-map 'Dog]))
+             (meta (get-in loaded [:type-map 'Dog]))))
+      (is (= (meta (get-in schema [:type-map 'Dog :name]))
+             (meta (get-in loaded [:type-map 'Dog :name]))))
+      (is (instance? graphql_clj.Location (:start (meta (get-in loaded [:type-map 'Dog]))))))
+    (testing "shared type definitions stay shared"
+      (let [dog (some #(when (= 'Dog (:name %)) %) (:type-system-definitions loaded))]
+        (is (identical? dog (get-in loaded [:type-map 'Dog])))))
+    (testing "the snapshot is smaller than the printed schema"
+      (is (< (alength bytes) (count (pr-str schema)))))
+    (testing "queries validate against the loaded schema"
+      (is (= (qv/validate-query schema "query { dog { name doesKnowCommand(dogCommand: SIT) } }")
+             (qv/validate-query loaded "query { dog { name doesKnowCommand(dogCommand: SIT) } }"))))
+    (testing "stale snapshots are detected"
+      (is (nil? (snapshot/read-snapshot (ByteArrayInputStream. bytes) (str schema-str " "))))
+      (is (= schema (snapshot/read-snapshot (ByteArrayInputStream. bytes)))))))
+
+(deftest load-schema
+  (let [file (File/createTempFile "schema" ".snapshot")
+        schema-str "type QueryRoot { hello: String }"
+        changed-str "type QueryRoot { hello: String world: Int }"]
+    (try
+      (.delete file)
+      (is (= (sv/validate-schema schema-str) (snapshot/load-schema schema-str file)))
+      (is (.exists file))
+      (let [modified (.lastModified file)]
+        (is (= (sv/validate-schema schema-str) (snapshot/load-schema schema-str file)))
+        (is (= modified (.lastModified file))))
+      (is (= (sv/validate-schema changed-str) (snapshot/load-schema changed-str file)))
+      (is (= (sv/validate-schema changed-str) (snapshot/read-snapshot file changed-str)))
+      (finally
+        (.delete file)))))
+
+(deftest atomic-writes
+  (let [dir (.toFile (Files/createTempDirectory "snapshots" (make-array java.nio.file.attribute.FileAttribute 0)))
+        file (File. dir "schema.snapshot")
+        schema-str "type QueryRoot { hello: String }"]
+    (try
+      (snapshot/load-schema schema-str file)
+      (snapshot/load-schema "type QueryRoot { hello: String world: Int }" file)
+      (testing "only the snapshot is left in its directory"
+        (is (= ["schema.snapshot"] (vec (.list dir)))))
+      (testing "a failed write leaves the previous snapshot in place"
+        (with-redefs [snapshot/write-snapshot (fn [validated-schema schema-str out]
+                                                (spit out "partial")
+                                                (throw (java.io.IOException. "disk full")))]
+          (is (thrown? java.io.IOException (snapshot/load-schema schema-str file))))
+        (is (= ["schema.snapshot"] (vec (.list dir))))
+        (is (= (sv/validate-schema "type QueryRoot { hello: String world: Int }")
+               (snapshot/read-snapshot file "type QueryRoot { hello: String world: Int }"))))
+      (finally
+        (doseq [^File f (.listFiles dir)]
+          (.delete f))
+        (.delete dir)))))
+
+(deftest corrupt-snapshots
+  (let [schema-str "type QueryRoot { hello: String }"
+        schema (sv/validate-schema schema-str)
+        bytes (snapshot-bytes schema schema-str)
+        ;; the body follows the magic number, the version and the
+        ;; 32 bytes of the checksum with their length
+        body 38
+        corrupt (concat (for [n [0 3 10 body (inc body) (quot (alength bytes) 2) (dec (alength bytes))]]
+                          (Arrays/copyOf ^bytes bytes (int n)))
+                        [(doto (aclone ^bytes bytes) (aset-byte 0 0))
+                         (doto (aclone ^bytes bytes) (aset-byte body (unchecked-byte 0xff)))
+                         (doto (aclone ^bytes bytes) (aset-byte body 3))
+                         (doto (aclone ^bytes bytes) (aset-byte (inc body) (unchecked-byte 0xff)))])]
+    (testing "decode failures are reported as snapshot exceptions"
+      (doseq [corrupt-bytes corrupt]
+        (is (thrown? SnapshotException (snapshot/read-snapshot (ByteArrayInputStream. corrupt-bytes) schema-str)))))
+    (testing "load-schema validates the source again"
+      (let [file (File/createTempFile "schema" ".snapshot")]
+        (try
+          (doseq [corrupt-bytes corrupt]
+            (Files/write (.toPath file) ^bytes corrupt-bytes (make-array java.nio.file.OpenOption 0))
+            (is (= schema (snapshot/load-schema schema-str file)))
+            (is (= schema (snapshot/read-snapshot file schema-str)) "the snapshot is written again"))
+          (finally
+            (.delete file)))))))
@@ -254,3 +254,26 @@
                    (update :fields subvec 1 2)
                    (update :field-map dissoc '__schema '__type '__typename))]
     (is (= actual expected))))
+
+(defn- validation-result [schema-str options]
+  (try
+    (schema-validator/validate-schema schema-str options)
+    (catch Exception ex
+      (:errors (ex-data ex)))))
+
+(deftest parallel-validation
+  (let [types (for [i (range 200)]
+                (format "type T%d { a: Int b: T%d c: [T%d] }" i (inc i) (mod (* 7 i) 200)))
+        valid-str (str "type QueryRoot { t: T0 } type T200 { x: Int } " (apply str types))
+        invalid-str (str "type QueryRoot { t: T0 } "
+                         (apply str (for [i (range 200)]
+                                      (if (zero? (mod i 17))
+                                        (format "type T%d { a: Int a: Int b: Missing%d } union U%d = T%d | Nope%d " i i i i i)
+                                        (format "type T%d { a: Int b: T%d } " i (mod (inc i) 200))))))]
+    (testing "the parallel validation returns the same schema"
+      (is (= (schema-validator/validate-schema valid-str)
+             (schema-validator/validate-schema valid-str {:parallel true}))))
+    (testing "errors are reported in the same order"
+      (let [errors (validation-result invalid-str nil)]
+        (is (= 36 (count errors)))
+        (is (= errors (validation-result invalid-str {:parallel true})))))))
@@ -0,0 +1,142 @@
+(ns graphql-clj.subscription-test
+  (:require [clojure.test :refer :all]
+            [graphql-clj.executor :as executor]
+            [graphql-clj.subscription :as subscription]
+            [graphql-clj.schema-validator :as sv]))
+
+(def schema (sv/validate-schema "type Message {
+  id: Int
+  text: String
+  author: String
+}
+
+type QueryRoot {
+  message: Message
+}
+
+type SubscriptionRoot {
+  messageAdded(channel: String!): Message
+}
+
+schema {
+  query: QueryRoot
+  subscription: SubscriptionRoot
+}"))
+
+(defn- create-event-source
+  "An in-process event source.  Publishing an event calls every
+  callback subscribed to its channel."
+  []
+  (atom {}))
+
+(defn- publish! [source channel event]
+  (doseq [callback (vals (get @source channel))]
+    (callback event)))
+
+(defn- resolver-fn
+  "Counts the source streams created in streams and the executions of
+  Message.text in executions."
+  [source streams executions]
+  (fn [type-name field-name]
+    (case [type-name field-name]
+      ["SubscriptionRoot" "messageAdded"]
+      (fn [context parent args]
+        (swap! streams inc)
+        (fn [callback]
+          (let [id (Object.)
+                channel (get args "channel")]
+            (swap! source assoc-in [channel id] callback)
+            (fn [] (swap! source update channel dissoc id)))))
+      ["Message" "text"]
+      (fn [context parent args]
+        (swap! executions inc)
+        (:text parent))
+      nil)))
+
+(def ^:private subscription-query
+  "subscription($channel: String!) { messageAdded(channel: $channel) { id text } }")
+
+(deftest subscribe
+  (testing "events are executed against the selection set"
+    (let [source (create-event-source)
+          responses (atom [])
+          {:keys [unsubscribe]} (executor/subscribe nil schema (resolver-fn source (atom 0) (atom 0)) subscription-query
+                                                    {:channel "a"} #(swap! responses conj %))]
+      (publish! source "a" {:id 1 :text "hello" :author "x"})
+      (publish! source "b" {:id 2 :text "other channel"})
+      (publish! source "a" {:id 3 :text "world"})
+      (is (= [{:data {"messageAdded" {"id" 1 "text" "hello"}}}
+              {:data {"messageAdded" {"id" 3 "text" "world"}}}]
+             @responses))
+      (unsubscribe)
+      (publish! source "a" {:id 4 :text "after unsubscribe"})
+      (is (= 2 (count @responses)))
+      (is (empty? (get @source "a")))))
+  (testing "subscriptions must select one root field"
+    (is (= [{:message "subscription must select exactly one top level field"
+             :start {:line 1 :column 1 :index 0}
+             :end {:line 1 :column 91 :index 90}}]
+           (:errors (executor/subscribe nil schema (resolver-fn (create-event-source) (atom 0) (atom 0))
+                                        "subscription { a: messageAdded(channel: \"a\") { id } b: messageAdded(channel: \"b\") { id } }"
+                                        nil identity)))))
+  (testing "subscriptions cannot be executed as queries"
+    (is (= {:errors [{:message "Subscription operations must be executed with subscribe."}]}
+           (executor/execute nil schema (resolver-fn (create-event-source) (atom 0) (atom 0)) subscription-query {:channel "a"})))))
+
+(deftest shared-fan-out
+  (let [source (create-event-source)
+        streams (atom 0)
+        executions (atom 0)
+        manager (subscription/create-manager schema (resolver-fn source streams executions) pr-str)
+        responses (atom {})
+        subscribe! (fn [n variables]
+                     (subscription/subscribe! manager nil subscription-query variables
+                                              #(swap! responses update n (fnil conj []) %)))
+        subscribers (doall (for [n (range 100)] (subscribe! n {:channel "a"})))
+        other (subscribe! :other {"channel" "b"})]
+    (testing "identical subscriptions share one source stream"
+      (is (= [101 2] (subscription/subscriber-count manager)))
+      (is (= 2 @streams)))
+    (testing "one execution per event is broadcast to every subscriber"
+      (publish! source "a" {:id 1 :text "hello"})
+      (is (= 1 @executions))
+      (is (= 100 (count (remove #{:other} (keys @responses)))))
+      (is (every? #(= ["{:data {\"messageAdded\" {\"id\" 1, \"text\" \"hello\"}}}"] %)
+                  (vals (dissoc @responses :other))))
+      (is (nil? (get @responses :other))))
+    (testing "the source stream stops after the last subscriber leaves"
+      (doseq [s (rest subscribers)] ((:unsubscribe s)))
+      (is (= 1 (count (get @source "a"))))
+      ((:unsubscribe (first subscribers)))
+      (is (empty? (get @source "a")))
+      ((:unsubscribe other))
+      (is (= [0 0] (subscription/subscriber-count manager))))))
+
+(deftest batched-events
+  (let [source (create-event-source)
+        plans (atom nil)
+        init-request-state @#'executor/init-request-state
+        authors (executor/batch-resolver :authors
+                                         (fn [context calls] (map #(str "by " (:author (:parent %))) calls))
+                                         nil)
+        resolver-fn (let [resolver-fn (resolver-fn source (atom 0) (atom 0))]
+                      (fn [type-name field-name]
+                        (if (= ["Message" "author"] [type-name field-name])
+                          authors
+                          (resolver-fn type-name field-name))))
+        responses (atom [])]
+    (with-redefs [executor/init-request-state (fn [state]
+                                                (let [state (init-request-state state)]
+                                                  (reset! plans (:plans state))
+                                                  state))]
+      (executor/subscribe nil schema resolver-fn
+                          "subscription { messageAdded(channel: \"a\") { id author } }"
+                          nil #(swap! responses conj %)))
+    (publish! source "a" {:id 1 :author "x"})
+    (let [planned (.size ^java.util.Map @plans)]
+      (dotimes [i 100]
+        (publish! source "a" {:id (+ 2 i) :author "y"}))
+      (testing "events reuse the plan of the subscription"
+        (is (= planned (.size ^java.util.Map @plans)))))
+    (is (= {:data {"messageAdded" {"id" 1 "author" "by x"}}} (first @responses)))
+    (is (= 101 (count @responses)))))